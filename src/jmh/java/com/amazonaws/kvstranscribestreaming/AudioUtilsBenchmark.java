@@ -0,0 +1,82 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AudioUtils#convertToWav} for raw recordings of a few call lengths.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioUtilsBenchmark {
+
+    @Param({"60", "600"})
+    public int callSeconds;
+
+    private Path directory;
+    private Path rawFile;
+    private File wavFile;
+
+    @Setup(Level.Trial)
+    public void writeRawAudio() throws IOException {
+        directory = Files.createTempDirectory("audio-utils-benchmark");
+        rawFile = directory.resolve("call.raw");
+        Files.write(rawFile, MkvFixtures.rawAudio(callSeconds));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteWav() {
+        if (wavFile != null) {
+            wavFile.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRawAudio() throws IOException {
+        Files.deleteIfExists(rawFile);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public File convertToWav() throws IOException, UnsupportedAudioFileException {
+        wavFile = AudioUtils.convertToWav(rawFile.toString());
+        return wavFile;
+    }
+}
@@ -0,0 +1,76 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.transcribestreaming.FlacEncoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Training run of the {@code cdsClassList} task. It loads the classes a cold start and the first calls load, with
+ * local fixtures and no network, so they end up in the class list the class-data sharing archive is dumped from:
+ *
+ * <ul>
+ * <li>the Lambda handler is created, which builds the engine and its AWS clients without sending a request</li>
+ * <li>the records of the sample streaming event are parsed the way the engine parses them</li>
+ * <li>a few short calls run through the {@link LoadTestHarness} pipeline against the Transcribe and DynamoDB
+ * stand-ins</li>
+ * <li>call audio is FLAC encoded and a recording is converted to WAV</li>
+ * </ul>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class CdsTrainingWorkload {
+
+    public static void main(String[] args) throws Exception {
+        new KVSTranscribeStreamingLambda();
+
+        String sampleEvent = System.getProperty("cds.sampleEvent");
+        if (sampleEvent != null) {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Map<String, Object> event = objectMapper.readValue(new File(sampleEvent), Map.class);
+            for (Map<String, Object> record : (List<Map<String, Object>>) event.get("records")) {
+                Map<String, Object> message = objectMapper.readValue((String) record.get("body"), Map.class);
+                System.out.println("Parsed " + ((Map) message.get("detail")).get("streamingStatus") + " event");
+            }
+        }
+
+        System.setProperty("loadtest.concurrency", System.getProperty("loadtest.concurrency", "1,4"));
+        System.setProperty("loadtest.callSeconds", System.getProperty("loadtest.callSeconds", "10"));
+        System.setProperty("loadtest.speed", System.getProperty("loadtest.speed", "10"));
+        new LoadTestHarness().run();
+
+        byte[] audio = MkvFixtures.rawAudio(10);
+        FlacEncoder flacEncoder = new FlacEncoder(MkvFixtures.SAMPLE_RATE, 640);
+        for (int position = 0; position < audio.length; position += 1280) {
+            flacEncoder.encode(ByteBuffer.wrap(audio, position, Math.min(1280, audio.length - position)));
+        }
+        flacEncoder.flush();
+
+        Path rawFile = Files.createTempFile("cds-training", ".raw");
+        Files.write(rawFile, audio);
+        File wavFile = AudioUtils.convertToWav(rawFile.toString());
+        Files.delete(rawFile);
+        Files.delete(wavFile.toPath());
+
+        // the engine's executors are not daemon threads
+        System.exit(0);
+    }
+}
@@ -0,0 +1,85 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ChimeAudioMkvReader} with the generic parser behind {@link GenericKVSAudioReader} reading an
+ * in-memory Chime MKV stream in the chunks handed to Transcribe. Scores are per frame.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChimeAudioMkvReaderBenchmark {
+
+    private static final String CONTACT_ID = "24f48be4-2036-41d5-a6f8-f25e486b76c6";
+    private static final int FRAGMENTS = 10;
+    private static final int FRAMES_PER_FRAGMENT = 50;
+    private static final int FRAMES = FRAGMENTS * FRAMES_PER_FRAGMENT;
+    // frames per audio event at the live edge, as in KVSByteToAudioEventSubscription
+    private static final int CHUNK_FRAMES = 4;
+
+    @Param({"320", "1024"})
+    public int frameSize;
+
+    private byte[] stream;
+
+    @Setup
+    public void createStream() {
+        stream = MkvFixtures.chimeAudioStream(FRAGMENTS, FRAMES_PER_FRAGMENT, frameSize, CONTACT_ID);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long generic() throws Exception {
+        return readAll(GenericKVSAudioReader.create(new ByteArrayInputStream(stream), CONTACT_ID));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long chime() throws Exception {
+        return readAll(new ChimeAudioMkvReader(new ByteArrayInputStream(stream), CONTACT_ID));
+    }
+
+    private static long readAll(KVSAudioReader reader) throws Exception {
+        long bytes = 0;
+        ByteBuffer buffer = reader.readAudio(CHUNK_FRAMES);
+        while (buffer.remaining() > 0) {
+            bytes += buffer.remaining();
+            buffer = reader.readAudio(CHUNK_FRAMES);
+        }
+        return bytes;
+    }
+}
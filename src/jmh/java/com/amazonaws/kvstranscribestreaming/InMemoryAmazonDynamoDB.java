@@ -0,0 +1,118 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the DynamoDB tables used by the pipeline. Tables are registered with their key
+ * attribute names, and every call can be delayed by a fixed latency to approximate a real round-trip.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class InMemoryAmazonDynamoDB extends AbstractAmazonDynamoDB {
+
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+    private final long latencyMillis;
+    private final AtomicLong writeCount = new AtomicLong();
+
+    public InMemoryAmazonDynamoDB(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Registers a table. Items are keyed by the values of the given key attributes.
+     *
+     * @param tableName
+     * @param keyAttributeNames hash key followed by the optional range key
+     * @return this
+     */
+    public InMemoryAmazonDynamoDB withTable(String tableName, String... keyAttributeNames) {
+        tables.put(tableName, new Table(keyAttributeNames));
+        return this;
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public int getItemCount(String tableName) {
+        return table(tableName).items.size();
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        simulateLatency();
+        Table table = table(request.getTableName());
+        table.items.put(table.key(request.getItem()), new HashMap<>(request.getItem()));
+        writeCount.incrementAndGet();
+        return new PutItemResult();
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        simulateLatency();
+        Table table = table(request.getTableName());
+        return new GetItemResult().withItem(table.items.get(table.key(request.getKey())));
+    }
+
+    private Table table(String tableName) {
+        Table table = tables.get(tableName);
+        if (table == null) {
+            throw new ResourceNotFoundException("Requested resource not found: Table: " + tableName + " not found");
+        }
+        return table;
+    }
+
+    private void simulateLatency() {
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Table {
+        private final String[] keyAttributeNames;
+        private final ConcurrentMap<String, Map<String, AttributeValue>> items = new ConcurrentHashMap<>();
+
+        private Table(String[] keyAttributeNames) {
+            this.keyAttributeNames = keyAttributeNames;
+        }
+
+        private String key(Map<String, AttributeValue> item) {
+            StringBuilder key = new StringBuilder();
+            for (String name : keyAttributeNames) {
+                AttributeValue value = item.get(name);
+                key.append(value == null ? null : value.getS() != null ? value.getS() : value.getN()).append('|');
+            }
+            return key.toString();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KVSUtils#getByteBufferFromStream} over an in-memory Chime MKV stream, both one frame at a
+ * time (recording-only path) and in the chunks handed to Transcribe. Scores are per frame.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVSUtilsBenchmark {
+
+    private static final String CONTACT_ID = "24f48be4-2036-41d5-a6f8-f25e486b76c6";
+    private static final int FRAGMENTS = 10;
+    private static final int FRAMES_PER_FRAGMENT = 50;
+    private static final int FRAMES = FRAGMENTS * FRAMES_PER_FRAGMENT;
+    // same chunking as KVSByteToAudioEventSubscription
+    private static final int CHUNK_SIZE_IN_KB = 4;
+
+    @Param({"320", "1024"})
+    public int frameSize;
+
+    private byte[] stream;
+    private StreamingMkvReader reader;
+    private FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor;
+    private FragmentMetadataVisitor fragmentVisitor;
+
+    @Setup(Level.Trial)
+    public void createStream() {
+        stream = MkvFixtures.chimeAudioStream(FRAGMENTS, FRAMES_PER_FRAGMENT, frameSize, CONTACT_ID);
+    }
+
+    @Setup(Level.Invocation)
+    public void openReader() {
+        reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(stream)));
+        tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long singleFrame() throws MkvElementVisitException {
+        long bytes = 0;
+        ByteBuffer buffer = KVSUtils.getByteBufferFromStream(reader, fragmentVisitor, tagProcessor, CONTACT_ID);
+        while (buffer.remaining() > 0) {
+            bytes += buffer.remaining();
+            buffer = KVSUtils.getByteBufferFromStream(reader, fragmentVisitor, tagProcessor, CONTACT_ID);
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long chunked() throws MkvElementVisitException {
+        long bytes = 0;
+        ByteBuffer buffer = KVSUtils.getByteBufferFromStream(reader, fragmentVisitor, tagProcessor, CONTACT_ID,
+                CHUNK_SIZE_IN_KB);
+        while (buffer.remaining() > 0) {
+            bytes += buffer.remaining();
+            buffer = KVSUtils.getByteBufferFromStream(reader, fragmentVisitor, tagProcessor, CONTACT_ID,
+                    CHUNK_SIZE_IN_KB);
+        }
+        return bytes;
+    }
+}
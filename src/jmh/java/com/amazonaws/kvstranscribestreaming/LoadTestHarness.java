@@ -0,0 +1,412 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.services.cloudwatch.AbstractAmazonCloudWatch;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataResult;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.transcribestreaming.KVSByteToAudioEventSubscription;
+import com.amazonaws.transcribestreaming.StreamTranscriptionBehavior;
+import com.amazonaws.transcribestreaming.StreamTranscriptionBehaviorImpl;
+import com.amazonaws.transcribestreaming.StubTranscribeStreamingAsyncClient;
+import com.amazonaws.transcribestreaming.TranscribeStreamingRetryClient;
+import com.amazonaws.transcribestreaming.TranscriptEventDispatcher;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.OperatingSystemMXBean;
+import org.reactivestreams.Publisher;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+import software.amazon.awssdk.services.transcribestreaming.model.LanguageCode;
+import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-call load-test harness. Drives N simulated calls at a time through the real pipeline classes
+ * ({@link KVSByteToAudioEventSubscription}, {@link TranscribeStreamingRetryClient},
+ * {@link StreamTranscriptionBehaviorImpl}, {@link TranscribedSegmentWriter} and the WAV conversion) with local
+ * stand-ins for the AWS services:
+ * <ul>
+ * <li>an in-memory Chime MKV stream released at real-time speed instead of GetMedia</li>
+ * <li>{@link StubTranscribeStreamingAsyncClient} instead of Transcribe</li>
+ * <li>{@link InMemoryAmazonDynamoDB} instead of the TranscriptionsData table</li>
+ * </ul>
+ * For every concurrency step it reports the end-to-end latency of final segments (audio spoken to segment
+ * written), the time calls take past the end of their audio, process CPU, heap, thread count and GC pauses,
+ * and writes all steps to a JSON file.
+ *
+ * <p>Settings are read from system properties, see {@code loadTest} in build.gradle.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class LoadTestHarness {
+
+    private static final String CONTACT_ID = "24f48be4-2036-41d5-a6f8-f25e486b76c6";
+    private static final int FRAMES_PER_FRAGMENT = 64;
+
+    private final int[] concurrencySteps = intList(System.getProperty("loadtest.concurrency", "1,10,25,50,100"));
+    private final int callSeconds = Integer.getInteger("loadtest.callSeconds", 60);
+    private final int frameSize = Integer.getInteger("loadtest.frameSize", 1024);
+    private final double speed = Double.parseDouble(System.getProperty("loadtest.speed", "1.0"));
+    private final long transcribeLatencyMillis = Long.getLong("loadtest.transcribeLatencyMillis", 300);
+    private final double transcribeErrorRate =
+            Double.parseDouble(System.getProperty("loadtest.transcribeErrorRate", "0.0"));
+    private final int segmentSeconds = Integer.getInteger("loadtest.segmentSeconds", 5);
+    private final int eventLoopThreads = Integer.getInteger("loadtest.eventLoopThreads",
+            2 * Runtime.getRuntime().availableProcessors());
+    private final int handlerThreads = Integer.getInteger("loadtest.handlerThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final long ddbLatencyMillis = Long.getLong("loadtest.ddbLatencyMillis", 5);
+    private final File resultsFile = new File(System.getProperty("loadtest.resultsFile",
+            "build/reports/loadtest/results.json"));
+
+    private final MetricsUtil metricsUtil = new MetricsUtil(new AbstractAmazonCloudWatch() {
+        @Override
+        public PutMetricDataResult putMetricData(PutMetricDataRequest request) {
+            return new PutMetricDataResult();
+        }
+    });
+
+    public static void main(String[] args) throws Exception {
+        new LoadTestHarness().run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        int frames = callSeconds * MkvFixtures.SAMPLE_RATE * MkvFixtures.BYTES_PER_SAMPLE / frameSize;
+        byte[] stream = MkvFixtures.chimeAudioStream(Math.max(1, frames / FRAMES_PER_FRAGMENT), FRAMES_PER_FRAGMENT,
+                frameSize, CONTACT_ID);
+        double streamBytesPerSecond = speed * stream.length / callSeconds;
+
+        List<Map<String, Object>> steps = new ArrayList<>();
+        System.out.println(String.format("%-6s %6s %6s %9s %9s %9s %9s %10s %7s %9s %8s %6s %9s %9s",
+                "calls", "ok", "failed", "seg p50", "seg p90", "seg p99", "seg max", "tail p99", "cpu",
+                "heap MB", "threads", "gcs", "gc p99", "gc max"));
+
+        for (int concurrency : concurrencySteps) {
+            Map<String, Object> step = runStep(concurrency, stream, streamBytesPerSecond);
+            steps.add(step);
+            System.out.println(String.format("%-6d %6d %6d %7dms %7dms %7dms %7dms %8dms %7.2f %9d %8d %6d %7dms %7dms",
+                    concurrency, step.get("completedCalls"), step.get("failedCalls"),
+                    step.get("segmentLatencyP50Millis"), step.get("segmentLatencyP90Millis"),
+                    step.get("segmentLatencyP99Millis"), step.get("segmentLatencyMaxMillis"),
+                    step.get("callTailP99Millis"), step.get("cpuCores"), step.get("heapUsedMaxMB"),
+                    step.get("threadsMax"), step.get("gcPauses"), step.get("gcPauseP99Millis"),
+                    step.get("gcPauseMaxMillis")));
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("callSeconds", callSeconds);
+        report.put("speed", speed);
+        report.put("transcribeLatencyMillis", transcribeLatencyMillis);
+        report.put("transcribeErrorRate", transcribeErrorRate);
+        report.put("ddbLatencyMillis", ddbLatencyMillis);
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("maxHeapMB", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        report.put("steps", steps);
+        resultsFile.getAbsoluteFile().getParentFile().mkdirs();
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(resultsFile, report);
+        System.out.println("Results written to " + resultsFile.getAbsolutePath());
+    }
+
+    private Map<String, Object> runStep(int concurrency, byte[] stream, double streamBytesPerSecond)
+            throws InterruptedException {
+        InMemoryAmazonDynamoDB amazonDynamoDB = new InMemoryAmazonDynamoDB(ddbLatencyMillis)
+                .withTable("TranscriptionsData", "CallId", "SequenceNumber");
+        DynamoDB dynamoDB = new DynamoDB(amazonDynamoDB);
+        StubTranscribeStreamingAsyncClient transcribeClient = new StubTranscribeStreamingAsyncClient(
+                transcribeLatencyMillis, transcribeErrorRate, segmentSeconds, eventLoopThreads);
+        TranscriptEventDispatcher dispatcher = new TranscriptEventDispatcher(handlerThreads, 1000, metricsUtil);
+
+        ConcurrentLinkedQueue<Long> segmentLatencies = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Long> callTails = new ConcurrentLinkedQueue<>();
+        AtomicInteger failedCalls = new AtomicInteger();
+        ResourceSampler sampler = new ResourceSampler();
+        ExecutorService callExecutor = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+
+        System.gc();
+        sampler.start();
+        for (int i = 0; i < concurrency; i++) {
+            callExecutor.execute(() -> {
+                try {
+                    // spread call starts over a second, as real calls don't start in lockstep
+                    TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextInt(1000));
+                    long callStartNanos = System.nanoTime();
+                    simulateCall(stream, streamBytesPerSecond, transcribeClient, dispatcher, dynamoDB,
+                            callStartNanos, segmentLatencies);
+                    long tailNanos = System.nanoTime() - callStartNanos
+                            - (long) (TimeUnit.SECONDS.toNanos(callSeconds) / speed);
+                    callTails.add(TimeUnit.NANOSECONDS.toMillis(Math.max(0, tailNanos)));
+                } catch (Exception e) {
+                    failedCalls.incrementAndGet();
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        Map<String, Object> step = sampler.stop();
+        callExecutor.shutdown();
+        transcribeClient.close();
+        dispatcher.close();
+
+        List<Long> latencies = sorted(segmentLatencies);
+        List<Long> tails = sorted(callTails);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("concurrency", concurrency);
+        result.put("completedCalls", concurrency - failedCalls.get());
+        result.put("failedCalls", failedCalls.get());
+        result.put("segments", latencies.size());
+        result.put("ddbWrites", amazonDynamoDB.getWriteCount());
+        result.put("droppedPartialResults", dispatcher.getDroppedCount());
+        result.put("failedTranscriptCallbacks", dispatcher.getFailedCount());
+        result.put("segmentLatencyP50Millis", percentile(latencies, 50));
+        result.put("segmentLatencyP90Millis", percentile(latencies, 90));
+        result.put("segmentLatencyP99Millis", percentile(latencies, 99));
+        result.put("segmentLatencyMaxMillis", percentile(latencies, 100));
+        result.put("callTailP50Millis", percentile(tails, 50));
+        result.put("callTailP99Millis", percentile(tails, 99));
+        result.putAll(step);
+        return result;
+    }
+
+    /**
+     * Runs one call the same way KVSTranscribeStreamingEngine does: stream to Transcribe while writing the raw
+     * audio to a temporary file, then convert it to WAV. The S3 upload itself is skipped.
+     */
+    private void simulateCall(byte[] stream, double streamBytesPerSecond,
+                              StubTranscribeStreamingAsyncClient transcribeClient,
+                              TranscriptEventDispatcher dispatcher, DynamoDB dynamoDB,
+                              long callStartNanos, ConcurrentLinkedQueue<Long> segmentLatencies) throws Exception {
+        String transactionId = UUID.randomUUID().toString();
+        Path rawFile = Files.createTempFile(transactionId, ".raw");
+        File wavFile = null;
+        try (FileOutputStream fileOutputStream = new FileOutputStream(rawFile.toFile())) {
+            StreamingMkvReader streamingMkvReader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(
+                    new PacedInputStream(new ByteArrayInputStream(stream), streamBytesPerSecond)));
+            FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor =
+                    new FragmentMetadataVisitor.BasicMkvTagProcessor();
+            FragmentMetadataVisitor fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+            Publisher<AudioStream> publisher = s -> s.onSubscribe(new KVSByteToAudioEventSubscription(s,
+                    streamingMkvReader, CONTACT_ID, fileOutputStream, tagProcessor, fragmentVisitor, true));
+
+            // the retry client is not closed, it would close the Transcribe client shared by all calls
+            TranscribeStreamingRetryClient client = new TranscribeStreamingRetryClient(transcribeClient, metricsUtil);
+            TranscribedSegmentWriter segmentWriter = new TranscribedSegmentWriter(transactionId, dynamoDB, false);
+            TranscriptEventDispatcher.Session session = dispatcher.open(transactionId,
+                    new LatencyRecordingBehavior(new StreamTranscriptionBehaviorImpl(segmentWriter), callStartNanos,
+                            segmentLatencies));
+            client.startStreamTranscription(getRequest(8000), publisher, session)
+                    .get((long) (3 * callSeconds / speed) + 60, TimeUnit.SECONDS);
+            session.drain(TimeUnit.SECONDS.toMillis(30));
+            session.close();
+        }
+        try {
+            if (rawFile.toFile().length() > 0) {
+                wavFile = AudioUtils.convertToWav(rawFile.toString());
+            }
+        } finally {
+            Files.deleteIfExists(rawFile);
+            if (wavFile != null) {
+                wavFile.delete();
+            }
+        }
+    }
+
+    private static StartStreamTranscriptionRequest getRequest(Integer mediaSampleRateHertz) {
+        return StartStreamTranscriptionRequest.builder().languageCode(LanguageCode.EN_US.toString())
+                .mediaEncoding(MediaEncoding.PCM).mediaSampleRateHertz(mediaSampleRateHertz).build();
+    }
+
+    /**
+     * Records, for every final segment, the time between the end of the segment being spoken (the stream is
+     * released at real-time speed from the call start) and the segment having been written.
+     */
+    private final class LatencyRecordingBehavior implements StreamTranscriptionBehavior {
+        private final StreamTranscriptionBehavior delegate;
+        private final long callStartNanos;
+        private final ConcurrentLinkedQueue<Long> segmentLatencies;
+
+        private LatencyRecordingBehavior(StreamTranscriptionBehavior delegate, long callStartNanos,
+                                         ConcurrentLinkedQueue<Long> segmentLatencies) {
+            this.delegate = delegate;
+            this.callStartNanos = callStartNanos;
+            this.segmentLatencies = segmentLatencies;
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            delegate.onError(e);
+        }
+
+        @Override
+        public void onStream(TranscriptResultStream e) {
+            delegate.onStream(e);
+            for (Result result : ((TranscriptEvent) e).transcript().results()) {
+                if (!result.isPartial()) {
+                    long spokenNanos = callStartNanos + (long) (TimeUnit.SECONDS.toNanos(1) * result.endTime() / speed);
+                    segmentLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - spokenNanos));
+                }
+            }
+        }
+
+        @Override
+        public void onResponse(StartStreamTranscriptionResponse r) {
+            delegate.onResponse(r);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+    }
+
+    /**
+     * Samples CPU, heap and thread count while a step runs and collects every GC pause through JMX
+     * notifications.
+     */
+    private static final class ResourceSampler {
+        private static final long SAMPLE_INTERVAL_MILLIS = 200;
+
+        private final OperatingSystemMXBean os =
+                (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final ConcurrentLinkedQueue<Long> gcPauses = new ConcurrentLinkedQueue<>();
+        private final NotificationListener gcListener = (notification, handback) -> {
+            if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                gcPauses.add(GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData()).getGcInfo().getDuration());
+            }
+        };
+        private Thread thread;
+        private volatile boolean running;
+        private volatile long heapUsedMax;
+        private volatile int threadsMax;
+        private long startNanos;
+        private long startCpuNanos;
+
+        private void start() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                ((NotificationEmitter) gc).addNotificationListener(gcListener, null, null);
+            }
+            startNanos = System.nanoTime();
+            startCpuNanos = os.getProcessCpuTime();
+            running = true;
+            thread = new Thread(() -> {
+                while (running) {
+                    heapUsedMax = Math.max(heapUsedMax, memory.getHeapMemoryUsage().getUsed());
+                    threadsMax = Math.max(threadsMax, threads.getThreadCount());
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(SAMPLE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "load-test-resource-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private Map<String, Object> stop() throws InterruptedException {
+            running = false;
+            thread.interrupt();
+            thread.join();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                try {
+                    ((NotificationEmitter) gc).removeNotificationListener(gcListener);
+                } catch (javax.management.ListenerNotFoundException e) {
+                    // not registered on this collector
+                }
+            }
+            long wallNanos = System.nanoTime() - startNanos;
+            List<Long> pauses = sorted(gcPauses);
+            long pauseTotal = 0;
+            for (long pause : pauses) {
+                pauseTotal += pause;
+            }
+
+            Map<String, Object> step = new LinkedHashMap<>();
+            step.put("wallSeconds", TimeUnit.NANOSECONDS.toSeconds(wallNanos));
+            step.put("cpuCores", Math.round(100.0 * (os.getProcessCpuTime() - startCpuNanos) / wallNanos) / 100.0);
+            step.put("heapUsedMaxMB", heapUsedMax / (1024 * 1024));
+            step.put("threadsMax", threadsMax);
+            step.put("gcPauses", pauses.size());
+            step.put("gcPauseTotalMillis", pauseTotal);
+            step.put("gcPauseP99Millis", percentile(pauses, 99));
+            step.put("gcPauseMaxMillis", percentile(pauses, 100));
+            return step;
+        }
+    }
+
+    private static List<Long> sorted(ConcurrentLinkedQueue<Long> values) {
+        List<Long> list = new ArrayList<>(values);
+        Collections.sort(list);
+        return list;
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static int[] intList(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
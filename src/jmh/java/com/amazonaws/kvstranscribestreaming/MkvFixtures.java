@@ -0,0 +1,181 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Builds in-memory MKV streams shaped like the GetMedia output of an Amazon Chime Voice Connector stream: one
+ * EBML header + Segment per fragment, a single 8 kHz PCM audio track, KVS fragment metadata tags ahead of the
+ * Cluster and the ContactId/TransactionId producer tags after it.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class MkvFixtures {
+
+    public static final int SAMPLE_RATE = 8000;
+    public static final int BYTES_PER_SAMPLE = 2;
+
+    private static final long START_EPOCH_MILLIS = 1569600485134L;
+
+    private MkvFixtures() {
+    }
+
+    /**
+     * Builds a stream of {@code fragmentCount} fragments, each holding {@code framesPerFragment} frames of
+     * {@code frameSize} bytes of pseudo-random PCM.
+     *
+     * @param fragmentCount
+     * @param framesPerFragment
+     * @param frameSize
+     * @param contactId value of the ContactId tag written after every fragment
+     * @return
+     */
+    public static byte[] chimeAudioStream(int fragmentCount, int framesPerFragment, int frameSize, String contactId) {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long fragmentStartMillis = START_EPOCH_MILLIS;
+        long frameMillis = frameSize * 1000L / (SAMPLE_RATE * BYTES_PER_SAMPLE);
+
+        for (int fragment = 0; fragment < fragmentCount; fragment++) {
+            byte[] frame = new byte[frameSize];
+            ByteArrayOutputStream cluster = new ByteArrayOutputStream();
+            write(cluster, element(0xE7, uint(fragmentStartMillis)));
+            for (int i = 0; i < framesPerFragment; i++) {
+                random.nextBytes(frame);
+                write(cluster, element(0xA3, simpleBlock(1, (int) (i * frameMillis), frame)));
+            }
+
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            write(segment, element(0x1549A966, element(0x2AD7B1, uint(1000000))));
+            write(segment, element(0x1654AE6B, element(0xAE, concat(
+                    element(0xD7, uint(1)),
+                    element(0x73C5, uint(1)),
+                    element(0x83, uint(2)),
+                    element(0x86, ascii("A_PCM/INT/LIT")),
+                    element(0xE1, concat(
+                            element(0xB5, float64(SAMPLE_RATE)),
+                            element(0x9F, uint(1)),
+                            element(0x6264, uint(16))))))));
+            write(segment, tags(
+                    "AWS_KINESISVIDEO_FRAGMENT_NUMBER", fragmentNumber(fragment),
+                    "AWS_KINESISVIDEO_SERVER_TIMESTAMP", seconds(fragmentStartMillis + 30),
+                    "AWS_KINESISVIDEO_PRODUCER_TIMESTAMP", seconds(fragmentStartMillis)));
+            write(segment, element(0x1F43B675, cluster.toByteArray()));
+            write(segment, tags(
+                    "ContactId", contactId,
+                    "TransactionId", contactId,
+                    "AWS_KINESISVIDEO_MILLIS_BEHIND_NOW", "0",
+                    "AWS_KINESISVIDEO_CONTINUATION_TOKEN", fragmentNumber(fragment)));
+
+            write(out, element(0x1A45DFA3, concat(
+                    element(0x4286, uint(1)),
+                    element(0x42F7, uint(1)),
+                    element(0x42F2, uint(4)),
+                    element(0x42F3, uint(8)),
+                    element(0x4282, ascii("matroska")),
+                    element(0x4287, uint(2)),
+                    element(0x4285, uint(2)))));
+            write(out, element(0x18538067, segment.toByteArray()));
+
+            fragmentStartMillis += framesPerFragment * frameMillis;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Builds {@code seconds} of raw 8 kHz 16 bit mono PCM, as written to the temporary recording file.
+     *
+     * @param seconds
+     * @return
+     */
+    public static byte[] rawAudio(int seconds) {
+        byte[] audio = new byte[seconds * SAMPLE_RATE * BYTES_PER_SAMPLE];
+        new Random(42).nextBytes(audio);
+        return audio;
+    }
+
+    public static String fragmentNumber(int fragment) {
+        return "9134385233318257624927836231461963773760800" + String.format("%04d", fragment);
+    }
+
+    private static String seconds(long epochMillis) {
+        return String.format("%d.%03d", epochMillis / 1000, epochMillis % 1000);
+    }
+
+    private static byte[] tags(String... nameValuePairs) {
+        ByteArrayOutputStream simpleTags = new ByteArrayOutputStream();
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            write(simpleTags, element(0x67C8, concat(
+                    element(0x45A3, ascii(nameValuePairs[i])),
+                    element(0x4487, ascii(nameValuePairs[i + 1])))));
+        }
+        return element(0x1254C367, element(0x7373, simpleTags.toByteArray()));
+    }
+
+    private static byte[] simpleBlock(int trackNumber, int relativeTimecode, byte[] frame) {
+        byte[] block = new byte[4 + frame.length];
+        block[0] = (byte) (0x80 | trackNumber);
+        block[1] = (byte) (relativeTimecode >> 8);
+        block[2] = (byte) relativeTimecode;
+        block[3] = (byte) 0x80; // keyframe
+        System.arraycopy(frame, 0, block, 4, frame.length);
+        return block;
+    }
+
+    /**
+     * Encodes an element with an 8 byte data size so that sizes never have to be computed up front.
+     */
+    private static byte[] element(int id, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 12);
+        int idLength = id > 0xFFFFFF ? 4 : id > 0xFFFF ? 3 : id > 0xFF ? 2 : 1;
+        for (int i = idLength - 1; i >= 0; i--) {
+            out.write(id >>> (8 * i));
+        }
+        out.write(0x01);
+        for (int i = 6; i >= 0; i--) {
+            out.write((int) ((long) data.length >>> (8 * i)));
+        }
+        write(out, data);
+        return out.toByteArray();
+    }
+
+    private static byte[] uint(long value) {
+        return new byte[]{
+                (byte) (value >>> 56), (byte) (value >>> 48), (byte) (value >>> 40), (byte) (value >>> 32),
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static byte[] float64(double value) {
+        return uint(Double.doubleToLongBits(value));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,77 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases the bytes of the wrapped stream no faster than a fixed rate, so an in-memory MKV stream arrives the
+ * way a live GetMedia stream does.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class PacedInputStream extends FilterInputStream {
+
+    private final double bytesPerNano;
+    private long startNanos = -1;
+    private long released;
+
+    public PacedInputStream(InputStream in, double bytesPerSecond) {
+        super(in);
+        this.bytesPerNano = bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long allowed = allowed();
+        while (allowed <= 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while pacing the stream", e);
+            }
+            allowed = allowed();
+        }
+        int read = super.read(b, off, (int) Math.min(len, allowed));
+        if (read > 0) {
+            released += read;
+        }
+        return read;
+    }
+
+    /**
+     * Reports only the bytes that may be released now, since the MKV reader only parses what is available.
+     */
+    @Override
+    public int available() throws IOException {
+        return (int) Math.max(0, Math.min(super.available(), allowed()));
+    }
+
+    private long allowed() {
+        if (startNanos < 0) {
+            startNanos = System.nanoTime();
+        }
+        return (long) ((System.nanoTime() - startNanos) * bytesPerNano) - released;
+    }
+}
@@ -0,0 +1,158 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cold start of the function with and without class-data sharing. Every run starts a new JVM in the
+ * staged application directory of the {@code cdsArchive} task, which creates the Lambda handler, the way the
+ * Lambda runtime does on a cold start, and exits. Three setups are compared: sharing off, the JDK's own archive
+ * (the default) and the application archive. For each, the median of {@code startup.runs} runs is reported:
+ *
+ * <ul>
+ * <li>the wall time of the process</li>
+ * <li>the JVM boot time before {@code main}</li>
+ * <li>the time to load and initialize the handler with its engine and clients</li>
+ * <li>the classes loaded and how many of them came from the archive, counted in one extra run with class
+ * loading logged</li>
+ * </ul>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class StartupBenchmark {
+
+    private static final String PROBE = "probe";
+
+    private final File appDir = new File(System.getProperty("startup.appDir", "build/app"));
+    private final String probeClasspath = System.getProperty("startup.probeClasspath", "");
+    private final int runs = Integer.getInteger("startup.runs", 10);
+    private final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && PROBE.equals(args[0])) {
+            probe();
+        } else {
+            new StartupBenchmark().run();
+        }
+    }
+
+    // runs in the child JVM
+    private static void probe() {
+        long bootMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        long start = System.nanoTime();
+        new KVSTranscribeStreamingLambda();
+        long initMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(PROBE + " " + bootMillis + " " + initMillis + " "
+                + ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount());
+        // the engine's executors are not daemon threads
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        String classpath = appClasspath();
+        System.out.println(String.format("%-12s %9s %9s %9s %8s %8s", "sharing", "wall", "jvm boot", "init",
+                "classes", "shared"));
+        report("off", classpath, "-Xshare:off");
+        report("jdk archive", classpath, "-Xshare:auto");
+        report("app archive", classpath, "-Xshare:auto", "-XX:SharedArchiveFile=app-cds.jsa");
+    }
+
+    private void report(String name, String classpath, String... jvmArgs) throws Exception {
+        List<Long> wall = new ArrayList<>();
+        List<Long> boot = new ArrayList<>();
+        List<Long> init = new ArrayList<>();
+        long classes = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            List<String> output = launch(classpath, jvmArgs);
+            wall.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            String[] probe = probeLine(output).split(" ");
+            boot.add(Long.parseLong(probe[1]));
+            init.add(Long.parseLong(probe[2]));
+            classes = Long.parseLong(probe[3]);
+        }
+
+        List<String> logArgs = new ArrayList<>(Arrays.asList(jvmArgs));
+        logArgs.add("-Xlog:class+load=info:stdout");
+        long shared = launch(classpath, logArgs.toArray(new String[0])).stream()
+                .filter(line -> line.contains("source: shared objects file")).count();
+
+        System.out.println(String.format("%-12s %7dms %7dms %7dms %8d %8d", name, median(wall), median(boot),
+                median(init), classes, shared));
+    }
+
+    private List<String> launch(String classpath, String... jvmArgs) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(Arrays.asList(jvmArgs));
+        command.add("-cp");
+        command.add(probeClasspath.isEmpty() ? classpath : classpath + File.pathSeparator + probeClasspath);
+        command.add(StartupBenchmark.class.getName());
+        command.add(PROBE);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command).directory(appDir).redirectErrorStream(true);
+        // the engine needs a region to build its clients, they send no request
+        processBuilder.environment().putIfAbsent("AWS_REGION", "us-east-1");
+        Process process = processBuilder.start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Startup probe failed: " + String.join("\n", output));
+        }
+        return output;
+    }
+
+    // the class path has to start with the one the archive was dumped with, which jvm.options holds
+    private String appClasspath() throws IOException {
+        for (String line : Files.readAllLines(new File(appDir, "jvm.options").toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("-cp ")) {
+                return line.substring("-cp ".length()).trim();
+            }
+        }
+        throw new IllegalStateException("No class path in " + new File(appDir, "jvm.options"));
+    }
+
+    private static String probeLine(List<String> output) {
+        for (String line : output) {
+            if (line.startsWith(PROBE + " ")) {
+                return line;
+            }
+        }
+        throw new IllegalStateException("Startup probe printed no result: " + String.join("\n", output));
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
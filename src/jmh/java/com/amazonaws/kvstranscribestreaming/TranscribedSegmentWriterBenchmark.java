@@ -0,0 +1,81 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TranscribedSegmentWriter#toSegment} and {@link DynamoDBTranscriptSink#toDynamoDbItem} for a
+ * typical final segment of a dozen words.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranscribedSegmentWriterBenchmark {
+
+    private static final String TRANSCRIPT = "thank you for calling how can I help you with your account today";
+
+    private TranscribedSegmentWriter segmentWriter;
+    private Result result;
+
+    @Setup
+    public void createResult() {
+        segmentWriter = new TranscribedSegmentWriter("24f48be4-2036-41d5-a6f8-f25e486b76c6",
+                new DynamoDB(new AbstractAmazonDynamoDB() {
+                }), false);
+
+        List<software.amazon.awssdk.services.transcribestreaming.model.Item> items = new ArrayList<>();
+        double time = 12.5;
+        for (String word : TRANSCRIPT.split(" ")) {
+            items.add(software.amazon.awssdk.services.transcribestreaming.model.Item.builder()
+                    .content(word).type("pronunciation").startTime(time).endTime(time + 0.3).build());
+            time += 0.35;
+        }
+        result = Result.builder()
+                .resultId("5b0c4f7a-4fa1-4a47-a0b7-0b3e1b1d9e21")
+                .startTime(12.5)
+                .endTime(time)
+                .isPartial(false)
+                .alternatives(Alternative.builder().transcript(TRANSCRIPT).items(items).build())
+                .build();
+    }
+
+    @Benchmark
+    public Item toDynamoDbItem() {
+        return DynamoDBTranscriptSink.toDynamoDbItem(segmentWriter.toSegment(result));
+    }
+}
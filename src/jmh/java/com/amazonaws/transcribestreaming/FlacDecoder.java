@@ -0,0 +1,274 @@
+package com.amazonaws.transcribestreaming;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Decodes the FLAC streams {@link FlacEncoder} writes back to 16 bit little-endian PCM, checking the stream as it
+ * goes: the STREAMINFO block, the sync code, CRC-8 and CRC-16 of every frame, consecutive frame numbers and zero
+ * padding. It reads what the encoder uses, mono 16 bit audio in constant, verbatim and fixed prediction subframes,
+ * and fails on anything else, so the benchmarks can verify the encoder round trips before they measure it.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+final class FlacDecoder {
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final byte[] data;
+    // position in bits
+    private long position;
+    private int sampleRateHertz;
+    private int frames;
+
+    private FlacDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @param flac a whole FLAC stream, from the "fLaC" marker to the end of the last frame
+     * @return the decoded samples as 16 bit little-endian PCM
+     * @throws IllegalStateException if the stream is malformed or uses features the encoder does not
+     */
+    static byte[] decode(byte[] flac) {
+        return new FlacDecoder(flac).decode();
+    }
+
+    private byte[] decode() {
+        check(readBits(32) == 0x664C6143, "no fLaC marker");
+        readMetadata();
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        while (position < 8L * data.length) {
+            for (int sample : readFrame()) {
+                pcm.write(sample);
+                pcm.write(sample >> 8);
+            }
+        }
+        return pcm.toByteArray();
+    }
+
+    private void readMetadata() {
+        boolean last;
+        boolean streamInfo = false;
+        do {
+            last = readBits(1) == 1;
+            int type = (int) readBits(7);
+            int length = (int) readBits(24);
+            if (type == 0) {
+                check(length == 34, "STREAMINFO of " + length + " bytes");
+                int minBlockSize = (int) readBits(16);
+                int maxBlockSize = (int) readBits(16);
+                check(minBlockSize >= 16 && minBlockSize <= maxBlockSize, "block sizes " + minBlockSize + " to "
+                        + maxBlockSize);
+                readBits(24);
+                readBits(24);
+                sampleRateHertz = (int) readBits(20);
+                check(readBits(3) == 0, "more than one channel");
+                check(readBits(5) == 15, "not 16 bits per sample");
+                readBits(36);
+                position += 128;
+                streamInfo = true;
+            } else {
+                position += 8L * length;
+            }
+        } while (!last);
+        check(streamInfo, "no STREAMINFO");
+    }
+
+    private int[] readFrame() {
+        check(position % 8 == 0, "frame not byte aligned");
+        int frameStart = (int) (position / 8);
+        check(readBits(15) == 0x7FFC, "no frame sync code at byte " + frameStart);
+        check(readBits(1) == 0, "variable block size");
+        int blockSizeCode = (int) readBits(4);
+        int sampleRateCode = (int) readBits(4);
+        check(readBits(4) == 0, "more than one channel");
+        long sampleSizeCode = readBits(3);
+        check(sampleSizeCode == 0 || sampleSizeCode == 0b100, "not 16 bits per sample");
+        check(readBits(1) == 0, "reserved bit set");
+        check(readFrameNumber() == frames, "frame " + frames + " out of order");
+
+        int n;
+        if (blockSizeCode == 1) {
+            n = 192;
+        } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+            n = 576 << (blockSizeCode - 2);
+        } else if (blockSizeCode == 6) {
+            n = (int) readBits(8) + 1;
+        } else if (blockSizeCode == 7) {
+            n = (int) readBits(16) + 1;
+        } else {
+            check(blockSizeCode >= 8, "reserved block size");
+            n = 256 << (blockSizeCode - 8);
+        }
+        if (sampleRateCode == 0b1100) {
+            check(readBits(8) * 1000 == sampleRateHertz, "sample rate differs from STREAMINFO");
+        } else if (sampleRateCode == 0b1101 || sampleRateCode == 0b1110) {
+            readBits(16);
+        }
+        int headerEnd = (int) (position / 8);
+        check(readBits(8) == crc8(frameStart, headerEnd), "frame header CRC-8 mismatch in frame " + frames);
+
+        int[] samples = readSubframe(n);
+        while (position % 8 != 0) {
+            check(readBits(1) == 0, "padding not zero");
+        }
+        int frameEnd = (int) (position / 8);
+        check(readBits(16) == crc16(frameStart, frameEnd), "frame CRC-16 mismatch in frame " + frames);
+        frames++;
+        return samples;
+    }
+
+    private long readFrameNumber() {
+        int first = (int) readBits(8);
+        int continuationBytes = first < 0x80 ? 0 : Integer.numberOfLeadingZeros(~(first << 24)) - 1;
+        check(continuationBytes >= 0 && continuationBytes <= 5, "invalid frame number");
+        long number = first & (continuationBytes == 0 ? 0x7F : 0x7F >> (continuationBytes + 1));
+        for (int i = 0; i < continuationBytes; i++) {
+            int next = (int) readBits(8);
+            check((next & 0xC0) == 0x80, "invalid frame number");
+            number = (number << 6) | (next & 0x3F);
+        }
+        return number;
+    }
+
+    private int[] readSubframe(int n) {
+        check(readBits(1) == 0, "subframe padding bit set");
+        int type = (int) readBits(6);
+        check(readBits(1) == 0, "wasted bits");
+        int[] samples = new int[n];
+        if (type == 0) {
+            int value = readSigned(16);
+            for (int i = 0; i < n; i++) {
+                samples[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < n; i++) {
+                samples[i] = readSigned(16);
+            }
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                samples[i] = readSigned(16);
+            }
+            readResidual(samples, order, n);
+            restore(samples, order, n);
+        } else {
+            throw new IllegalStateException("Unsupported subframe type " + type);
+        }
+        return samples;
+    }
+
+    private void readResidual(int[] residual, int order, int n) {
+        int method = (int) readBits(2);
+        check(method <= 1, "reserved residual coding");
+        int parameterBits = method == 0 ? 4 : 5;
+        int partitionOrder = (int) readBits(4);
+        int partitions = 1 << partitionOrder;
+        int partitionSize = n >> partitionOrder;
+        check(partitionSize << partitionOrder == n && partitionSize >= order, "invalid partition order");
+        for (int p = 0, i = order; p < partitions; p++) {
+            int parameter = (int) readBits(parameterBits);
+            int end = (p + 1) * partitionSize;
+            if (parameter == (1 << parameterBits) - 1) {
+                int bits = (int) readBits(5);
+                for (; i < end; i++) {
+                    residual[i] = bits == 0 ? 0 : readSigned(bits);
+                }
+                continue;
+            }
+            for (; i < end; i++) {
+                long quotient = 0;
+                while (readBits(1) == 0) {
+                    quotient++;
+                }
+                long folded = (quotient << parameter) | readBits(parameter);
+                residual[i] = (int) ((folded >>> 1) ^ -(folded & 1));
+            }
+        }
+    }
+
+    private static void restore(int[] x, int order, int n) {
+        for (int i = order; i < n; i++) {
+            switch (order) {
+                case 0:
+                    break;
+                case 1:
+                    x[i] += x[i - 1];
+                    break;
+                case 2:
+                    x[i] += 2 * x[i - 1] - x[i - 2];
+                    break;
+                case 3:
+                    x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    break;
+                default:
+                    x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    break;
+            }
+            check(x[i] >= Short.MIN_VALUE && x[i] <= Short.MAX_VALUE, "sample out of range");
+        }
+    }
+
+    private int readSigned(int bits) {
+        long value = readBits(bits);
+        return (int) (value << (64 - bits) >> (64 - bits));
+    }
+
+    private long readBits(int bits) {
+        check(position + bits <= 8L * data.length, "stream ends inside a frame");
+        long value = 0;
+        for (int i = 0; i < bits; i++, position++) {
+            value = (value << 1) | ((data[(int) (position >>> 3)] >> (7 - (position & 7))) & 1);
+        }
+        return value;
+    }
+
+    private int crc8(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[crc ^ (data[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    private int crc16(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) & 0xFFFF) ^ CRC16_TABLE[(crc >>> 8) ^ (data[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    private static void check(boolean condition, String problem) {
+        if (!condition) {
+            throw new IllegalStateException("Invalid FLAC stream: " + problem);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.amazonaws.transcribestreaming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FlacEncoder} on one minute of call audio fed in live edge chunks, the way
+ * {@link KVSByteToAudioEventSubscription} feeds it. The score is the time to encode a minute of one call leg, so
+ * 60000 divided by the score is the number of legs one core keeps up with. The compression ratio is printed at the
+ * end of the trial.
+ *
+ * <p>Before measuring, the trial decodes what the encoder wrote with {@link FlacDecoder}, fed in live edge chunks
+ * and in odd sized chunks that split samples, and fails unless every frame checks out and the audio comes back
+ * bit for bit.</p>
+ *
+ * <p>Random bytes do not compress, so the audio is synthesized speech: a voiced signal with a moving pitch and
+ * harmonics, syllable shaped loudness and a line noise floor.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlacEncoderBenchmark {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int CALL_SECONDS = 60;
+
+    // 160 samples is one 20 ms Chime frame, 640 the default live edge chunk of 4 frames
+    @Param({"160", "640"})
+    public int blockSize;
+
+    private byte[] audio;
+    private long pcmBytes;
+    private long flacBytes;
+
+    @Setup(Level.Trial)
+    public void synthesizeAudio() {
+        audio = speech(CALL_SECONDS);
+        verifyRoundTrip(blockSize * 2);
+        // odd chunks leave half a sample for the next one
+        verifyRoundTrip(blockSize * 2 + 333);
+    }
+
+    @TearDown(Level.Trial)
+    public void printCompression() {
+        System.out.printf("%nFLAC with %d sample blocks: %.3f of the PCM size%n", blockSize,
+                (double) flacBytes / pcmBytes);
+    }
+
+    @Benchmark
+    public long encodeCallMinute() {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, blockSize);
+        int chunkBytes = blockSize * 2;
+        long encoded = 0;
+        for (int position = 0; position < audio.length; position += chunkBytes) {
+            encoded += encoder.encode(ByteBuffer.wrap(audio, position,
+                    Math.min(chunkBytes, audio.length - position))).remaining();
+        }
+        encoded += encoder.flush().remaining();
+        pcmBytes += audio.length;
+        flacBytes += encoded;
+        return encoded;
+    }
+
+    private void verifyRoundTrip(int chunkBytes) {
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE, blockSize);
+        ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        for (int position = 0; position < audio.length; position += chunkBytes) {
+            write(flac, encoder.encode(ByteBuffer.wrap(audio, position,
+                    Math.min(chunkBytes, audio.length - position))));
+        }
+        write(flac, encoder.flush());
+        if (!Arrays.equals(FlacDecoder.decode(flac.toByteArray()), audio)) {
+            throw new IllegalStateException("FLAC with " + blockSize + " sample blocks in chunks of " + chunkBytes
+                    + " bytes does not decode to the encoded audio");
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer encoded) {
+        out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+    }
+
+    private static byte[] speech(int seconds) {
+        Random random = new Random(42);
+        byte[] pcm = new byte[seconds * SAMPLE_RATE * 2];
+        double phase = 0;
+        for (int i = 0; i < pcm.length / 2; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            // syllables at 1.7 Hz, louder and quieter phrases at 0.3 Hz
+            double loudness = Math.max(0, Math.sin(2 * Math.PI * 1.7 * t))
+                    * (0.5 + 0.5 * Math.sin(2 * Math.PI * 0.3 * t));
+            phase += 2 * Math.PI * (120 + 30 * Math.sin(2 * Math.PI * 2 * t)) / SAMPLE_RATE;
+            double value = loudness * (6000 * Math.sin(phase) + 2500 * Math.sin(3.1 * phase)
+                    + 900 * Math.sin(7.3 * phase)) + random.nextGaussian() * 60;
+            int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
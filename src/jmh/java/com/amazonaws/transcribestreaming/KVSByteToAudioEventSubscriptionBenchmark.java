@@ -0,0 +1,122 @@
+package com.amazonaws.transcribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kvstranscribestreaming.MkvFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures chunk assembly and {@link AudioEvent} construction in {@link KVSByteToAudioEventSubscription} by
+ * draining an in-memory Chime MKV stream through it with unbounded demand, the raw audio copy to the recording
+ * stream included. Scores are per frame read from the stream.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVSByteToAudioEventSubscriptionBenchmark {
+
+    private static final String CONTACT_ID = "24f48be4-2036-41d5-a6f8-f25e486b76c6";
+    private static final int FRAGMENTS = 10;
+    private static final int FRAMES_PER_FRAGMENT = 50;
+    private static final int FRAMES = FRAGMENTS * FRAMES_PER_FRAGMENT;
+
+    @Param({"320", "1024"})
+    public int frameSize;
+
+    private byte[] stream;
+    private StreamingMkvReader reader;
+    private FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor;
+    private FragmentMetadataVisitor fragmentVisitor;
+    private ByteArrayOutputStream recording;
+
+    @Setup(Level.Trial)
+    public void createStream() {
+        stream = MkvFixtures.chimeAudioStream(FRAGMENTS, FRAMES_PER_FRAGMENT, frameSize, CONTACT_ID);
+        recording = new ByteArrayOutputStream(stream.length);
+    }
+
+    @Setup(Level.Invocation)
+    public void openReader() {
+        reader = StreamingMkvReader.createDefault(new InputStreamParserByteSource(new ByteArrayInputStream(stream)));
+        tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        fragmentVisitor = FragmentMetadataVisitor.create(Optional.of(tagProcessor));
+        recording.reset();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long assembleAudioEvents() throws InterruptedException {
+        CountingSubscriber subscriber = new CountingSubscriber();
+        KVSByteToAudioEventSubscription subscription = new KVSByteToAudioEventSubscription(subscriber, reader,
+                CONTACT_ID, recording, tagProcessor, fragmentVisitor, true);
+        subscription.request(Long.MAX_VALUE);
+        subscriber.done.await();
+        subscription.cancel();
+        return subscriber.bytes;
+    }
+
+    private static final class CountingSubscriber implements Subscriber<AudioStream> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private long bytes;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+        }
+
+        @Override
+        public void onNext(AudioStream audioStream) {
+            bytes += ((AudioEvent) audioStream).audioChunk().asByteBuffer().remaining();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
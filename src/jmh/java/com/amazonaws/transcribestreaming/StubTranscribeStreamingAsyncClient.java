@@ -0,0 +1,225 @@
+package com.amazonaws.transcribestreaming;
+
+import io.reactivex.processors.UnicastProcessor;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.transcribestreaming.TranscribeStreamingAsyncClient;
+import software.amazon.awssdk.services.transcribestreaming.model.Alternative;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+import software.amazon.awssdk.services.transcribestreaming.model.InternalFailureException;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponseHandler;
+import software.amazon.awssdk.services.transcribestreaming.model.Transcript;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for {@link TranscribeStreamingAsyncClient}. It consumes the audio stream with the same one at a
+ * time demand as the SDK and echoes synthetic {@link TranscriptEvent}s: a partial result for every second of
+ * audio and a final result every {@code segmentSeconds}, delivered after a configurable latency. Sessions can be
+ * made to fail at start with a retriable error.
+ *
+ * <p>Events for a session are always delivered on the same thread of a small pool, the way the SDK pins a
+ * stream to one Netty event loop, so blocking work in the response handler delays other sessions on that
+ * thread just like it does in production.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class StubTranscribeStreamingAsyncClient implements TranscribeStreamingAsyncClient {
+
+    private static final int BYTES_PER_SECOND = 16000;
+    private static final double WORDS_PER_SECOND = 2.5;
+
+    private final long latencyMillis;
+    private final double sessionErrorRate;
+    private final int segmentSeconds;
+    private final ScheduledExecutorService[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * @param latencyMillis    delay between audio arriving and the matching transcript event being delivered
+     * @param sessionErrorRate probability in [0, 1] that a session fails at start with a retriable error
+     * @param segmentSeconds   audio seconds per final result
+     * @param eventLoopThreads number of threads delivering transcript events
+     */
+    public StubTranscribeStreamingAsyncClient(long latencyMillis, double sessionErrorRate, int segmentSeconds,
+                                              int eventLoopThreads) {
+        this.latencyMillis = latencyMillis;
+        this.sessionErrorRate = sessionErrorRate;
+        this.segmentSeconds = segmentSeconds;
+        this.eventLoops = new ScheduledExecutorService[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            final int index = i;
+            eventLoops[i] = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "stub-transcribe-event-loop-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return "transcribe";
+    }
+
+    @Override
+    public void close() {
+        for (ScheduledExecutorService eventLoop : eventLoops) {
+            eventLoop.shutdownNow();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> startStreamTranscription(StartStreamTranscriptionRequest request,
+                                                            Publisher<AudioStream> requestStream,
+                                                            StartStreamTranscriptionResponseHandler responseHandler) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        ScheduledExecutorService eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(),
+                eventLoops.length)];
+
+        if (ThreadLocalRandom.current().nextDouble() < sessionErrorRate) {
+            eventLoop.schedule(() -> {
+                InternalFailureException e = InternalFailureException.builder()
+                        .message("Simulated failure starting the stream").build();
+                responseHandler.exceptionOccurred(e);
+                future.completeExceptionally(new CompletionException(e));
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+            return future;
+        }
+
+        eventLoop.execute(() -> {
+            UnicastProcessor<TranscriptResultStream> events = UnicastProcessor.create();
+            responseHandler.responseReceived(StartStreamTranscriptionResponse.builder()
+                    .requestId(UUID.randomUUID().toString())
+                    .sessionId(request.sessionId())
+                    .build());
+            responseHandler.onEventStream(SdkPublisher.adapt(events));
+            requestStream.subscribe(new EchoingSubscriber(eventLoop, events, responseHandler, future));
+        });
+        return future;
+    }
+
+    /**
+     * Counts the audio bytes of one session and schedules the transcript events they produce.
+     */
+    private final class EchoingSubscriber implements Subscriber<AudioStream> {
+        private final ScheduledExecutorService eventLoop;
+        private final UnicastProcessor<TranscriptResultStream> events;
+        private final StartStreamTranscriptionResponseHandler responseHandler;
+        private final CompletableFuture<Void> future;
+        private Subscription subscription;
+        private long audioBytes;
+        private int emittedSeconds;
+        private int segmentStartSecond;
+        private String resultId = UUID.randomUUID().toString();
+
+        private EchoingSubscriber(ScheduledExecutorService eventLoop,
+                                  UnicastProcessor<TranscriptResultStream> events,
+                                  StartStreamTranscriptionResponseHandler responseHandler,
+                                  CompletableFuture<Void> future) {
+            this.eventLoop = eventLoop;
+            this.events = events;
+            this.responseHandler = responseHandler;
+            this.future = future;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(AudioStream audioStream) {
+            audioBytes += ((AudioEvent) audioStream).audioChunk().asByteBuffer().remaining();
+            while (audioBytes >= (long) (emittedSeconds + 1) * BYTES_PER_SECOND) {
+                emittedSeconds++;
+                boolean isFinal = emittedSeconds - segmentStartSecond >= segmentSeconds;
+                schedule(transcriptEvent(segmentStartSecond, emittedSeconds, !isFinal));
+                if (isFinal) {
+                    segmentStartSecond = emittedSeconds;
+                    resultId = UUID.randomUUID().toString();
+                }
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            eventLoop.schedule(() -> {
+                events.onError(t);
+                responseHandler.exceptionOccurred(t);
+                future.completeExceptionally(new CompletionException(t));
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onComplete() {
+            if (emittedSeconds > segmentStartSecond) {
+                schedule(transcriptEvent(segmentStartSecond, emittedSeconds, false));
+            }
+            eventLoop.schedule(() -> {
+                events.onComplete();
+                responseHandler.complete();
+                future.complete(null);
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void schedule(TranscriptEvent event) {
+            eventLoop.schedule(() -> events.onNext(event), latencyMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private TranscriptEvent transcriptEvent(int startSecond, int endSecond, boolean isPartial) {
+            List<Item> items = new ArrayList<>();
+            StringBuilder transcript = new StringBuilder();
+            int words = (int) ((endSecond - startSecond) * WORDS_PER_SECOND);
+            double wordSeconds = 1 / WORDS_PER_SECOND;
+            for (int i = 0; i < words; i++) {
+                String word = "word" + i;
+                double start = startSecond + i * wordSeconds;
+                items.add(Item.builder().content(word).type("pronunciation")
+                        .startTime(start).endTime(start + wordSeconds).build());
+                transcript.append(i == 0 ? "" : " ").append(word);
+            }
+            Result result = Result.builder()
+                    .resultId(resultId)
+                    .startTime((double) startSecond)
+                    .endTime((double) endSecond)
+                    .isPartial(isPartial)
+                    .alternatives(Alternative.builder().transcript(transcript.toString()).items(items).build())
+                    .build();
+            return TranscriptEvent.builder().transcript(Transcript.builder().results(result).build()).build();
+        }
+    }
+}
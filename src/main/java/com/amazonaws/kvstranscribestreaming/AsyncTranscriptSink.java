@@ -0,0 +1,300 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples a {@link TranscriptSink} from the callers of {@link #write}. Segments are queued and written by one
+ * background thread, which takes everything queued since its last write (up to maxBatchSize) as one batch, so
+ * batches grow with load instead of adding latency when the sink keeps up.
+ *
+ * <p>The queue is bounded so a slow sink only holds back its own segments. When it is full, partial segments are
+ * dropped first since a later version replaces them anyway. When the queue holds nothing else, final segments are
+ * dropped too, unless the sink is durable: then they are queued beyond the capacity and counted as overflows.
+ * {@link #write} never waits, since its callers are shared by all calls and by the other sinks.</p>
+ *
+ * <p>Queued segments are counted per call, so {@link #flush(String, long)} at the end of a call waits only for the
+ * segments of that call.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class AsyncTranscriptSink implements TranscriptSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncTranscriptSink.class);
+
+    private final String name;
+    private final TranscriptSink delegate;
+    private final int capacity;
+    private final int maxBatchSize;
+    private final MemoryBudget memoryBudget;
+    private final boolean durable;
+    private final Thread writerThread;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<TranscriptSegment> queue = new ArrayDeque<>();
+    // segments accepted into the queue, and segments written, failed or evicted since
+    private long enqueued;
+    private long completed;
+    // segments accepted but not yet written, failed or evicted, by call id
+    private final Map<String, Integer> outstanding = new HashMap<>();
+    private long dropped;
+    private long overflowed;
+    private long failed;
+    private boolean closed;
+
+    public AsyncTranscriptSink(String name, TranscriptSink delegate, int capacity, int maxBatchSize) {
+        this(name, delegate, capacity, maxBatchSize, null, false);
+    }
+
+    /**
+     * @param memoryBudget budget the queued segments are reserved in under their call id, may be null
+     * @param durable      whether final segments are queued beyond the capacity instead of being dropped
+     */
+    public AsyncTranscriptSink(String name, TranscriptSink delegate, int capacity, int maxBatchSize,
+                               MemoryBudget memoryBudget, boolean durable) {
+        this.name = Validate.notNull(name);
+        this.delegate = Validate.notNull(delegate);
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+        Validate.isTrue(maxBatchSize > 0, "maxBatchSize must be positive");
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.memoryBudget = memoryBudget;
+        this.durable = durable;
+        this.writerThread = new Thread(this::writeLoop, "transcript-sink-" + name);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void write(List<TranscriptSegment> segments) {
+        synchronized (lock) {
+            Validate.validState(!closed, "Transcript sink %s is closed", name);
+            for (TranscriptSegment segment : segments) {
+                if (queue.size() >= capacity && !evictPartialFor(segment) && !overflow(segment)) {
+                    drop(segment);
+                    continue;
+                }
+                queue.addLast(segment);
+                enqueued++;
+                outstanding.merge(segment.getCallId(), 1, Integer::sum);
+                reserve(segment);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        return flush(null, timeoutMillis);
+    }
+
+    /**
+     * Waits until no segment of the call is queued or being written, then flushes the call in the wrapped sink. Only
+     * the segments of the call are waited for, not those of the other calls queued before them.
+     */
+    @Override
+    public boolean flush(String callId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            long target = enqueued;
+            while (callId == null ? completed < target : outstanding.containsKey(callId)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+        }
+        // the wrapped sink may hold segments back too
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            return callId == null ? delegate.flush(remaining) : delegate.flush(callId, remaining);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Exception while flushing transcript sink " + name + ": ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the queued segments and stops the background thread, then closes the wrapped sink, which writes
+     * anything it still holds back
+     *
+     * @throws Exception
+     */
+    @Override
+    public void close() throws Exception {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        delegate.close();
+    }
+
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    public long getFailedCount() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    /**
+     * @return final segments of a durable sink queued beyond the capacity
+     */
+    public long getOverflowCount() {
+        synchronized (lock) {
+            return overflowed;
+        }
+    }
+
+    public int getQueueSize() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    // must hold lock; makes room for a final segment by dropping the oldest queued partial
+    private boolean evictPartialFor(TranscriptSegment segment) {
+        if (segment.isPartial()) {
+            return false;
+        }
+        for (Iterator<TranscriptSegment> it = queue.iterator(); it.hasNext(); ) {
+            TranscriptSegment queued = it.next();
+            if (queued.isPartial()) {
+                it.remove();
+                complete(queued);
+                release(queued);
+                drop(queued);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // must hold lock; lets a final segment of a durable sink into the full queue
+    private boolean overflow(TranscriptSegment segment) {
+        if (!durable || segment.isPartial()) {
+            return false;
+        }
+        overflowed++;
+        if (overflowed == 1 || overflowed % 1000 == 0) {
+            logger.warn("Transcript sink " + name + " is falling behind, queued " + overflowed
+                    + " final segments beyond its capacity of " + capacity + " so far, latest "
+                    + segment.getCallId() + "#" + segment.getSequenceNumber());
+        }
+        return true;
+    }
+
+    // must hold lock
+    private void complete(TranscriptSegment segment) {
+        completed++;
+        outstanding.computeIfPresent(segment.getCallId(), (callId, count) -> count == 1 ? null : count - 1);
+    }
+
+    // must hold lock
+    private void drop(TranscriptSegment segment) {
+        dropped++;
+        if (dropped == 1 || dropped % 1000 == 0) {
+            logger.warn("Transcript sink " + name + " is falling behind, dropped " + dropped
+                    + " segments so far, latest " + segment.getCallId() + "#" + segment.getSequenceNumber());
+        }
+    }
+
+    private void reserve(TranscriptSegment segment) {
+        if (memoryBudget != null) {
+            memoryBudget.reserve(segment.getCallId(), estimateBytes(segment));
+        }
+    }
+
+    private void release(TranscriptSegment segment) {
+        if (memoryBudget != null) {
+            memoryBudget.release(segment.getCallId(), estimateBytes(segment));
+        }
+    }
+
+    // rough heap size of a segment: object headers and fields plus two bytes per character
+    private static long estimateBytes(TranscriptSegment segment) {
+        long bytes = 96 + 2L * segment.getTranscript().length();
+        for (TranscriptSegment.Word word : segment.getWords()) {
+            bytes += 64 + 2L * word.getContent().length();
+        }
+        return bytes;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<TranscriptSegment> batch = new ArrayList<>();
+            synchronized (lock) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+                    batch.add(queue.pollFirst());
+                }
+            }
+
+            boolean written = false;
+            try {
+                delegate.write(batch);
+                written = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("Exception while writing " + batch.size() + " transcript segments to " + name + ": ", e);
+            }
+
+            for (TranscriptSegment segment : batch) {
+                release(segment);
+            }
+            synchronized (lock) {
+                for (TranscriptSegment segment : batch) {
+                    complete(segment);
+                }
+                if (!written) {
+                    failed += batch.size();
+                }
+                lock.notifyAll();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+}
@@ -47,7 +47,7 @@ public final class AudioUtils {
     /**
      * Converts the given raw audio data into a wav file. Returns the wav file back.
      */
-    private static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
+    static File convertToWav(String audioFilePath) throws IOException, UnsupportedAudioFileException {
         File outputFile = new File(audioFilePath.replace(".raw", ".wav"));
         AudioInputStream source = new AudioInputStream(Files.newInputStream(Paths.get(audioFilePath)),
                 new AudioFormat(8000, 16, 1, true, false), -1); // 8KHz, 16 bit, 1 channel, signed, little-endian
@@ -55,6 +55,46 @@ public final class AudioUtils {
         return outputFile;
     }
 
+    /**
+     * Saves a wav file as an S3 object named after the file
+     *
+     * @param s3Client
+     * @param bucketName
+     * @param keyPrefix
+     * @param wavFile
+     * @param transactionId
+     * @param publicReadAcl
+     */
+    public static void uploadWav(AmazonS3 s3Client, String bucketName, String keyPrefix, File wavFile,
+                                 String transactionId, boolean publicReadAcl) {
+        // upload the raw audio file to the designated S3 location
+        String objectKey = keyPrefix + wavFile.getName();
+
+        logger.info(String.format("Uploading Audio: to %s/%s from %s", bucketName, objectKey, wavFile));
+        PutObjectRequest request = new PutObjectRequest(bucketName, objectKey, wavFile);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("audio/wav");
+        metadata.addUserMetadata("transactionId", transactionId);
+        request.setMetadata(metadata);
+
+        if (publicReadAcl) {
+            request.setCannedAcl(CannedAccessControlList.PublicRead);
+        }
+
+        PipelineEvents.S3Upload uploadEvent = new PipelineEvents.S3Upload();
+        uploadEvent.begin();
+        s3Client.putObject(request);
+        if (uploadEvent.shouldCommit()) {
+            uploadEvent.setTransactionId(transactionId);
+            uploadEvent.bucket = bucketName;
+            uploadEvent.key = objectKey;
+            uploadEvent.bytes = wavFile.length();
+            uploadEvent.commit();
+        }
+
+        logger.info("putObject completed successfully for S3 key " + objectKey);
+    }
+
     /**
      * Saves the raw audio file as an S3 object
      *  @param region
@@ -74,24 +114,7 @@ public final class AudioUtils {
                     .build();
 
             wavFile = convertToWav(audioFilePath);
-
-            // upload the raw audio file to the designated S3 location
-            String objectKey = keyPrefix + wavFile.getName();
-
-            logger.info(String.format("Uploading Audio: to %s/%s from %s", bucketName, objectKey, wavFile));
-            PutObjectRequest request = new PutObjectRequest(bucketName, objectKey, wavFile);
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType("audio/wav");
-            metadata.addUserMetadata("transactionId", transactionId);
-            request.setMetadata(metadata);
-
-            if (publicReadAcl) {
-                request.setCannedAcl(CannedAccessControlList.PublicRead);
-            }
-
-            s3Client.putObject(request);
-
-            logger.info("putObject completed successfully for S3 key " + objectKey);
+            uploadWav(s3Client, bucketName, keyPrefix, wavFile, transactionId, publicReadAcl);
 
         } catch (SdkClientException e) {
             logger.error("Audio upload to S3 failed: ", e);
@@ -0,0 +1,245 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kvstranscribestreaming.DynamoDBWriteGovernor.Priority;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Stores the final segments of a call compactly in a few bucket items instead of one item per segment. Segments
+ * are collected per call for up to windowMillis, encoded together with {@link TranscriptBucketCodec} and appended
+ * to the current bucket of the call with one UpdateItem. When the bucket would grow beyond maxBucketBytes the
+ * next bucket is started. Partial segments are not stored, their final version is. Before the first append of a
+ * call the last bucket already stored for it is looked up, so a call resumed after a restart or taken over from
+ * another process continues there.
+ *
+ * <p>Bucket items are keyed by CallId (hash key, string) and BucketNumber (range key, number). Chunks holds the
+ * appended chunks, ByteSize their total size and IsComplete is set on the bucket holding the end of transcription
+ * marker. Use {@link BucketedTranscriptReader} to read a call back.</p>
+ *
+ * <p>An UpdateItem consumes write units for the whole item, not just the appended chunk, so small buckets keep
+ * every append at one write unit; the saving comes from appending many segments at once. Appends are paced by a
+ * {@link DynamoDBWriteGovernor}, throttled appends stay pending and are retried with the next write.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class BucketedDynamoDBTranscriptSink implements TranscriptSink {
+
+    private static final String APPEND_EXPRESSION = "SET Chunks = list_append(if_not_exists(Chunks, :empty), :chunk), "
+            + "ByteSize = if_not_exists(ByteSize, :zero) + :size, "
+            + "FirstSequenceNumber = if_not_exists(FirstSequenceNumber, :first), "
+            + "LastSequenceNumber = :last";
+
+    // key, attribute names and the other attributes of a bucket, on top of the chunks
+    private static final int BUCKET_OVERHEAD_BYTES = 100;
+
+    private final Table table;
+    private final DynamoDBWriteGovernor governor;
+    private final int maxBucketBytes;
+    private final long windowMillis;
+    // buckets of the calls this process is writing, by call id; guarded by this
+    private final Map<String, CallBuckets> calls = new HashMap<>();
+
+    public BucketedDynamoDBTranscriptSink(DynamoDB ddbClient, String tableName, DynamoDBWriteGovernor governor,
+                                          int maxBucketBytes, long windowMillis) {
+        this.table = Validate.notNull(ddbClient).getTable(Validate.notNull(tableName));
+        this.governor = Validate.notNull(governor);
+        Validate.isTrue(maxBucketBytes > 0, "maxBucketBytes must be positive");
+        Validate.isTrue(windowMillis >= 0, "windowMillis must not be negative");
+        this.maxBucketBytes = maxBucketBytes;
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public synchronized void write(List<TranscriptSegment> segments) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (TranscriptSegment segment : segments) {
+            if (segment.isPartial()) {
+                continue;
+            }
+            CallBuckets call = calls.computeIfAbsent(segment.getCallId(), id -> new CallBuckets());
+            if (call.pending.isEmpty()) {
+                call.windowStartMillis = now;
+            }
+            call.pending.add(segment);
+        }
+
+        appendPending(call -> call.isComplete() || now - call.windowStartMillis >= windowMillis);
+    }
+
+    /**
+     * Appends the segments of all calls whose window is still open
+     */
+    @Override
+    public synchronized boolean flush(long timeoutMillis) throws InterruptedException {
+        appendPending(call -> true);
+        return true;
+    }
+
+    /**
+     * Appends the segments of the given call only, the windows of the other calls stay open
+     */
+    @Override
+    public synchronized boolean flush(String callId, long timeoutMillis) throws InterruptedException {
+        CallBuckets pending = calls.get(callId);
+        appendPending(call -> call == pending);
+        return true;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        flush(0);
+    }
+
+    private void appendPending(Predicate<CallBuckets> due) throws InterruptedException {
+        RuntimeException appendException = null;
+        ProvisionedThroughputExceededException throttled = null;
+        for (Iterator<Map.Entry<String, CallBuckets>> it = calls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, CallBuckets> entry = it.next();
+            CallBuckets call = entry.getValue();
+            if (call.pending.isEmpty() || !due.test(call)) {
+                continue;
+            }
+            try {
+                boolean complete = call.isComplete();
+                append(entry.getKey(), call);
+                if (complete) {
+                    it.remove();
+                }
+            } catch (ProvisionedThroughputExceededException e) {
+                governor.onThrottled();
+                throttled = e;
+            } catch (RuntimeException e) {
+                // the segments stay pending and are retried with the next append
+                if (appendException == null) {
+                    appendException = e;
+                } else {
+                    appendException.addSuppressed(e);
+                }
+            }
+        }
+        if (appendException != null) {
+            throw appendException;
+        }
+        if (throttled != null) {
+            throw throttled;
+        }
+    }
+
+    private void append(String callId, CallBuckets call) throws InterruptedException {
+        if (!call.resumed) {
+            resume(callId, call);
+        }
+        byte[] chunk = TranscriptBucketCodec.encode(call.pending);
+        if (call.bucketBytes > 0 && call.bucketBytes + chunk.length > maxBucketBytes) {
+            call.bucketNumber++;
+            call.bucketBytes = 0;
+        }
+
+        boolean complete = call.isComplete();
+        // an update consumes units for the whole item after the append
+        double units = Math.ceil((call.bucketBytes + chunk.length + BUCKET_OVERHEAD_BYTES) / 1024.0);
+        governor.acquire(units, complete ? Priority.END_OF_TRANSCRIPTION : Priority.FINAL);
+        PipelineEvents.DynamoDBWrite writeEvent = new PipelineEvents.DynamoDBWrite();
+        writeEvent.begin();
+        UpdateItemOutcome outcome;
+        try {
+            outcome = table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("CallId", callId, "BucketNumber", call.bucketNumber)
+                    .withUpdateExpression(complete ? APPEND_EXPRESSION + ", IsComplete = :complete"
+                            : APPEND_EXPRESSION)
+                    .withValueMap(valueMap(chunk, call.pending, complete))
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+        } catch (ProvisionedThroughputExceededException e) {
+            writeEvent.throttled = true;
+            throw e;
+        } finally {
+            if (writeEvent.shouldCommit()) {
+                writeEvent.setTransactionId(callId);
+                writeEvent.table = table.getTableName();
+                writeEvent.operation = "UpdateItem";
+                writeEvent.items = call.pending.size();
+                writeEvent.commit();
+            }
+        }
+        ConsumedCapacity consumed = outcome.getUpdateItemResult().getConsumedCapacity();
+        governor.onSuccess(units, consumed == null ? Collections.emptyList() : Collections.singletonList(consumed),
+                Collections.singletonMap(callId, units));
+
+        call.bucketBytes += chunk.length;
+        call.pending.clear();
+    }
+
+    /**
+     * Continues after the last bucket already stored for the call, written before a restart or by the previous owner
+     * of a call taken over, instead of appending to bucket 0 again however full it is
+     */
+    private void resume(String callId, CallBuckets call) {
+        for (Item bucket : table.query(new QuerySpec()
+                .withHashKey("CallId", callId)
+                .withScanIndexForward(false)
+                .withMaxResultSize(1)
+                .withConsistentRead(true)
+                .withProjectionExpression("BucketNumber, ByteSize"))) {
+            call.bucketNumber = bucket.getInt("BucketNumber");
+            call.bucketBytes = bucket.isPresent("ByteSize") ? bucket.getInt("ByteSize") : 0;
+        }
+        call.resumed = true;
+    }
+
+    private static ValueMap valueMap(byte[] chunk, List<TranscriptSegment> pending, boolean complete) {
+        ValueMap values = new ValueMap()
+                .withList(":empty", Collections.emptyList())
+                .withList(":chunk", Collections.singletonList(chunk))
+                .withInt(":zero", 0)
+                .withInt(":size", chunk.length)
+                .withInt(":first", pending.get(0).getSequenceNumber())
+                .withInt(":last", pending.get(pending.size() - 1).getSequenceNumber());
+        if (complete) {
+            values.withBoolean(":complete", true);
+        }
+        return values;
+    }
+
+    private static final class CallBuckets {
+        private final List<TranscriptSegment> pending = new ArrayList<>();
+        private long windowStartMillis;
+        private int bucketNumber;
+        private int bucketBytes;
+        // whether the last stored bucket of the call has been looked up
+        private boolean resumed;
+
+        private boolean isComplete() {
+            return !pending.isEmpty() && pending.get(pending.size() - 1).isEndOfTranscription();
+        }
+    }
+}
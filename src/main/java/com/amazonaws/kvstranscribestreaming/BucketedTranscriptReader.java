@@ -0,0 +1,79 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the transcript of a call back from the bucket items written by {@link BucketedDynamoDBTranscriptSink}.
+ *
+ * <p>Can also be run from the command line to print a transcript:
+ * {@code java -cp "lib/*:." com.amazonaws.kvstranscribestreaming.BucketedTranscriptReader <table> <callId>}</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class BucketedTranscriptReader {
+
+    private final Table table;
+
+    public BucketedTranscriptReader(DynamoDB ddbClient, String tableName) {
+        this.table = Validate.notNull(ddbClient).getTable(Validate.notNull(tableName));
+    }
+
+    public static void main(String[] args) {
+        Validate.isTrue(args.length == 2, "Usage: BucketedTranscriptReader <table> <callId>");
+        BucketedTranscriptReader reader = new BucketedTranscriptReader(
+                new DynamoDB(AmazonDynamoDBClientBuilder.defaultClient()), args[0]);
+        for (TranscriptSegment segment : reader.readCall(args[1])) {
+            System.out.println(String.format("%d [%.3f, %.3f] %s", segment.getSequenceNumber(),
+                    segment.getStartTime(), segment.getEndTime(), segment.getTranscript()));
+        }
+    }
+
+    /**
+     * Returns the segments of a call ordered by sequence number, including the end of transcription marker if the
+     * call has ended. If a chunk was appended twice, for example after a retried request, its segments are only
+     * returned once.
+     *
+     * @param callId
+     * @return
+     */
+    public List<TranscriptSegment> readCall(String callId) {
+        Map<Integer, TranscriptSegment> segments = new TreeMap<>();
+        for (Item bucket : table.query(new QuerySpec().withHashKey("CallId", callId))) {
+            List<Object> chunks = bucket.getList("Chunks");
+            if (chunks == null) {
+                continue;
+            }
+            for (Object chunk : chunks) {
+                ByteBuffer encoded = ByteBuffer.wrap((byte[]) chunk);
+                for (TranscriptSegment segment : TranscriptBucketCodec.decode(callId, encoded)) {
+                    segments.put(segment.getSequenceNumber(), segment);
+                }
+            }
+        }
+        return new ArrayList<>(segments.values());
+    }
+}
@@ -0,0 +1,360 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure only one worker processes a call, however often its STARTED event is delivered. The first worker to
+ * write the lease item of the transaction id, with a conditional update, owns the call; every other delivery finds
+ * the item and is dropped before any stream, file or Transcribe session is opened.
+ *
+ * <p>The owner renews its lease with a heartbeat every third of the lease duration, recording how far it got in
+ * the stream and in the transcript. If the owner dies, its lease expires and the next delivery of the event takes
+ * the call over, with the previous owner and progress at hand. An owner whose heartbeat finds the call taken over
+ * has lost it and is told through the lease's lost listener. Once the call is done the item is marked DONE and
+ * kept until the ExpiresAt TTL, so late duplicates are dropped too.</p>
+ *
+ * <p>The item also tells the owner that the call ended when the ENDED event is handled by another process: the
+ * event sets EndedAt, and the owner's next heartbeat reads it back and notifies the lease's end listener. An ENDED
+ * event handled before the STARTED event creates the item with just EndedAt, which the lease taken later keeps.</p>
+ *
+ * <p>The lease table has the partition key TransactionId of type String. Errors other than a lost condition
+ * don't drop the call: a call is better processed twice than not at all.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class CallLeaseManager implements AutoCloseable {
+
+    private static final String STATUS_RUNNING = "RUNNING";
+    private static final String STATUS_DONE = "DONE";
+    // how long a finished call's item is kept to catch late duplicates
+    private static final long DONE_RETENTION_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private static final String ACQUIRE_EXPRESSION = "SET #owner = :owner, #status = :running, "
+            + "LeaseExpiry = :expiry, HeartbeatAt = :now, AcquiredAt = :now";
+    // an item without an owner only holds the EndedAt of an ENDED event that came first
+    private static final String ACQUIRE_CONDITION = "attribute_not_exists(#owner) "
+            + "OR (#status <> :done AND LeaseExpiry < :now)";
+    private static final String HEARTBEAT_EXPRESSION = "SET LeaseExpiry = :expiry, HeartbeatAt = :now, "
+            + "LastFragmentNumber = :progress, LastSequenceNumber = :sequence";
+    private static final String RELEASE_EXPRESSION = "SET #status = :done, LeaseExpiry = :now, HeartbeatAt = :now, "
+            + "LastFragmentNumber = :progress, ExpiresAt = :ttl";
+    private static final String OWNER_CONDITION = "#owner = :owner";
+    private static final String END_EXPRESSION = "SET EndedAt = :now, ExpiresAt = if_not_exists(ExpiresAt, :ttl)";
+    private static final String END_CONDITION = "attribute_not_exists(#status) OR #status <> :done";
+
+    private static final Logger logger = LoggerFactory.getLogger(CallLeaseManager.class);
+
+    private final Table table;
+    private final String owner;
+    private final long leaseMillis;
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * @param dynamoDB
+     * @param tableName   table holding a lease item per transaction id
+     * @param leaseMillis how long a lease is valid without a heartbeat
+     */
+    public CallLeaseManager(DynamoDB dynamoDB, String tableName, long leaseMillis) {
+        Validate.notNull(dynamoDB);
+        Validate.notNull(tableName);
+        Validate.isTrue(leaseMillis > 0, "leaseMillis must be positive");
+        this.table = dynamoDB.getTable(tableName);
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        this.leaseMillis = leaseMillis;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "call-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Takes the lease of the call unless another worker holds it or already finished the call
+     *
+     * @param transactionId
+     * @param streamArn
+     * @param startFragmentNumber
+     * @return the lease, null if the call is a duplicate
+     */
+    public CallLease acquire(String transactionId, String streamArn, String startFragmentNumber) {
+        long now = System.currentTimeMillis();
+        // an update keeps what the item already holds, the EndedAt of an early ENDED event and the progress of a
+        // previous owner
+        StringBuilder expression = new StringBuilder(ACQUIRE_EXPRESSION);
+        ValueMap values = new ValueMap()
+                .withString(":owner", owner)
+                .withString(":running", STATUS_RUNNING)
+                .withString(":done", STATUS_DONE)
+                .withLong(":expiry", now + leaseMillis)
+                .withLong(":now", now);
+        if (streamArn != null) {
+            expression.append(", StreamArn = :streamArn");
+            values.withString(":streamArn", streamArn);
+        }
+        if (startFragmentNumber != null) {
+            expression.append(", StartFragmentNumber = :startFragmentNumber");
+            values.withString(":startFragmentNumber", startFragmentNumber);
+        }
+        expression.append(" REMOVE ExpiresAt");
+
+        Item previous;
+        try {
+            previous = table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("TransactionId", transactionId)
+                    .withUpdateExpression(expression.toString())
+                    .withConditionExpression(ACQUIRE_CONDITION)
+                    .withNameMap(new NameMap().with("#status", "Status").with("#owner", "Owner"))
+                    .withValueMap(values)
+                    .withReturnValues(ReturnValue.ALL_OLD)).getItem();
+        } catch (ConditionalCheckFailedException e) {
+            logger.info("Call " + transactionId + " is already owned or done, dropping the duplicate event");
+            return null;
+        } catch (ResourceNotFoundException e) {
+            logger.warn("Lease table " + table.getTableName() + " not found, processing " + transactionId
+                    + " without deduplication");
+            return new CallLease(transactionId, null, null, 0, false);
+        } catch (Exception e) {
+            logger.warn("Could not take the lease of " + transactionId + ", processing it anyway: ", e);
+            return new CallLease(transactionId, null, null, 0, false);
+        }
+
+        CallLease lease;
+        if (previous != null && previous.isPresent("Owner")) {
+            lease = new CallLease(transactionId, previous.getString("Owner"), previous.getString("LastFragmentNumber"),
+                    previous.isPresent("LastSequenceNumber") ? previous.getInt("LastSequenceNumber") : 0, true);
+            logger.info("Took over call " + transactionId + " from " + lease.getPreviousOwner()
+                    + " whose lease expired, last at fragment " + lease.getPreviousFragmentNumber()
+                    + " and transcript segment " + lease.getPreviousSequenceNumber());
+        } else {
+            lease = new CallLease(transactionId, null, null, 0, true);
+        }
+        if (previous != null && previous.isPresent("EndedAt")) {
+            logger.info("Call " + transactionId + " was flagged as ended before its lease was taken");
+            lease.ended = true;
+        }
+        long period = Math.max(1, leaseMillis / 3);
+        lease.heartbeat = heartbeats.scheduleAtFixedRate(() -> heartbeat(lease), period, period,
+                TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    /**
+     * Marks the call done and stops renewing its lease
+     *
+     * @param lease
+     */
+    public void release(CallLease lease) {
+        if (!lease.held) {
+            return;
+        }
+        lease.heartbeat.cancel(false);
+        long now = System.currentTimeMillis();
+        try {
+            table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("TransactionId", lease.transactionId)
+                    .withUpdateExpression(RELEASE_EXPRESSION)
+                    .withConditionExpression(OWNER_CONDITION)
+                    .withNameMap(new NameMap().with("#status", "Status").with("#owner", "Owner"))
+                    .withValueMap(new ValueMap()
+                            .withString(":done", STATUS_DONE)
+                            .withLong(":now", now)
+                            .with(":progress", lease.progressSupplier.get())
+                            .withLong(":ttl", TimeUnit.MILLISECONDS.toSeconds(now) + DONE_RETENTION_SECONDS)
+                            .withString(":owner", owner)));
+        } catch (ConditionalCheckFailedException e) {
+            logger.warn("Lease of " + lease.transactionId + " was taken over by another worker before it finished");
+        } catch (Exception e) {
+            logger.error("Could not mark call " + lease.transactionId + " done: ", e);
+        }
+    }
+
+    /**
+     * Flags the call as ended for the worker that owns it, which learns about it with its next heartbeat, or for
+     * the worker that takes its lease later, when the STARTED event is yet to be handled
+     *
+     * @param transactionId
+     * @return whether the call was flagged, false if the call is done or the flag could not be set
+     */
+    public boolean markEnded(String transactionId) {
+        long now = System.currentTimeMillis();
+        try {
+            table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("TransactionId", transactionId)
+                    .withUpdateExpression(END_EXPRESSION)
+                    .withConditionExpression(END_CONDITION)
+                    .withNameMap(new NameMap().with("#status", "Status"))
+                    .withValueMap(new ValueMap()
+                            .withLong(":now", now)
+                            .withLong(":ttl", TimeUnit.MILLISECONDS.toSeconds(now) + DONE_RETENTION_SECONDS)
+                            .withString(":done", STATUS_DONE)));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            logger.info("Call " + transactionId + " is done, nothing to end");
+        } catch (Exception e) {
+            logger.warn("Could not flag call " + transactionId + " as ended: ", e);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        heartbeats.shutdownNow();
+    }
+
+    private void heartbeat(CallLease lease) {
+        long now = System.currentTimeMillis();
+        try {
+            Item item = table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey("TransactionId", lease.transactionId)
+                    .withUpdateExpression(HEARTBEAT_EXPRESSION)
+                    .withConditionExpression(OWNER_CONDITION)
+                    .withNameMap(new NameMap().with("#owner", "Owner"))
+                    .withValueMap(new ValueMap()
+                            .withLong(":expiry", now + leaseMillis)
+                            .withLong(":now", now)
+                            .with(":progress", lease.progressSupplier.get())
+                            .withInt(":sequence", lease.sequenceNumberSupplier.getAsInt())
+                            .withString(":owner", owner))
+                    .withReturnValues(ReturnValue.ALL_NEW)).getItem();
+            if (item != null && item.isPresent("EndedAt") && !lease.ended) {
+                lease.ended = true;
+                lease.endListener.run();
+            }
+        } catch (ConditionalCheckFailedException e) {
+            logger.error("Lost the lease of " + lease.transactionId + " to another worker");
+            lease.lost = true;
+            lease.heartbeat.cancel(false);
+            lease.lostListener.run();
+        } catch (Exception e) {
+            // the next heartbeat retries before the lease expires
+            logger.warn("Could not renew the lease of " + lease.transactionId + ": ", e);
+        }
+    }
+
+    /**
+     * Ownership of one call
+     */
+    public static final class CallLease {
+        private final String transactionId;
+        private final String previousOwner;
+        private final String previousFragmentNumber;
+        private final int previousSequenceNumber;
+        // false when the call runs without a lease because the lease table could not be used
+        private final boolean held;
+        // until the suppliers are set, heartbeats keep the progress of the previous owner
+        private volatile Supplier<String> progressSupplier;
+        private volatile IntSupplier sequenceNumberSupplier;
+        private volatile Runnable endListener = () -> { };
+        private volatile Runnable lostListener = () -> { };
+        private volatile boolean lost;
+        private volatile boolean ended;
+        private ScheduledFuture<?> heartbeat;
+
+        private CallLease(String transactionId, String previousOwner, String previousFragmentNumber,
+                          int previousSequenceNumber, boolean held) {
+            this.transactionId = transactionId;
+            this.previousOwner = previousOwner;
+            this.previousFragmentNumber = previousFragmentNumber;
+            this.previousSequenceNumber = previousSequenceNumber;
+            this.held = held;
+            this.progressSupplier = () -> previousFragmentNumber;
+            this.sequenceNumberSupplier = () -> previousSequenceNumber;
+        }
+
+        /**
+         * @param progressSupplier returns the number of the fragment the call is at, recorded with every
+         *                         heartbeat
+         */
+        public void setProgressSupplier(Supplier<String> progressSupplier) {
+            this.progressSupplier = Validate.notNull(progressSupplier);
+        }
+
+        /**
+         * @param sequenceNumberSupplier returns the sequence number of the call's latest transcript segment,
+         *                               recorded with every heartbeat
+         */
+        public void setSequenceNumberSupplier(IntSupplier sequenceNumberSupplier) {
+            this.sequenceNumberSupplier = Validate.notNull(sequenceNumberSupplier);
+        }
+
+        /**
+         * @param endListener runs on the heartbeat thread when another process flagged the call as ended, or right
+         *                    away if the call was flagged before its lease was taken
+         */
+        public void setEndListener(Runnable endListener) {
+            this.endListener = Validate.notNull(endListener);
+            if (ended) {
+                endListener.run();
+            }
+        }
+
+        /**
+         * @param lostListener runs on the heartbeat thread when another worker took the call over, the call should
+         *                     stop then
+         */
+        public void setLostListener(Runnable lostListener) {
+            this.lostListener = Validate.notNull(lostListener);
+        }
+
+        /**
+         * @return the worker whose expired lease was taken over, null if the call was not taken over
+         */
+        public String getPreviousOwner() {
+            return previousOwner;
+        }
+
+        /**
+         * @return the last fragment the previous owner recorded, null if unknown
+         */
+        public String getPreviousFragmentNumber() {
+            return previousFragmentNumber;
+        }
+
+        /**
+         * @return the sequence number of the last transcript segment the previous owner recorded, 0 if unknown
+         */
+        public int getPreviousSequenceNumber() {
+            return previousSequenceNumber;
+        }
+
+        /**
+         * @return whether another worker took the call over because a heartbeat did not make it in time
+         */
+        public boolean isLost() {
+            return lost;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * The final segments of a call, collected while the call is transcribed so the full transcript can be written as
+ * one document at the end. Segments and words are kept in parallel primitive arrays and shared character buffers
+ * rather than as objects, which keeps a long call to a few bytes per word on the heap.
+ *
+ * <p>Not thread safe; each call has its own instance, fed from the call's transcript events.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class CallTranscript {
+
+    private static final int INITIAL_SEGMENTS = 64;
+    private static final int INITIAL_WORDS = 1024;
+
+    // segment columns, times in milliseconds
+    private int segmentCount;
+    private int[] sequenceNumbers = new int[INITIAL_SEGMENTS];
+    private int[] segmentStarts = new int[INITIAL_SEGMENTS];
+    private int[] segmentEnds = new int[INITIAL_SEGMENTS];
+    // each segment's transcript is text[textOffsets[i], textOffsets[i + 1]), its words are
+    // words[firstWords[i], firstWords[i + 1])
+    private int[] textOffsets = new int[INITIAL_SEGMENTS + 1];
+    private int[] firstWords = new int[INITIAL_SEGMENTS + 1];
+    private final StringBuilder text = new StringBuilder();
+
+    // word columns, each word's content is wordText[wordOffsets[i], wordOffsets[i + 1])
+    private int wordCount;
+    private int[] wordStarts = new int[INITIAL_WORDS];
+    private int[] wordEnds = new int[INITIAL_WORDS];
+    private int[] wordOffsets = new int[INITIAL_WORDS + 1];
+    private final BitSet punctuation = new BitSet();
+    private final StringBuilder wordText = new StringBuilder();
+
+    /**
+     * Appends a final segment. Partial segments and the end of transcription marker are ignored.
+     *
+     * @param segment
+     */
+    public void add(TranscriptSegment segment) {
+        if (segment.isPartial() || segment.isEndOfTranscription()) {
+            return;
+        }
+        if (segmentCount == sequenceNumbers.length) {
+            int capacity = segmentCount * 2;
+            sequenceNumbers = Arrays.copyOf(sequenceNumbers, capacity);
+            segmentStarts = Arrays.copyOf(segmentStarts, capacity);
+            segmentEnds = Arrays.copyOf(segmentEnds, capacity);
+            textOffsets = Arrays.copyOf(textOffsets, capacity + 1);
+            firstWords = Arrays.copyOf(firstWords, capacity + 1);
+        }
+
+        sequenceNumbers[segmentCount] = segment.getSequenceNumber();
+        segmentStarts[segmentCount] = toMillis(segment.getStartTime());
+        segmentEnds[segmentCount] = toMillis(segment.getEndTime());
+        text.append(segment.getTranscript());
+        for (TranscriptSegment.Word word : segment.getWords()) {
+            addWord(word);
+        }
+        segmentCount++;
+        textOffsets[segmentCount] = text.length();
+        firstWords[segmentCount] = wordCount;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * Writes the transcript as a JSON document: the given attributes, then a {@code segments} array with the
+     * sequence number, times in seconds, transcript and words of every segment
+     *
+     * @param out        the stream is not closed
+     * @param attributes written as string fields at the top of the document, for example the call and leg ids
+     * @throws IOException
+     */
+    public void writeJson(OutputStream out, Map<String, String> attributes) throws IOException {
+        try (JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            json.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            json.writeStartObject();
+            for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+                json.writeStringField(attribute.getKey(), attribute.getValue());
+            }
+
+            json.writeArrayFieldStart("segments");
+            for (int i = 0; i < segmentCount; i++) {
+                json.writeStartObject();
+                json.writeNumberField("sequenceNumber", sequenceNumbers[i]);
+                json.writeNumberField("startTime", toSeconds(segmentStarts[i]));
+                json.writeNumberField("endTime", toSeconds(segmentEnds[i]));
+                json.writeStringField("transcript", text.substring(textOffsets[i], textOffsets[i + 1]));
+                json.writeArrayFieldStart("words");
+                for (int w = firstWords[i]; w < firstWords[i + 1]; w++) {
+                    json.writeStartObject();
+                    json.writeStringField("content", wordText.substring(wordOffsets[w], wordOffsets[w + 1]));
+                    json.writeNumberField("startTime", toSeconds(wordStarts[w]));
+                    json.writeNumberField("endTime", toSeconds(wordEnds[w]));
+                    if (punctuation.get(w)) {
+                        json.writeBooleanField("punctuation", true);
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private void addWord(TranscriptSegment.Word word) {
+        if (wordCount == wordStarts.length) {
+            int capacity = wordCount * 2;
+            wordStarts = Arrays.copyOf(wordStarts, capacity);
+            wordEnds = Arrays.copyOf(wordEnds, capacity);
+            wordOffsets = Arrays.copyOf(wordOffsets, capacity + 1);
+        }
+        wordStarts[wordCount] = toMillis(word.getStartTime());
+        wordEnds[wordCount] = toMillis(word.getEndTime());
+        punctuation.set(wordCount, word.isPunctuation());
+        wordText.append(word.getContent());
+        wordCount++;
+        wordOffsets[wordCount] = wordText.length();
+    }
+
+    private static int toMillis(double seconds) {
+        return (int) Math.round(seconds * 1000);
+    }
+
+    private static double toSeconds(int millis) {
+        return millis / 1000.0;
+    }
+}
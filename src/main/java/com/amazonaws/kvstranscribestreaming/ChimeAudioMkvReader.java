@@ -0,0 +1,591 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link KVSAudioReader} specialized for the MKV layout of Chime Voice Connector streams: every fragment is an
+ * EBML header and a segment holding PCM audio tracks, a cluster of SimpleBlocks and tags. Elements are parsed in
+ * place from a reusable byte window, only the elements of that layout are interpreted and everything else is
+ * skipped, so reading a frame costs one copy of its audio into the output buffer and no per-element objects.
+ *
+ * <p>The layout of every fragment is checked before its cluster is read. As long as that check is pending the
+ * bytes of the fragment are kept in the window, so a fragment that doesn't match (no PCM track, an element of
+ * unknown size, ...) is handed together with the rest of the stream to a {@link GenericKVSAudioReader}, which
+ * reads the remainder of the stream. Unexpected elements inside a cluster, such as laced blocks, fail the
+ * stream.</p>
+ *
+ * <p>Like {@link KVSUtils#getByteBufferFromStream}, the stream ends once a ContactId tag doesn't match the call
+ * being read.</p>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class ChimeAudioMkvReader implements KVSAudioReader {
+
+    private static final int INITIAL_WINDOW_SIZE = 64 * 1024;
+    private static final int INITIAL_OUTPUT_SIZE = 16 * 1024;
+    private static final long UNKNOWN_SIZE = -1;
+
+    private static final int EBML = 0x1A45DFA3;
+    private static final int SEGMENT = 0x18538067;
+    private static final int TRACKS = 0x1654AE6B;
+    private static final int TRACK_ENTRY = 0xAE;
+    private static final int CODEC_ID = 0x86;
+    private static final int CLUSTER = 0x1F43B675;
+    private static final int TIMECODE = 0xE7;
+    private static final int SIMPLE_BLOCK = 0xA3;
+    private static final int BLOCK_GROUP = 0xA0;
+    private static final int BLOCK = 0xA1;
+    private static final int TAGS = 0x1254C367;
+    private static final int TAG = 0x7373;
+    private static final int SIMPLE_TAG = 0x67C8;
+    private static final int TAG_NAME = 0x45A3;
+    private static final int TAG_STRING = 0x4487;
+
+    private static final byte[] PCM_CODEC_PREFIX = ascii("A_PCM");
+    private static final byte[] CONTACT_ID_TAG = ascii("ContactId");
+    private static final byte[] TRANSACTION_ID_TAG = ascii("TransactionId");
+    private static final byte[] FRAGMENT_NUMBER_TAG = ascii("AWS_KINESISVIDEO_FRAGMENT_NUMBER");
+    private static final byte[] PRODUCER_TIMESTAMP_TAG = ascii("AWS_KINESISVIDEO_PRODUCER_TIMESTAMP");
+    private static final byte[] SERVER_TIMESTAMP_TAG = ascii("AWS_KINESISVIDEO_SERVER_TIMESTAMP");
+    private static final byte[] CONTINUATION_TOKEN_TAG = ascii("AWS_KINESISVIDEO_CONTINUATION_TOKEN");
+
+    private static final Logger logger = LoggerFactory.getLogger(ChimeAudioMkvReader.class);
+
+    private final InputStream inputStream;
+    private final String callId;
+    private final byte[] callIdBytes;
+    private byte[] window = new byte[INITIAL_WINDOW_SIZE];
+    private int position;
+    private int limit;
+    // start of the current fragment in the window while its layout is not checked yet, -1 once it is
+    private int fragmentStart;
+    private boolean endOfStream;
+    private boolean otherCall;
+    // the fragment being read, null until the first one starts
+    private PipelineEvents.FragmentParse fragmentEvent;
+    private KVSAudioReader fallback;
+    private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+
+    // header of the element last read by readHeader
+    private int elementId;
+    private long elementSize;
+    private int headerLength;
+
+    private String fragmentNumber;
+    private long producerTimestampMillis = -1;
+    private long serverTimestampMillis = -1;
+    private String transactionId;
+    private String continuationToken;
+    private long clusterTimecode;
+    private long frameTimecode;
+    private int trackNumber;
+
+    public ChimeAudioMkvReader(InputStream inputStream, String callId) {
+        this.inputStream = Validate.notNull(inputStream);
+        this.callId = Validate.notNull(callId);
+        this.callIdBytes = callId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public ByteBuffer readAudio(int maxFrames) throws IOException, MkvElementVisitException {
+        if (fallback != null) {
+            return fallback.readAudio(maxFrames);
+        }
+        output.clear();
+        int frames = 0;
+        while (frames < maxFrames && nextFrame()) {
+            frames++;
+        }
+        if (endOfStream || fallback != null) {
+            endFragmentEvent();
+        }
+        if (frames == 0 && fallback != null) {
+            return fallback.readAudio(maxFrames);
+        }
+        output.flip();
+        return output;
+    }
+
+    @Override
+    public String getFragmentNumber() {
+        return fallback != null ? fallback.getFragmentNumber() : fragmentNumber;
+    }
+
+    @Override
+    public long getProducerTimestampMillis() {
+        return fallback != null ? fallback.getProducerTimestampMillis() : producerTimestampMillis;
+    }
+
+    @Override
+    public long getServerTimestampMillis() {
+        return fallback != null ? fallback.getServerTimestampMillis() : serverTimestampMillis;
+    }
+
+    /**
+     * @return the value of the TransactionId tag of the stream, null if none was read yet
+     */
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * @return the track number of the last frame
+     */
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    /**
+     * @return the timecode of the last frame, its cluster timecode plus its relative timecode, in the timecode
+     * scale of the segment (milliseconds for KVS streams)
+     */
+    public long getFrameTimecode() {
+        return frameTimecode;
+    }
+
+    /**
+     * @return whether the stream didn't match the expected layout and is read by the generic reader
+     */
+    public boolean isFallback() {
+        return fallback != null;
+    }
+
+    @Override
+    public String getContinuationToken() {
+        if (fallback != null && fallback.getContinuationToken() != null) {
+            return fallback.getContinuationToken();
+        }
+        return continuationToken;
+    }
+
+    @Override
+    public boolean isOtherCall() {
+        return fallback != null ? fallback.isOtherCall() : otherCall;
+    }
+
+    /**
+     * Parses elements until the next frame and appends its audio to the output buffer
+     *
+     * @return false at the end of the stream or once the stream was handed to the fallback reader
+     */
+    private boolean nextFrame() throws IOException {
+        while (!endOfStream && fallback == null) {
+            int elementStart = position;
+            if (!ensure(1)) {
+                return false;
+            }
+            int idLength = vintLength(window[position]);
+            if (idLength > 4) {
+                return unexpected("invalid element id");
+            }
+            if (!ensure(idLength + 1) || !ensure(idLength + vintLength(window[position + idLength]))) {
+                return false;
+            }
+            if (!readHeader(position, limit)) {
+                return unexpected("invalid size of element " + Integer.toHexString(elementId));
+            }
+
+            switch (elementId) {
+                case EBML:
+                    // every fragment starts over with its own header
+                    fragmentStart = elementStart;
+                    endFragmentEvent();
+                    fragmentEvent = new PipelineEvents.FragmentParse();
+                    fragmentEvent.begin();
+                    if (!skipElement()) {
+                        return false;
+                    }
+                    break;
+                case SEGMENT:
+                case TAGS:
+                case TAG:
+                case BLOCK_GROUP:
+                    // master elements, their children are read as they come
+                    position += headerLength;
+                    break;
+                case CLUSTER:
+                    fragmentStart = -1;
+                    position += headerLength;
+                    break;
+                case TRACKS:
+                    if (elementSize == UNKNOWN_SIZE) {
+                        return unexpected("tracks of unknown size");
+                    }
+                    if (!ensure(headerLength + elementSize)) {
+                        return false;
+                    }
+                    int tracksEnd = position + headerLength + (int) elementSize;
+                    if (!isPcmAudio(position + headerLength, tracksEnd)) {
+                        return unexpected("tracks other than PCM audio");
+                    }
+                    position = tracksEnd;
+                    break;
+                case TIMECODE:
+                    if (!ensureElement()) {
+                        return false;
+                    }
+                    clusterTimecode = readUnsigned(position + headerLength, (int) elementSize);
+                    position += headerLength + (int) elementSize;
+                    break;
+                case SIMPLE_TAG:
+                    if (!ensureElement()) {
+                        return false;
+                    }
+                    int tagEnd = position + headerLength + (int) elementSize;
+                    readSimpleTag(position + headerLength, tagEnd);
+                    position = tagEnd;
+                    break;
+                case SIMPLE_BLOCK:
+                case BLOCK:
+                    if (!ensureElement()) {
+                        return false;
+                    }
+                    int blockEnd = position + headerLength + (int) elementSize;
+                    readBlock(position + headerLength, blockEnd);
+                    position = blockEnd;
+                    return true;
+                default:
+                    if (elementSize == UNKNOWN_SIZE) {
+                        return unexpected("element " + Integer.toHexString(elementId) + " of unknown size");
+                    }
+                    if (!skipElement()) {
+                        return false;
+                    }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the id and size of the element starting at {@code index} into elementId, elementSize and headerLength
+     *
+     * @return false if the header is invalid or doesn't end before {@code end}
+     */
+    private boolean readHeader(int index, int end) {
+        int idLength = vintLength(window[index]);
+        if (idLength > 4 || index + idLength >= end) {
+            return false;
+        }
+        int id = 0;
+        for (int i = 0; i < idLength; i++) {
+            id = (id << 8) | (window[index + i] & 0xFF);
+        }
+        int sizeLength = vintLength(window[index + idLength]);
+        if (sizeLength > 8 || index + idLength + sizeLength > end) {
+            return false;
+        }
+        long size = window[index + idLength] & (0xFF >> sizeLength);
+        boolean allOnes = size == (0xFF >> sizeLength);
+        for (int i = 1; i < sizeLength; i++) {
+            int b = window[index + idLength + i] & 0xFF;
+            size = (size << 8) | b;
+            allOnes &= b == 0xFF;
+        }
+        elementId = id;
+        elementSize = allOnes ? UNKNOWN_SIZE : size;
+        headerLength = idLength + sizeLength;
+        return elementSize == UNKNOWN_SIZE || elementSize <= Integer.MAX_VALUE - 16;
+    }
+
+    private boolean isPcmAudio(int start, int end) {
+        int tracks = 0;
+        int index = start;
+        while (index < end) {
+            if (!readHeader(index, end) || elementSize == UNKNOWN_SIZE) {
+                return false;
+            }
+            int entryStart = index + headerLength;
+            int entryEnd = entryStart + (int) elementSize;
+            if (entryEnd > end) {
+                return false;
+            }
+            if (elementId == TRACK_ENTRY) {
+                if (!hasPcmCodec(entryStart, entryEnd)) {
+                    return false;
+                }
+                tracks++;
+            }
+            index = entryEnd;
+        }
+        return tracks > 0;
+    }
+
+    private boolean hasPcmCodec(int start, int end) {
+        int index = start;
+        while (index < end) {
+            if (!readHeader(index, end) || elementSize == UNKNOWN_SIZE) {
+                return false;
+            }
+            int valueStart = index + headerLength;
+            if (elementId == CODEC_ID) {
+                return startsWith(valueStart, (int) elementSize, PCM_CODEC_PREFIX);
+            }
+            index = valueStart + (int) elementSize;
+        }
+        return false;
+    }
+
+    private void readSimpleTag(int start, int end) {
+        int nameStart = -1;
+        int nameLength = 0;
+        int valueStart = -1;
+        int valueLength = 0;
+        int index = start;
+        while (index < end) {
+            if (!readHeader(index, end) || elementSize == UNKNOWN_SIZE
+                    || index + headerLength + elementSize > end) {
+                return;
+            }
+            if (elementId == TAG_NAME) {
+                nameStart = index + headerLength;
+                nameLength = (int) elementSize;
+            } else if (elementId == TAG_STRING) {
+                valueStart = index + headerLength;
+                valueLength = (int) elementSize;
+            }
+            index += headerLength + (int) elementSize;
+        }
+        if (nameStart < 0 || valueStart < 0) {
+            return;
+        }
+
+        if (equals(nameStart, nameLength, CONTACT_ID_TAG)) {
+            if (!equals(valueStart, valueLength, callIdBytes)) {
+                // the stream belongs to another call, end it like KVSUtils does
+                logger.warn("Stream for " + callId + " has ContactId " + string(valueStart, valueLength));
+                endOfStream = true;
+                otherCall = true;
+            }
+        } else if (equals(nameStart, nameLength, TRANSACTION_ID_TAG)) {
+            transactionId = string(valueStart, valueLength);
+        } else if (equals(nameStart, nameLength, FRAGMENT_NUMBER_TAG)) {
+            fragmentNumber = string(valueStart, valueLength);
+        } else if (equals(nameStart, nameLength, PRODUCER_TIMESTAMP_TAG)) {
+            producerTimestampMillis = parseSecondsAsMillis(valueStart, valueLength);
+        } else if (equals(nameStart, nameLength, SERVER_TIMESTAMP_TAG)) {
+            serverTimestampMillis = parseSecondsAsMillis(valueStart, valueLength);
+        } else if (equals(nameStart, nameLength, CONTINUATION_TOKEN_TAG)) {
+            continuationToken = string(valueStart, valueLength);
+        }
+    }
+
+    private void readBlock(int start, int end) throws IOException {
+        int trackLength = vintLength(window[start]);
+        if (trackLength > 8 || start + trackLength + 3 > end) {
+            throw new IOException("Invalid block in stream of " + callId);
+        }
+        int track = window[start] & (0xFF >> trackLength);
+        for (int i = 1; i < trackLength; i++) {
+            track = (track << 8) | (window[start + i] & 0xFF);
+        }
+        int timecodeIndex = start + trackLength;
+        short relativeTimecode = (short) (((window[timecodeIndex] & 0xFF) << 8) | (window[timecodeIndex + 1] & 0xFF));
+        int flags = window[timecodeIndex + 2] & 0xFF;
+        if ((flags & 0x06) != 0) {
+            throw new IOException("Laced blocks are not supported, stream of " + callId);
+        }
+
+        trackNumber = track;
+        frameTimecode = clusterTimecode + relativeTimecode;
+        int dataStart = timecodeIndex + 3;
+        int dataLength = end - dataStart;
+        if (output.remaining() < dataLength) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + dataLength));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+        output.put(window, dataStart, dataLength);
+        if (fragmentEvent != null) {
+            fragmentEvent.frames++;
+            fragmentEvent.audioBytes += dataLength;
+        }
+    }
+
+    private void endFragmentEvent() {
+        if (fragmentEvent != null && fragmentEvent.shouldCommit()) {
+            fragmentEvent.setTransactionId(callId);
+            fragmentEvent.fragmentNumber = fragmentNumber;
+            fragmentEvent.commit();
+        }
+        fragmentEvent = null;
+    }
+
+    /**
+     * Skips the current element. While the layout of the fragment is not checked yet its bytes stay in the window
+     * for the fallback reader, otherwise they are discarded without being buffered.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean skipElement() throws IOException {
+        long remaining = headerLength + elementSize;
+        if (fragmentStart >= 0) {
+            if (!ensure(remaining)) {
+                return false;
+            }
+            position += (int) remaining;
+            return true;
+        }
+        int buffered = limit - position;
+        if (remaining <= buffered) {
+            position += (int) remaining;
+            return true;
+        }
+        remaining -= buffered;
+        position = 0;
+        limit = 0;
+        while (remaining > 0) {
+            int read = inputStream.read(window, 0, (int) Math.min(window.length, remaining));
+            if (read < 0) {
+                endOfStream = true;
+                return false;
+            }
+            remaining -= read;
+        }
+        return true;
+    }
+
+    private boolean ensureElement() throws IOException {
+        if (elementSize == UNKNOWN_SIZE) {
+            throw new IOException("Element " + Integer.toHexString(elementId) + " of unknown size in stream of "
+                    + callId);
+        }
+        return ensure(headerLength + elementSize);
+    }
+
+    /**
+     * Makes sure at least {@code length} bytes starting at the current position are in the window
+     *
+     * @return false if the stream ends before
+     */
+    private boolean ensure(long length) throws IOException {
+        while (limit - position < length) {
+            int keep = fragmentStart >= 0 ? fragmentStart : position;
+            if (keep > 0 && window.length - position < length) {
+                System.arraycopy(window, keep, window, 0, limit - keep);
+                limit -= keep;
+                position -= keep;
+                if (fragmentStart >= 0) {
+                    fragmentStart = 0;
+                }
+            }
+            if (window.length - position < length) {
+                window = Arrays.copyOf(window, (int) Math.max(window.length * 2L, position + length));
+            }
+            int read = inputStream.read(window, limit, window.length - limit);
+            if (read < 0) {
+                endOfStream = true;
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the current fragment and the rest of the stream to the generic reader if the fragment was not read
+     * past its header yet, fails the stream otherwise
+     *
+     * @return false, the frame has to be read from the fallback reader
+     */
+    private boolean unexpected(String reason) throws IOException {
+        if (fragmentStart < 0) {
+            throw new IOException("Unexpected MKV layout in stream of " + callId + ": " + reason);
+        }
+        logger.warn("Unexpected MKV layout in stream of " + callId + " (" + reason
+                + "), falling back to the generic reader");
+        InputStream remaining = new SequenceInputStream(
+                new ByteArrayInputStream(Arrays.copyOfRange(window, fragmentStart, limit)), inputStream);
+        fallback = GenericKVSAudioReader.create(remaining, callId);
+        window = null;
+        return false;
+    }
+
+    private long readUnsigned(int index, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (window[index + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Parses the seconds.milliseconds format of the KVS timestamp tags
+     */
+    private long parseSecondsAsMillis(int index, int length) {
+        long seconds = 0;
+        long millis = 0;
+        int fractionDigits = -1;
+        for (int i = index; i < index + length; i++) {
+            byte b = window[i];
+            if (b == '.') {
+                fractionDigits = 0;
+            } else if (b < '0' || b > '9') {
+                return -1;
+            } else if (fractionDigits < 0) {
+                seconds = seconds * 10 + (b - '0');
+            } else if (fractionDigits < 3) {
+                millis = millis * 10 + (b - '0');
+                fractionDigits++;
+            }
+        }
+        for (int i = Math.max(fractionDigits, 0); i < 3; i++) {
+            millis *= 10;
+        }
+        return seconds * 1000 + millis;
+    }
+
+    private boolean equals(int index, int length, byte[] expected) {
+        return length == expected.length && startsWith(index, length, expected);
+    }
+
+    private boolean startsWith(int index, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (window[index + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int index, int length) {
+        return new String(window, index, length, StandardCharsets.UTF_8);
+    }
+
+    private static int vintLength(byte first) {
+        return Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
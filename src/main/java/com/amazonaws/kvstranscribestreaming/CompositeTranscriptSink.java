@@ -0,0 +1,88 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands every segment to several sinks. A failing sink does not keep the segments from the others; wrap each sink
+ * in its own {@link AsyncTranscriptSink} so a slow one does not hold the others back either.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class CompositeTranscriptSink implements TranscriptSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompositeTranscriptSink.class);
+
+    private final List<TranscriptSink> sinks;
+
+    public CompositeTranscriptSink(List<TranscriptSink> sinks) {
+        this.sinks = new ArrayList<>(Validate.notEmpty(sinks));
+    }
+
+    @Override
+    public void write(List<TranscriptSegment> segments) {
+        for (TranscriptSink sink : sinks) {
+            try {
+                sink.write(segments);
+            } catch (Exception e) {
+                logger.error("Exception while writing transcript segments to " + sink + ": ", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean flushed = true;
+        for (TranscriptSink sink : sinks) {
+            flushed &= sink.flush(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return flushed;
+    }
+
+    @Override
+    public boolean flush(String callId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean flushed = true;
+        for (TranscriptSink sink : sinks) {
+            flushed &= sink.flush(callId, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        return flushed;
+    }
+
+    @Override
+    public void close() throws Exception {
+        Exception closeException = null;
+        for (TranscriptSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (Exception e) {
+                if (closeException == null) {
+                    closeException = e;
+                } else {
+                    closeException.addSuppressed(e);
+                }
+            }
+        }
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+}
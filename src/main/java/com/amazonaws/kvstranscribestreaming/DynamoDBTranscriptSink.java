@@ -0,0 +1,306 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.kvstranscribestreaming.DynamoDBWriteGovernor.Priority;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PutItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.BatchWriteItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes transcript segments to the TranscriptionsData table polled by the Transcribe website. A single segment is
+ * written with PutItem, several with BatchWriteItem in chunks of up to 25 items.
+ *
+ * <p>Every request is paced by a {@link DynamoDBWriteGovernor}, which lets requests holding end of transcription
+ * markers and final segments go ahead of those holding only partial segments. The segments of a write keep the order
+ * they arrived in, only the end of transcription markers are written after all other segments. Throttled
+ * requests with a final segment or marker are retried; throttled partial segments are given up, since a later
+ * version of the segment replaces them anyway.</p>
+ *
+ * <p>The retries here are the only ones: the client should be built with SDK retries turned off, otherwise every
+ * throttled attempt is retried again inside the SDK without the governor seeing it. Behind a
+ * {@link SpillingTranscriptSink} the sink need not retry at all, the spilled segments are retried by its
+ * replayer.</p>
+ *
+ * <p>Segments DynamoDB rejects as invalid are logged and counted instead of failing the write, since writing them
+ * again can't succeed; the other segments of a rejected batch are written one by one.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class DynamoDBTranscriptSink implements TranscriptSink {
+
+    private static final String TABLE_CALLER_TRANSCRIPT = "TranscriptionsData";
+    private static final int MAX_BATCH_WRITE_ITEMS = 25;
+    private static final int DEFAULT_MAX_THROTTLED_RETRIES = 10;
+    private static final long THROTTLED_RETRY_BASE_MILLIS = 50;
+    private static final long THROTTLED_RETRY_MAX_MILLIS = 2000;
+    // key, attribute names and the other attributes of an item, on top of the transcript
+    private static final int ITEM_OVERHEAD_BYTES = 100;
+    // errors of requests that fail the same way however often they are sent
+    private static final Set<String> PERMANENT_ERROR_CODES = new HashSet<>(Arrays.asList("ValidationException",
+            "SerializationException"));
+    private static final Logger logger = LoggerFactory.getLogger(DynamoDBTranscriptSink.class);
+
+    private final DynamoDB ddbClient;
+    private final DynamoDBWriteGovernor governor;
+    private final int maxThrottledRetries;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public DynamoDBTranscriptSink(DynamoDB ddbClient) {
+        this(ddbClient, DynamoDBWriteGovernor.unlimited());
+    }
+
+    public DynamoDBTranscriptSink(DynamoDB ddbClient, DynamoDBWriteGovernor governor) {
+        this(ddbClient, governor, DEFAULT_MAX_THROTTLED_RETRIES);
+    }
+
+    /**
+     * @param maxThrottledRetries how often a throttled final segment is retried before the write fails
+     */
+    public DynamoDBTranscriptSink(DynamoDB ddbClient, DynamoDBWriteGovernor governor, int maxThrottledRetries) {
+        Validate.isTrue(maxThrottledRetries >= 0, "maxThrottledRetries must not be negative");
+        this.ddbClient = Validate.notNull(ddbClient);
+        this.governor = Validate.notNull(governor);
+        this.maxThrottledRetries = maxThrottledRetries;
+    }
+
+    /**
+     * @return segments DynamoDB rejected as invalid
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public void write(List<TranscriptSegment> segments) throws InterruptedException {
+        if (segments.size() == 1) {
+            putItem(segments.get(0));
+            return;
+        }
+
+        // BatchWriteItem rejects two writes to the same key, keep only the latest version of each segment
+        Map<String, TranscriptSegment> latest = new LinkedHashMap<>();
+        for (TranscriptSegment segment : segments) {
+            String key = segment.getCallId() + "#" + segment.getSequenceNumber();
+            latest.remove(key);
+            latest.put(key, segment);
+        }
+        // keep the order the segments arrived in, except that an end of transcription marker goes after every
+        // other segment: a consumer seeing it must find all final segments of the call already written
+        List<TranscriptSegment> ordered = new ArrayList<>(latest.size());
+        List<TranscriptSegment> endMarkers = new ArrayList<>();
+        for (TranscriptSegment segment : latest.values()) {
+            (segment.isEndOfTranscription() ? endMarkers : ordered).add(segment);
+        }
+        ordered.addAll(endMarkers);
+
+        for (int from = 0; from < ordered.size(); from += MAX_BATCH_WRITE_ITEMS) {
+            batchWrite(ordered.subList(from, Math.min(from + MAX_BATCH_WRITE_ITEMS, ordered.size())));
+        }
+    }
+
+    private void putItem(TranscriptSegment segment) throws InterruptedException {
+        Priority priority = Priority.of(segment);
+        double units = estimateUnits(segment.getTranscript());
+        for (int retry = 0; ; retry++) {
+            governor.acquire(units, priority);
+            PipelineEvents.DynamoDBWrite writeEvent = writeEvent("PutItem", segment, 1, retry);
+            try {
+                PutItemOutcome outcome = ddbClient.getTable(TABLE_CALLER_TRANSCRIPT).putItem(new PutItemSpec()
+                        .withItem(toDynamoDbItem(segment))
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                writeEvent.commit();
+                governor.onSuccess(units, consumedCapacity(outcome.getPutItemResult().getConsumedCapacity()),
+                        Collections.singletonMap(segment.getCallId(), units));
+                return;
+            } catch (ProvisionedThroughputExceededException e) {
+                writeEvent.throttled = true;
+                writeEvent.commit();
+                governor.onThrottled();
+                if (priority == Priority.PARTIAL) {
+                    logger.debug("Giving up throttled partial segment " + segment);
+                    return;
+                }
+                if (retry == maxThrottledRetries) {
+                    throw e;
+                }
+                backOff(retry);
+            } catch (AmazonServiceException e) {
+                if (!isPermanent(e)) {
+                    throw e;
+                }
+                reject(segment, e);
+                return;
+            }
+        }
+    }
+
+    private void batchWrite(List<TranscriptSegment> chunk) throws InterruptedException {
+        // the chunk waits for the governor with the priority of its most important segment
+        Priority priority = chunk.stream().map(Priority::of).min(Comparator.naturalOrder()).get();
+        List<Item> items = new ArrayList<>(chunk.size());
+        for (TranscriptSegment segment : chunk) {
+            items.add(toDynamoDbItem(segment));
+        }
+        BatchWriteItemSpec spec = new BatchWriteItemSpec()
+                .withTableWriteItems(new TableWriteItems(TABLE_CALLER_TRANSCRIPT).withItemsToPut(items))
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        Map<String, Double> unitsPerCall = new HashMap<>();
+        for (TranscriptSegment segment : chunk) {
+            unitsPerCall.merge(segment.getCallId(), estimateUnits(segment.getTranscript()), Double::sum);
+        }
+
+        for (int retry = 0; ; retry++) {
+            double units = unitsPerCall.values().stream().mapToDouble(Double::doubleValue).sum();
+            governor.acquire(units, priority);
+            Map<String, List<WriteRequest>> unprocessed;
+            PipelineEvents.DynamoDBWrite writeEvent = writeEvent("BatchWriteItem", chunk.get(0), chunk.size(), retry);
+            try {
+                BatchWriteItemOutcome outcome = ddbClient.batchWriteItem(spec);
+                governor.onSuccess(units, outcome.getBatchWriteItemResult().getConsumedCapacity(), unitsPerCall);
+                unprocessed = outcome.getUnprocessedItems();
+                writeEvent.throttled = !unprocessed.isEmpty();
+            } catch (ProvisionedThroughputExceededException e) {
+                // nothing of the batch was written
+                governor.onThrottled();
+                unprocessed = null;
+                writeEvent.throttled = true;
+            } catch (AmazonServiceException e) {
+                if (!isPermanent(e)) {
+                    throw e;
+                }
+                // the whole batch is rejected for its invalid items, find them by writing the items one by one
+                writeEvent.commit();
+                for (TranscriptSegment segment : chunk) {
+                    putItem(segment);
+                }
+                return;
+            }
+            writeEvent.commit();
+
+            if (unprocessed != null && unprocessed.isEmpty()) {
+                return;
+            }
+            if (unprocessed != null) {
+                governor.onThrottled();
+                spec = new BatchWriteItemSpec()
+                        .withUnprocessedItems(unprocessed)
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+                unitsPerCall = estimateUnitsPerCall(unprocessed);
+            }
+            if (priority == Priority.PARTIAL) {
+                logger.debug("Giving up throttled batch of partial segments");
+                return;
+            }
+            if (retry == maxThrottledRetries) {
+                throw new IllegalStateException("Transcript items still throttled after " + maxThrottledRetries
+                        + " retries");
+            }
+            backOff(retry);
+        }
+    }
+
+    /**
+     * Begins the event of a write request. Committing it is a no-op unless a recording enables it.
+     */
+    private static PipelineEvents.DynamoDBWrite writeEvent(String operation, TranscriptSegment first, int items,
+                                                           int attempt) {
+        PipelineEvents.DynamoDBWrite writeEvent = new PipelineEvents.DynamoDBWrite();
+        if (writeEvent.isEnabled()) {
+            writeEvent.setTransactionId(first.getCallId());
+            writeEvent.table = TABLE_CALLER_TRANSCRIPT;
+            writeEvent.operation = operation;
+            writeEvent.items = items;
+            writeEvent.attempt = attempt;
+        }
+        writeEvent.begin();
+        return writeEvent;
+    }
+
+    private void reject(TranscriptSegment segment, AmazonServiceException e) {
+        long total = rejectedCount.incrementAndGet();
+        logger.error("DynamoDB rejected transcript segment " + segment.getCallId() + "#" + segment.getSequenceNumber()
+                + ", it is lost, " + total + " rejected so far: " + e.getErrorCode() + " " + e.getErrorMessage());
+    }
+
+    private static boolean isPermanent(AmazonServiceException e) {
+        return e.getErrorType() == AmazonServiceException.ErrorType.Client
+                && PERMANENT_ERROR_CODES.contains(e.getErrorCode());
+    }
+
+    private static void backOff(int retry) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(Math.min(THROTTLED_RETRY_MAX_MILLIS, THROTTLED_RETRY_BASE_MILLIS << retry));
+    }
+
+    private static List<ConsumedCapacity> consumedCapacity(
+            ConsumedCapacity consumedCapacity) {
+        return consumedCapacity == null ? Collections.emptyList() : Collections.singletonList(consumedCapacity);
+    }
+
+    private static Map<String, Double> estimateUnitsPerCall(Map<String, List<WriteRequest>> writeRequests) {
+        Map<String, Double> unitsPerCall = new HashMap<>();
+        for (List<WriteRequest> tableRequests : writeRequests.values()) {
+            for (WriteRequest request : tableRequests) {
+                Map<String, AttributeValue> item = request.getPutRequest().getItem();
+                AttributeValue transcript = item.get("TranscribedStream");
+                unitsPerCall.merge(item.get("CallId").getS(),
+                        estimateUnits(transcript == null ? "" : transcript.getS()), Double::sum);
+            }
+        }
+        return unitsPerCall;
+    }
+
+    /**
+     * A write consumes one unit per started KB of the item
+     */
+    private static double estimateUnits(String transcript) {
+        return Math.ceil((transcript.getBytes(StandardCharsets.UTF_8).length + ITEM_OVERHEAD_BYTES) / 1024.0);
+    }
+
+    static Item toDynamoDbItem(TranscriptSegment segment) {
+        return new Item()
+                .withKeyComponent("CallId", segment.getCallId())
+                .withKeyComponent("SequenceNumber", segment.getSequenceNumber())
+                .withString("TranscribedStream", segment.getTranscript())
+                .withBoolean("IsPartial", segment.isPartial())
+                .withBoolean("IsFinal", segment.isEndOfTranscription());
+    }
+}
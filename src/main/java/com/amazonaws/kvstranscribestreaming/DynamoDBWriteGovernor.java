@@ -0,0 +1,266 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces the transcript writes of all sessions in the process to the write capacity DynamoDB actually grants.
+ *
+ * <p>Writers take write capacity units from a token bucket before every request. The refill rate adapts: it is
+ * halved when DynamoDB throttles (at most once a second, so a burst of throttled requests counts once) and grows
+ * again by a few percent of the maximum for every second without throttling. The consumed capacity returned by
+ * DynamoDB replaces the estimate a writer took, so large items cost what they really cost.</p>
+ *
+ * <p>When tokens are short, waiting writers are served by {@link Priority}: end of transcription markers before
+ * final segments before partial segments.</p>
+ *
+ * <p>The consumed capacity is also totalled per call and published with {@link #publishCallCapacity} when the
+ * call ends.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class DynamoDBWriteGovernor {
+
+    public enum Priority {
+        END_OF_TRANSCRIPTION, FINAL, PARTIAL;
+
+        public static Priority of(TranscriptSegment segment) {
+            if (segment.isEndOfTranscription()) {
+                return END_OF_TRANSCRIPTION;
+            }
+            return segment.isPartial() ? PARTIAL : FINAL;
+        }
+    }
+
+    private static final String CALL_CAPACITY_METRIC = "TranscriptWriteCapacityUnitsPerCall";
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double INCREASE_FRACTION = 0.05;
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Logger logger = LoggerFactory.getLogger(DynamoDBWriteGovernor.class);
+
+    private final MetricsUtil metricsUtil;
+    private final boolean limited;
+    private final double minUnitsPerSecond;
+    private final double maxUnitsPerSecond;
+    private final Map<String, DoubleAdder> consumedByCall = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition tokensAvailable = lock.newCondition();
+    private final int[] waiting = new int[Priority.values().length];
+    private double unitsPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private long lastDecreaseNanos;
+    private long lastIncreaseNanos = System.nanoTime();
+    private long lastThrottleNanos = System.nanoTime() - ADJUST_INTERVAL_NANOS;
+
+    /**
+     * @param metricsUtil       used to publish the consumed capacity of every call, may be null
+     * @param minUnitsPerSecond the rate is never throttled below this
+     * @param maxUnitsPerSecond starting rate and upper bound, for example the provisioned capacity of the table
+     */
+    public DynamoDBWriteGovernor(MetricsUtil metricsUtil, double minUnitsPerSecond, double maxUnitsPerSecond) {
+        this(metricsUtil, true, minUnitsPerSecond, maxUnitsPerSecond);
+    }
+
+    private DynamoDBWriteGovernor(MetricsUtil metricsUtil, boolean limited, double minUnitsPerSecond,
+                                  double maxUnitsPerSecond) {
+        Validate.isTrue(minUnitsPerSecond > 0 && minUnitsPerSecond <= maxUnitsPerSecond,
+                "Expected 0 < minUnitsPerSecond <= maxUnitsPerSecond");
+        this.metricsUtil = metricsUtil;
+        this.limited = limited;
+        this.minUnitsPerSecond = minUnitsPerSecond;
+        this.maxUnitsPerSecond = maxUnitsPerSecond;
+        this.unitsPerSecond = maxUnitsPerSecond;
+        this.tokens = maxUnitsPerSecond;
+        this.lastDecreaseNanos = lastRefillNanos - ADJUST_INTERVAL_NANOS;
+    }
+
+    /**
+     * Governor that never makes writers wait but still totals the consumed capacity per call
+     *
+     * @return
+     */
+    public static DynamoDBWriteGovernor unlimited() {
+        return new DynamoDBWriteGovernor(null, false, 1, 1);
+    }
+
+    /**
+     * Waits until the given number of write capacity units may be used. Writers of a lower priority wait as long
+     * as writers of a higher priority are waiting.
+     *
+     * @param estimatedUnits
+     * @param priority
+     * @throws InterruptedException
+     */
+    public void acquire(double estimatedUnits, Priority priority) throws InterruptedException {
+        if (!limited) {
+            return;
+        }
+        lock.lock();
+        try {
+            waiting[priority.ordinal()]++;
+            try {
+                while (true) {
+                    refill();
+                    // tokens may go negative for a request larger than the bucket, the next writers pay it back
+                    if (tokens > 0 && !higherPriorityWaiting(priority)) {
+                        tokens -= estimatedUnits;
+                        return;
+                    }
+                    long nanosUntilTokens = (long) ((Math.max(0, -tokens) + 1) / unitsPerSecond * 1e9);
+                    tokensAvailable.awaitNanos(Math.min(Math.max(nanosUntilTokens, 1), MAX_WAIT_NANOS));
+                }
+            } finally {
+                waiting[priority.ordinal()]--;
+                tokensAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports a successful request
+     *
+     * @param estimatedUnits        what was passed to {@link #acquire}
+     * @param consumedCapacity      as returned by DynamoDB, null or empty if not returned
+     * @param estimatedUnitsPerCall how the request's capacity splits over calls, used to attribute it
+     */
+    public void onSuccess(double estimatedUnits, List<ConsumedCapacity> consumedCapacity,
+                          Map<String, Double> estimatedUnitsPerCall) {
+        double consumed = estimatedUnits;
+        if (consumedCapacity != null && !consumedCapacity.isEmpty()) {
+            consumed = consumedCapacity.stream().mapToDouble(c -> c.getCapacityUnits() == null
+                    ? 0 : c.getCapacityUnits()).sum();
+        }
+
+        for (Map.Entry<String, Double> call : estimatedUnitsPerCall.entrySet()) {
+            double share = estimatedUnits > 0 ? call.getValue() / estimatedUnits : 0;
+            consumedByCall.computeIfAbsent(call.getKey(), id -> new DoubleAdder()).add(consumed * share);
+        }
+
+        if (!limited) {
+            return;
+        }
+        lock.lock();
+        try {
+            tokens -= consumed - estimatedUnits;
+            long now = System.nanoTime();
+            if (now - lastThrottleNanos >= ADJUST_INTERVAL_NANOS && now - lastIncreaseNanos >= ADJUST_INTERVAL_NANOS
+                    && unitsPerSecond < maxUnitsPerSecond) {
+                unitsPerSecond = Math.min(maxUnitsPerSecond, unitsPerSecond + maxUnitsPerSecond * INCREASE_FRACTION);
+                lastIncreaseNanos = now;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports a request or part of a request that DynamoDB throttled
+     */
+    public void onThrottled() {
+        if (!limited) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            lastThrottleNanos = now;
+            if (now - lastDecreaseNanos >= ADJUST_INTERVAL_NANOS) {
+                unitsPerSecond = Math.max(minUnitsPerSecond, unitsPerSecond / 2);
+                lastDecreaseNanos = now;
+                logger.warn("DynamoDB is throttling transcript writes, slowing down to " + (long) unitsPerSecond
+                        + " write units per second");
+            }
+            tokens = Math.min(tokens, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether DynamoDB throttled a request within the last second
+     */
+    public boolean isThrottled() {
+        if (!limited) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return System.nanoTime() - lastThrottleNanos < ADJUST_INTERVAL_NANOS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getUnitsPerSecond() {
+        lock.lock();
+        try {
+            return unitsPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the write capacity consumed for a call and forgets it. Call once the call's segments are written.
+     *
+     * @param callId
+     * @return the consumed write capacity units
+     */
+    public double publishCallCapacity(String callId) {
+        DoubleAdder consumed = consumedByCall.remove(callId);
+        double units = consumed == null ? 0 : consumed.sum();
+        if (metricsUtil != null) {
+            try {
+                metricsUtil.recordMetric(CALL_CAPACITY_METRIC, (long) Math.ceil(units));
+            } catch (Exception e) {
+                logger.error("Exception while publishing write capacity of " + callId + ": ", e);
+            }
+        }
+        return units;
+    }
+
+    // must hold lock
+    private void refill() {
+        long now = System.nanoTime();
+        // the bucket holds at most one second worth of tokens
+        tokens = Math.min(unitsPerSecond, tokens + (now - lastRefillNanos) / 1e9 * unitsPerSecond);
+        lastRefillNanos = now;
+    }
+
+    // must hold lock
+    private boolean higherPriorityWaiting(Priority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
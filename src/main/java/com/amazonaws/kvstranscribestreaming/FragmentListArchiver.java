@@ -0,0 +1,306 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.model.Fragment;
+import com.amazonaws.services.kinesisvideo.model.FragmentSelector;
+import com.amazonaws.services.kinesisvideo.model.FragmentSelectorType;
+import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListRequest;
+import com.amazonaws.services.kinesisvideo.model.ListFragmentsRequest;
+import com.amazonaws.services.kinesisvideo.model.ListFragmentsResult;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies the audio of a call leg that is already stored in KVS faster than real time. Instead of reading the stream
+ * with a single GetMedia at the pace it was recorded, the fragments of the call are enumerated with ListFragments
+ * and fetched in batches with GetMediaForFragmentList, several batches at a time on a shared pool. The PCM of the
+ * batches is written to the recording in fragment order, whatever order the fetches complete in.
+ *
+ * <p>While the call is still going on, new fragments are picked up by listing the stream again. The recording ends
+ * when the stream goes on with the audio of another call, or when no new fragment showed up for idleMillis.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class FragmentListArchiver {
+
+    private static final long MAX_LIST_RESULTS = 1000;
+    private static final long LIST_POLL_MILLIS = 1000;
+    private static final int FRAMES_PER_READ = 64;
+
+    private static final Logger logger = LoggerFactory.getLogger(FragmentListArchiver.class);
+
+    private final AmazonKinesisVideoArchivedMedia archivedMedia;
+    private final String streamName;
+    private final String callId;
+    private final ExecutorService fetchExecutor;
+    private final MemoryBudget memoryBudget;
+    private final int fragmentsPerRequest;
+    private final int maxRequestsInFlight;
+    private final Date listFrom;
+    private final long idleMillis;
+
+    private BigInteger lastListedFragment;
+    private Date listedUntil;
+    private volatile String fragmentNumber;
+    private volatile String stopReason;
+    // audio of fetched batches reserved in the memory budget, released at the latest when writeTo returns
+    private long heldBytes;
+    private boolean closed;
+
+    /**
+     * @param archivedMedia       client for the archived media APIs of the stream
+     * @param streamName
+     * @param startFragmentNumber first fragment of the call
+     * @param callId
+     * @param fetchExecutor       pool running the GetMediaForFragmentList requests, shared by the calls
+     * @param memoryBudget        budget the audio of fetched batches is held against until it is written
+     * @param fragmentsPerRequest most fragments fetched by one request
+     * @param maxRequestsInFlight most batches of this call being fetched or waiting to be written at a time
+     * @param listFrom            server time the fragments of the call are listed from, shortly before the call
+     *                            started; the stream holds the fragments of earlier calls before it
+     * @param idleMillis          how long to wait for new fragments before the call is considered over
+     */
+    public FragmentListArchiver(AmazonKinesisVideoArchivedMedia archivedMedia, String streamName,
+                                String startFragmentNumber, String callId, ExecutorService fetchExecutor,
+                                MemoryBudget memoryBudget, int fragmentsPerRequest, int maxRequestsInFlight,
+                                Date listFrom, long idleMillis) {
+        this.archivedMedia = Validate.notNull(archivedMedia);
+        this.streamName = Validate.notNull(streamName);
+        this.callId = Validate.notNull(callId);
+        this.fetchExecutor = Validate.notNull(fetchExecutor);
+        this.memoryBudget = Validate.notNull(memoryBudget);
+        Validate.isTrue(fragmentsPerRequest > 0, "fragmentsPerRequest must be positive");
+        Validate.isTrue(maxRequestsInFlight > 0, "maxRequestsInFlight must be positive");
+        this.fragmentsPerRequest = fragmentsPerRequest;
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        this.listFrom = Validate.notNull(listFrom);
+        this.idleMillis = idleMillis;
+        // fragments before the first one of the call are skipped
+        this.lastListedFragment = new BigInteger(Validate.notNull(startFragmentNumber)).subtract(BigInteger.ONE);
+    }
+
+    /**
+     * Writes the audio of the call to the output stream and returns when the call is over
+     *
+     * @param outputStream
+     * @return the number of audio bytes written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long writeTo(OutputStream outputStream) throws IOException, InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        long lastFragmentMillis = startMillis;
+        Deque<List<String>> pending = new ArrayDeque<>();
+        Deque<Future<Batch>> inFlight = new ArrayDeque<>();
+        long audioBytes = 0;
+        int fragments = 0;
+
+        try {
+            while (true) {
+                if (stopReason != null) {
+                    logger.info("Stopping the recording of " + callId + ": " + stopReason);
+                    break;
+                }
+                while (inFlight.size() < maxRequestsInFlight && !pending.isEmpty()) {
+                    memoryBudget.awaitCapacity(callId);
+                    List<String> batch = pending.poll();
+                    inFlight.add(fetchExecutor.submit(() -> fetch(batch)));
+                }
+
+                if (!inFlight.isEmpty()) {
+                    Batch batch = get(inFlight.poll());
+                    try {
+                        outputStream.write(batch.audio);
+                    } finally {
+                        release(batch.audio.length);
+                    }
+                    audioBytes += batch.audio.length;
+                    fragments += batch.fragmentCount;
+                    if (batch.lastFragmentNumber != null) {
+                        fragmentNumber = batch.lastFragmentNumber;
+                    }
+                    if (batch.otherCall) {
+                        logger.info("Stream of " + callId + " went on with another call, ending the recording");
+                        break;
+                    }
+                    continue;
+                }
+
+                List<Fragment> listed = listNewFragments();
+                if (!listed.isEmpty()) {
+                    lastFragmentMillis = System.currentTimeMillis();
+                    for (int i = 0; i < listed.size(); i += fragmentsPerRequest) {
+                        List<String> batch = new ArrayList<>();
+                        for (Fragment fragment : listed.subList(i, Math.min(listed.size(), i + fragmentsPerRequest))) {
+                            batch.add(fragment.getFragmentNumber());
+                        }
+                        pending.add(batch);
+                    }
+                } else if (System.currentTimeMillis() - lastFragmentMillis >= idleMillis) {
+                    break;
+                } else {
+                    TimeUnit.MILLISECONDS.sleep(LIST_POLL_MILLIS);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                closed = true;
+                release(heldBytes);
+            }
+            for (Future<Batch> batch : inFlight) {
+                batch.cancel(true);
+            }
+        }
+
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+        logger.info("Archived " + fragments + " fragments of " + callId + ", " + audioBytes + " bytes of audio in "
+                + elapsedMillis + " ms");
+        return audioBytes;
+    }
+
+    /**
+     * Makes {@link #writeTo} return after the batch it is writing, without the rest of the call's audio
+     *
+     * @param reason
+     */
+    public void stop(String reason) {
+        stopReason = Validate.notNull(reason);
+    }
+
+    /**
+     * @return the last fragment whose audio was written, null before the first one
+     */
+    public String getFragmentNumber() {
+        return fragmentNumber;
+    }
+
+    /**
+     * Lists the fragments after the last one listed so far, in fragment order
+     */
+    private List<Fragment> listNewFragments() {
+        Date now = new Date();
+        // the last range is listed again in case fragments were still being ingested, they are told apart by number
+        Date from = listedUntil == null ? listFrom : listedUntil;
+        FragmentSelector selector = new FragmentSelector()
+                .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
+                .withTimestampRange(new TimestampRange().withStartTimestamp(from).withEndTimestamp(now));
+
+        List<Fragment> fragments = new ArrayList<>();
+        String nextToken = null;
+        do {
+            ListFragmentsResult result = archivedMedia.listFragments(new ListFragmentsRequest()
+                    .withStreamName(streamName)
+                    .withFragmentSelector(selector)
+                    .withMaxResults(MAX_LIST_RESULTS)
+                    .withNextToken(nextToken));
+            for (Fragment fragment : result.getFragments()) {
+                if (new BigInteger(fragment.getFragmentNumber()).compareTo(lastListedFragment) > 0) {
+                    fragments.add(fragment);
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+
+        // ListFragments returns fragments in no particular order
+        fragments.sort(Comparator.comparing(fragment -> new BigInteger(fragment.getFragmentNumber())));
+        if (!fragments.isEmpty()) {
+            lastListedFragment = new BigInteger(fragments.get(fragments.size() - 1).getFragmentNumber());
+            listedUntil = fragments.get(fragments.size() - 1).getServerTimestamp();
+        }
+        return fragments;
+    }
+
+    private Batch fetch(List<String> fragmentNumbers) throws IOException, MkvElementVisitException {
+        ByteArrayOutputStream audio = new ByteArrayOutputStream();
+        ChimeAudioMkvReader audioReader;
+        try (InputStream payload = archivedMedia.getMediaForFragmentList(new GetMediaForFragmentListRequest()
+                .withStreamName(streamName)
+                .withFragments(fragmentNumbers)).getPayload()) {
+            audioReader = new ChimeAudioMkvReader(payload, callId);
+            WritableByteChannel audioChannel = Channels.newChannel(audio);
+            ByteBuffer audioBuffer = audioReader.readAudio(FRAMES_PER_READ);
+            while (audioBuffer.remaining() > 0) {
+                audioChannel.write(audioBuffer);
+                audioBuffer = audioReader.readAudio(FRAMES_PER_READ);
+            }
+        }
+        byte[] bytes = audio.toByteArray();
+        synchronized (this) {
+            if (closed) {
+                // the recording already ended, nobody is going to write this batch
+                return new Batch(new byte[0], 0, null, false);
+            }
+            memoryBudget.reserve(callId, bytes.length);
+            heldBytes += bytes.length;
+        }
+        return new Batch(bytes, fragmentNumbers.size(), audioReader.getFragmentNumber(), audioReader.isOtherCall());
+    }
+
+    private synchronized void release(long bytes) {
+        memoryBudget.release(callId, bytes);
+        heldBytes -= bytes;
+    }
+
+    private Batch get(Future<Batch> batch) throws IOException, InterruptedException {
+        try {
+            return batch.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Fetching fragments of " + callId + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Audio of a batch of fragments, held until it is its turn to be written
+     */
+    private static final class Batch {
+        private final byte[] audio;
+        private final int fragmentCount;
+        private final String lastFragmentNumber;
+        private final boolean otherCall;
+
+        private Batch(byte[] audio, int fragmentCount, String lastFragmentNumber, boolean otherCall) {
+            this.audio = audio;
+            this.fragmentCount = fragmentCount;
+            this.lastFragmentNumber = lastFragmentNumber;
+            this.otherCall = otherCall;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import org.apache.commons.lang3.Validate;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * {@link KVSAudioReader} on top of the generic {@link StreamingMkvReader} of the KVS parser library. It handles
+ * any MKV layout and is the fallback of {@link ChimeAudioMkvReader}.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class GenericKVSAudioReader implements KVSAudioReader {
+
+    private final StreamingMkvReader streamingMkvReader;
+    private final FragmentMetadataVisitor fragmentVisitor;
+    private final FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor;
+    private final String callId;
+    private PipelineEvents.FragmentParse fragmentEvent;
+    private boolean otherCall;
+
+    public GenericKVSAudioReader(StreamingMkvReader streamingMkvReader, FragmentMetadataVisitor fragmentVisitor,
+                                 FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor, String callId) {
+        this.streamingMkvReader = Validate.notNull(streamingMkvReader);
+        this.fragmentVisitor = Validate.notNull(fragmentVisitor);
+        this.tagProcessor = Validate.notNull(tagProcessor);
+        this.callId = Validate.notNull(callId);
+    }
+
+    /**
+     * Creates a reader parsing the given stream
+     *
+     * @param inputStream
+     * @param callId
+     * @return
+     */
+    public static GenericKVSAudioReader create(InputStream inputStream, String callId) {
+        FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor = new FragmentMetadataVisitor.BasicMkvTagProcessor();
+        return new GenericKVSAudioReader(
+                StreamingMkvReader.createDefault(new InputStreamParserByteSource(inputStream)),
+                FragmentMetadataVisitor.create(Optional.of(tagProcessor)), tagProcessor, callId);
+    }
+
+    @Override
+    public ByteBuffer readAudio(int maxFrames) throws MkvElementVisitException {
+        if (fragmentEvent == null) {
+            fragmentEvent = new PipelineEvents.FragmentParse();
+            fragmentEvent.begin();
+        }
+        ByteBuffer audio = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor, tagProcessor, callId,
+                maxFrames);
+        if (audio.remaining() == 0) {
+            // the tags of a fragment with another ContactId are kept when the stream is ended because of it
+            otherCall = tagProcessor.getTags().stream()
+                    .anyMatch(tag -> "ContactId".equals(tag.getTagName()) && !callId.equals(tag.getTagValue()));
+        }
+
+        // the library parser doesn't expose fragment boundaries, a fragment ends when the next one is reported
+        String fragmentNumber = getFragmentNumber();
+        if (fragmentEvent.fragmentNumber == null) {
+            fragmentEvent.fragmentNumber = fragmentNumber;
+        } else if (!fragmentEvent.fragmentNumber.equals(fragmentNumber) || audio.remaining() == 0) {
+            commitFragmentEvent();
+            if (audio.remaining() == 0) {
+                return audio;
+            }
+            fragmentEvent = new PipelineEvents.FragmentParse();
+            fragmentEvent.begin();
+            fragmentEvent.fragmentNumber = fragmentNumber;
+        }
+        fragmentEvent.audioBytes += audio.remaining();
+        return audio;
+    }
+
+    private void commitFragmentEvent() {
+        if (fragmentEvent.shouldCommit()) {
+            fragmentEvent.setTransactionId(callId);
+            fragmentEvent.commit();
+        }
+        fragmentEvent = null;
+    }
+
+    @Override
+    public String getFragmentNumber() {
+        return fragmentVisitor.getCurrentFragmentMetadata().map(FragmentMetadata::getFragmentNumberString)
+                .orElse(null);
+    }
+
+    @Override
+    public long getProducerTimestampMillis() {
+        return fragmentVisitor.getCurrentFragmentMetadata().map(FragmentMetadata::getProducerSideTimestampMillis)
+                .orElse(-1L);
+    }
+
+    @Override
+    public long getServerTimestampMillis() {
+        return fragmentVisitor.getCurrentFragmentMetadata().map(FragmentMetadata::getServerSideTimestampMillis)
+                .orElse(-1L);
+    }
+
+    @Override
+    public String getContinuationToken() {
+        return fragmentVisitor.getContinuationToken().orElse(null);
+    }
+
+    @Override
+    public boolean isOtherCall() {
+        return otherCall;
+    }
+}
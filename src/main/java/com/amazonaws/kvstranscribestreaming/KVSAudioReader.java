@@ -0,0 +1,65 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the audio frames of a call from a KVS GetMedia stream, along with the metadata of the fragment the last
+ * frame came from.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public interface KVSAudioReader {
+
+    /**
+     * Reads up to {@code maxFrames} frames and concatenates their audio. The returned buffer may be reused by the
+     * next call, so it has to be consumed before reading again.
+     *
+     * @param maxFrames
+     * @return the audio, empty at the end of the stream or when the stream belongs to another call
+     * @throws IOException
+     * @throws MkvElementVisitException
+     */
+    ByteBuffer readAudio(int maxFrames) throws IOException, MkvElementVisitException;
+
+    /**
+     * @return the number of the fragment the last frame came from, null before the first fragment
+     */
+    String getFragmentNumber();
+
+    /**
+     * @return the producer timestamp of the fragment the last frame came from, -1 if unknown
+     */
+    long getProducerTimestampMillis();
+
+    /**
+     * @return the server timestamp of the fragment the last frame came from, -1 if unknown
+     */
+    long getServerTimestampMillis();
+
+    /**
+     * @return the last AWS_KINESISVIDEO_CONTINUATION_TOKEN tag of the stream, where another GetMedia can resume
+     * it, null if none was read yet
+     */
+    String getContinuationToken();
+
+    /**
+     * @return whether the stream ended because it went on with the audio of another call
+     */
+    boolean isOtherCall();
+}
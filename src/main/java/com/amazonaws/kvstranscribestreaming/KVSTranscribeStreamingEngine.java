@@ -0,0 +1,840 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClientBuilder;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.model.StartSelector;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.AmazonS3URI;
+import com.amazonaws.transcribestreaming.AudioEndSignal;
+import com.amazonaws.transcribestreaming.KVSByteToAudioEventSubscription;
+import com.amazonaws.transcribestreaming.LiveEdgeTracker;
+import com.amazonaws.transcribestreaming.StreamTranscriptionBehaviorImpl;
+import com.amazonaws.transcribestreaming.TranscribeStreamingRetryClient;
+import com.amazonaws.transcribestreaming.TranscriptEventDispatcher;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.Validate;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
+import software.amazon.awssdk.services.transcribestreaming.model.LanguageCode;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionRequest;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Session engine shared by {@link KVSTranscribeStreamingLambda} and {@link KVSTranscribeStreamingWorker}. It
+ * turns a Chime Voice Connector streaming status event into a call session: KVS audio is streamed to Transcribe,
+ * transcript segments are handed to the {@link TranscriptSink}s and the raw audio is uploaded to S3 at the end of
+ * the call.
+ *
+ * <p>The engine is thread safe and is meant to be created once per process. The transcript sinks, the CloudWatch
+ * metrics and the Transcribe streaming client are shared by every session it runs, so sessions don't pay for
+ * building their own clients.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class KVSTranscribeStreamingEngine implements AutoCloseable {
+
+    private static final Regions REGION = Regions.fromName(System.getenv("AWS_REGION"));
+    private static final Regions TRANSCRIBE_REGION = Regions.fromName(System.getenv("AWS_REGION"));
+    private static final String TRANSCRIBE_ENDPOINT = "https://transcribestreaming." + TRANSCRIBE_REGION.getName()
+            + ".amazonaws.com";
+    private static final String RECORDINGS_BUCKET_NAME = System.getenv("RECORDINGS_BUCKET_NAME");
+    private static final String IS_TRANSCRIBE_ENABLED = System.getenv("IS_TRANSCRIBE_ENABLED");
+    private static final String RECORDINGS_KEY_PREFIX = "voiceConnectorToKVS_";
+    private static final boolean CONSOLE_LOG_TRANSCRIPT_FLAG = true;
+    private static final boolean RECORDINGS_PUBLIC_READ_ACL = false;
+    private static final long SESSION_TIMEOUT_SECONDS = 600;
+    private static final boolean WRITE_PARTIAL_RESULTS = Boolean.parseBoolean(System.getenv("WRITE_PARTIAL_RESULTS"));
+    private static final long PARTIAL_RESULTS_INTERVAL_MILLIS =
+            System.getenv("PARTIAL_RESULTS_INTERVAL_MILLIS") == null
+                    ? 500 : Long.parseLong(System.getenv("PARTIAL_RESULTS_INTERVAL_MILLIS"));
+    private static final String TRANSCRIPT_PUSH_PORT = System.getenv("TRANSCRIPT_PUSH_PORT");
+    // "segments" (default) for one item per segment, "buckets" for the compact layout, or "both"
+    private static final String TRANSCRIPT_STORAGE_LAYOUT = System.getenv("TRANSCRIPT_STORAGE_LAYOUT") == null
+            ? "segments" : System.getenv("TRANSCRIPT_STORAGE_LAYOUT");
+    private static final String TRANSCRIPT_BUCKETS_TABLE_NAME = System.getenv("TRANSCRIPT_BUCKETS_TABLE_NAME") == null
+            ? "TranscriptionBuckets" : System.getenv("TRANSCRIPT_BUCKETS_TABLE_NAME");
+    private static final int TRANSCRIPT_BUCKET_MAX_BYTES = 1024;
+    private static final long TRANSCRIPT_BUCKET_WINDOW_MILLIS = 30000;
+    // starting and highest rate of transcript writes, 1000 is the most a single DynamoDB partition takes
+    private static final double TRANSCRIPT_MAX_WRITE_UNITS_PER_SECOND =
+            System.getenv("TRANSCRIPT_MAX_WRITE_UNITS_PER_SECOND") == null
+                    ? 1000 : Double.parseDouble(System.getenv("TRANSCRIPT_MAX_WRITE_UNITS_PER_SECOND"));
+    private static final double TRANSCRIPT_MIN_WRITE_UNITS_PER_SECOND = 1;
+    private static final int TRANSCRIPT_SINK_QUEUE_SIZE = 10000;
+    private static final int TRANSCRIPT_SINK_BATCH_SIZE = 100;
+    private static final int TRANSCRIPT_SUBSCRIBER_QUEUE_SIZE = 1000;
+    // threads handling the transcript events of all sessions, off the Transcribe SDK threads
+    private static final int TRANSCRIPT_HANDLER_THREADS = System.getenv("TRANSCRIPT_HANDLER_THREADS") == null
+            ? Math.max(2, Runtime.getRuntime().availableProcessors())
+            : Integer.parseInt(System.getenv("TRANSCRIPT_HANDLER_THREADS"));
+    private static final int TRANSCRIPT_EVENT_QUEUE_SIZE = 1000;
+    private static final long TRANSCRIPT_FLUSH_TIMEOUT_MILLIS = 30000;
+    private static final boolean WRITE_TRANSCRIPT_TO_S3 = !"false".equals(System.getenv("WRITE_TRANSCRIPT_TO_S3"));
+    private static final Path TRANSCRIPT_SPILL_DIRECTORY = Paths.get("/tmp", "transcript-spill");
+    // audio further behind real time than this is read in catch-up mode until it is back within LIVE_EDGE_LAG_MILLIS
+    private static final long CATCH_UP_LAG_MILLIS = System.getenv("CATCH_UP_LAG_MILLIS") == null
+            ? 3000 : Long.parseLong(System.getenv("CATCH_UP_LAG_MILLIS"));
+    private static final long LIVE_EDGE_LAG_MILLIS = Math.min(1000, CATCH_UP_LAG_MILLIS);
+    // Chime streams the call legs as 16 bit mono PCM at this rate
+    private static final int MEDIA_SAMPLE_RATE_HERTZ = 8000;
+    private static final int AUDIO_BYTES_PER_SECOND = MEDIA_SAMPLE_RATE_HERTZ * 2;
+    // buffer the GetMedia stream is read ahead into, off the heap, 0 to parse straight from the socket
+    private static final int KVS_READ_AHEAD_BYTES = System.getenv("KVS_READ_AHEAD_KB") == null
+            ? 128 * 1024 : Integer.parseInt(System.getenv("KVS_READ_AHEAD_KB")) * 1024;
+    private static final int KVS_READ_AHEAD_READ_BYTES = 32 * 1024;
+    // "pcm" (default) streams the raw audio to Transcribe, "flac" encodes it first for about half the bytes; voice
+    // connectors may set their own
+    private static final String MEDIA_ENCODING = System.getenv("MEDIA_ENCODING") == null
+            ? VoiceConnectorSettings.MEDIA_ENCODING_PCM : System.getenv("MEDIA_ENCODING");
+    // a call whose stream delivers no audio for this long has hung up, 0 to wait for KVS to close the stream
+    private static final long AUDIO_IDLE_TIMEOUT_MILLIS = System.getenv("AUDIO_IDLE_TIMEOUT_MILLIS") == null
+            ? 5000 : Long.parseLong(System.getenv("AUDIO_IDLE_TIMEOUT_MILLIS"));
+    // once the ENDED or FAILED event arrived, the audio left in the stream is read until it is idle for this long
+    private static final long END_DRAIN_IDLE_MILLIS = 1000;
+    // times in a row a GetMedia response that broke off is resumed by another one without reading audio, 0 to end
+    // the call's audio where its stream ends
+    private static final int KVS_RECONNECT_ATTEMPTS = System.getenv("KVS_RECONNECT_ATTEMPTS") == null
+            ? 3 : Integer.parseInt(System.getenv("KVS_RECONNECT_ATTEMPTS"));
+    private static final long KVS_RECONNECT_BACKOFF_BASE_MILLIS = 200;
+    private static final long KVS_RECONNECT_BACKOFF_MAX_MILLIS = 2000;
+    // memory all calls of the process may hold in audio chunks and queued transcript segments, half the heap by default
+    private static final long MEMORY_BUDGET_BYTES = System.getenv("MEMORY_BUDGET_MB") == null
+            ? Runtime.getRuntime().maxMemory() / 2 : Long.parseLong(System.getenv("MEMORY_BUDGET_MB")) * 1024 * 1024;
+    // longest single pause of a call's KVS reads, well below the 15 seconds Transcribe waits for audio
+    private static final long MEMORY_BUDGET_MAX_PAUSE_MILLIS = 5000;
+    private static final long POST_CALL_TIMEOUT_MILLIS = 120000;
+    private static final String CALL_LEASE_TABLE_NAME = System.getenv("CALL_LEASE_TABLE_NAME") == null
+            ? "TranscriptionLeases" : System.getenv("CALL_LEASE_TABLE_NAME");
+    private static final long CALL_LEASE_MILLIS = 60000;
+    // "chime" (default) for the parser specialized for Chime audio streams, "generic" for the KVS parser library
+    private static final String MKV_READER = System.getenv("MKV_READER") == null
+            ? "chime" : System.getenv("MKV_READER");
+    // "stream" (default) reads the audio with GetMedia as it arrives, "fragments" fetches the stored fragments in
+    // parallel with GetMediaForFragmentList when Transcribe is not enabled
+    private static final String RECORDING_FETCH_MODE = System.getenv("RECORDING_FETCH_MODE") == null
+            ? "stream" : System.getenv("RECORDING_FETCH_MODE");
+    private static final int ARCHIVE_FETCH_THREADS = System.getenv("ARCHIVE_FETCH_THREADS") == null
+            ? 8 : Integer.parseInt(System.getenv("ARCHIVE_FETCH_THREADS"));
+    private static final int ARCHIVE_FRAGMENTS_PER_REQUEST = 20;
+    // fragments are listed from this long before the start time of the call, server and event clocks may differ
+    private static final long ARCHIVE_START_SLACK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // how far back fragments are listed for an event without a start time
+    private static final long ARCHIVE_LOOKBACK_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final long ARCHIVE_IDLE_MILLIS = 5000;
+    // per voice connector settings, voice connectors without an item use the environment variables
+    private static final String VOICE_CONNECTOR_SETTINGS_TABLE_NAME =
+            System.getenv("VOICE_CONNECTOR_SETTINGS_TABLE_NAME") == null
+                    ? "VoiceConnectorSettings" : System.getenv("VOICE_CONNECTOR_SETTINGS_TABLE_NAME");
+    private static final long VOICE_CONNECTOR_SETTINGS_TTL_MILLIS =
+            System.getenv("VOICE_CONNECTOR_SETTINGS_TTL_SECONDS") == null ? TimeUnit.MINUTES.toMillis(5)
+                    : TimeUnit.SECONDS.toMillis(Long.parseLong(System.getenv("VOICE_CONNECTOR_SETTINGS_TTL_SECONDS")));
+    private static final long VOICE_CONNECTOR_SETTINGS_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // a read still in flight when the call needs its settings only holds the call up this long
+    private static final long VOICE_CONNECTOR_SETTINGS_WAIT_MILLIS = 1000;
+    // phrases to spot in the transcripts, a local file or s3://bucket/key with one phrase per line
+    private static final String PHRASE_LIST = System.getenv("PHRASE_LIST");
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingEngine.class);
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final TranscriptSink transcriptSink;
+    private final DynamoDBWriteGovernor writeGovernor;
+    private final MemoryBudget memoryBudget;
+    private final CallLeaseManager callLeaseManager;
+    private final VoiceConnectorSettingsCache settingsCache;
+    private final MetricsUtil metricsUtil;
+    private final ExecutorService postCallExecutor;
+    private final AtomicInteger postCallThreadCount = new AtomicInteger();
+    private final ExecutorService archiveFetchExecutor;
+    private final AtomicInteger archiveFetchThreadCount = new AtomicInteger();
+    private final AmazonS3 s3Client;
+    private final TranscribeStreamingRetryClient transcribeClient;
+    private final TranscriptEventDispatcher transcriptDispatcher;
+    private final PhraseAutomaton phraseAutomaton;
+    private final PhraseMatchListener phraseMatchListener;
+    // audio end signals of the sessions running in this process, by transaction id
+    private final Map<String, AudioEndSignal> activeCalls = new ConcurrentHashMap<>();
+
+    /**
+     * @param phraseAutomaton     phrases to spot in the transcripts, null to not spot any
+     * @param phraseMatchListener receives the phrases spotted, may be null when phraseAutomaton is
+     */
+    public KVSTranscribeStreamingEngine(TranscriptSink transcriptSink, DynamoDBWriteGovernor writeGovernor,
+                                        MemoryBudget memoryBudget, CallLeaseManager callLeaseManager,
+                                        VoiceConnectorSettingsCache settingsCache, MetricsUtil metricsUtil,
+                                        AmazonS3 s3Client, TranscribeStreamingRetryClient transcribeClient,
+                                        PhraseAutomaton phraseAutomaton, PhraseMatchListener phraseMatchListener) {
+        this.transcriptSink = Validate.notNull(transcriptSink);
+        this.writeGovernor = Validate.notNull(writeGovernor);
+        this.memoryBudget = Validate.notNull(memoryBudget);
+        this.callLeaseManager = Validate.notNull(callLeaseManager);
+        this.settingsCache = Validate.notNull(settingsCache);
+        this.postCallExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "post-call-" + postCallThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.archiveFetchExecutor = Executors.newFixedThreadPool(ARCHIVE_FETCH_THREADS, r -> {
+            Thread thread = new Thread(r, "archive-fetch-" + archiveFetchThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.s3Client = Validate.notNull(s3Client);
+        this.transcribeClient = Validate.notNull(transcribeClient);
+        this.transcriptDispatcher = new TranscriptEventDispatcher(TRANSCRIPT_HANDLER_THREADS,
+                TRANSCRIPT_EVENT_QUEUE_SIZE, metricsUtil);
+        this.phraseAutomaton = phraseAutomaton;
+        this.phraseMatchListener = phraseAutomaton == null ? null : Validate.notNull(phraseMatchListener);
+    }
+
+    /**
+     * Creates an engine with the default AWS clients, sized for the given number of concurrent sessions. Transcript
+     * segments go to DynamoDB in the layout chosen by TRANSCRIPT_STORAGE_LAYOUT, and also to a
+     * {@link TranscriptPushServer} when TRANSCRIPT_PUSH_PORT is set. Phrases of the PHRASE_LIST spotted in the
+     * transcripts are logged and pushed to the subscribers of the push server.
+     *
+     * @param maxConcurrentSessions
+     * @return
+     */
+    public static KVSTranscribeStreamingEngine createDefault(int maxConcurrentSessions) {
+        MetricsUtil metricsUtil = new MetricsUtil(AmazonCloudWatchClientBuilder.defaultClient());
+        MemoryBudget memoryBudget = new MemoryBudget(MEMORY_BUDGET_BYTES, MEMORY_BUDGET_MAX_PAUSE_MILLIS);
+        DynamoDB dynamoDB = new DynamoDB(
+                AmazonDynamoDBClientBuilder.standard().withRegion(REGION.getName()).build());
+        // the transcript sinks and the write governor own the backoff of throttled writes, so the client
+        // itself does not retry them on top
+        DynamoDB transcriptDynamoDB = new DynamoDB(AmazonDynamoDBClientBuilder.standard()
+                .withRegion(REGION.getName())
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .build());
+
+        // one governor paces the writes of all sessions and layouts, they share the account's capacity
+        DynamoDBWriteGovernor writeGovernor = new DynamoDBWriteGovernor(metricsUtil,
+                TRANSCRIPT_MIN_WRITE_UNITS_PER_SECOND, TRANSCRIPT_MAX_WRITE_UNITS_PER_SECOND);
+
+        List<TranscriptSink> sinks = new ArrayList<>();
+        List<PhraseMatchListener> phraseMatchListeners = new ArrayList<>();
+        phraseMatchListeners.add(match -> TranscriptLog.shared().event(match.getCallId(), "Phrase spotted",
+                match.toString()));
+        if (!"buckets".equals(TRANSCRIPT_STORAGE_LAYOUT)) {
+            try {
+                // segments that DynamoDB does not take, or takes only slowly, are kept on disk and written once it
+                // recovers; the spill's replayer retries them, so the DynamoDB sink does not
+                SpillingTranscriptSink segmentSink = new SpillingTranscriptSink(
+                        new DynamoDBTranscriptSink(transcriptDynamoDB, writeGovernor, 0), TRANSCRIPT_SPILL_DIRECTORY,
+                        writeGovernor::isThrottled);
+                sinks.add(new AsyncTranscriptSink("dynamodb", segmentSink, TRANSCRIPT_SINK_QUEUE_SIZE,
+                        TRANSCRIPT_SINK_BATCH_SIZE, memoryBudget, true));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not create transcript spill directory "
+                        + TRANSCRIPT_SPILL_DIRECTORY, e);
+            }
+        }
+        if ("buckets".equals(TRANSCRIPT_STORAGE_LAYOUT) || "both".equals(TRANSCRIPT_STORAGE_LAYOUT)) {
+            BucketedDynamoDBTranscriptSink bucketSink = new BucketedDynamoDBTranscriptSink(transcriptDynamoDB,
+                    TRANSCRIPT_BUCKETS_TABLE_NAME, writeGovernor, TRANSCRIPT_BUCKET_MAX_BYTES,
+                    TRANSCRIPT_BUCKET_WINDOW_MILLIS);
+            sinks.add(new AsyncTranscriptSink("dynamodb-buckets", bucketSink, TRANSCRIPT_SINK_QUEUE_SIZE,
+                    TRANSCRIPT_SINK_BATCH_SIZE, memoryBudget, true));
+        }
+        if (TRANSCRIPT_PUSH_PORT != null) {
+            try {
+                TranscriptPushServer pushServer = new TranscriptPushServer(Integer.parseInt(TRANSCRIPT_PUSH_PORT),
+                        TRANSCRIPT_SUBSCRIBER_QUEUE_SIZE);
+                sinks.add(new AsyncTranscriptSink("push", pushServer, TRANSCRIPT_SINK_QUEUE_SIZE,
+                        TRANSCRIPT_SINK_BATCH_SIZE, memoryBudget, false));
+                phraseMatchListeners.add(pushServer);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start the transcript push server on port "
+                        + TRANSCRIPT_PUSH_PORT, e);
+            }
+        }
+
+        try {
+            TranscribeStreamingRetryClient transcribeClient = new TranscribeStreamingRetryClient(
+                    getTranscribeCredentials(), TRANSCRIBE_ENDPOINT, TRANSCRIBE_REGION, metricsUtil,
+                    maxConcurrentSessions);
+            AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
+                    .withRegion(REGION)
+                    .withCredentials(getAWSCredentials())
+                    .build();
+            VoiceConnectorSettings defaultSettings = new VoiceConnectorSettings(LanguageCode.EN_US.toString(), null,
+                    Boolean.valueOf(IS_TRANSCRIBE_ENABLED), KVSByteToAudioEventSubscription.DEFAULT_CHUNK_FRAMES, true,
+                    MEDIA_ENCODING);
+            // settings are refreshed in the last fifth of their TTL, so connectors with regular calls never miss
+            VoiceConnectorSettingsCache settingsCache = new VoiceConnectorSettingsCache(dynamoDB,
+                    VOICE_CONNECTOR_SETTINGS_TABLE_NAME, defaultSettings, VOICE_CONNECTOR_SETTINGS_TTL_MILLIS,
+                    VOICE_CONNECTOR_SETTINGS_TTL_MILLIS / 5, VOICE_CONNECTOR_SETTINGS_NEGATIVE_TTL_MILLIS);
+            return new KVSTranscribeStreamingEngine(new CompositeTranscriptSink(sinks), writeGovernor, memoryBudget,
+                    new CallLeaseManager(dynamoDB, CALL_LEASE_TABLE_NAME, CALL_LEASE_MILLIS), settingsCache,
+                    metricsUtil, s3Client,
+                    transcribeClient, loadPhraseList(s3Client, PHRASE_LIST), match -> {
+                        for (PhraseMatchListener listener : phraseMatchListeners) {
+                            listener.onMatch(match);
+                        }
+                    });
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Invalid Transcribe endpoint " + TRANSCRIBE_ENDPOINT, e);
+        }
+    }
+
+    /**
+     * @param s3Client
+     * @param location a local file, or s3://bucket/key
+     * @return the phrases of the list, null if no list is configured
+     */
+    private static PhraseAutomaton loadPhraseList(AmazonS3 s3Client, String location) {
+        if (location == null || location.isEmpty()) {
+            return null;
+        }
+        try {
+            PhraseAutomaton phraseAutomaton;
+            if (location.startsWith("s3://")) {
+                AmazonS3URI uri = new AmazonS3URI(location);
+                try (InputStream phrases = s3Client.getObject(uri.getBucket(), uri.getKey()).getObjectContent()) {
+                    phraseAutomaton = PhraseAutomaton.read(phrases);
+                }
+            } else {
+                try (InputStream phrases = Files.newInputStream(Paths.get(location))) {
+                    phraseAutomaton = PhraseAutomaton.read(phrases);
+                }
+            }
+            logger.info("Spotting " + phraseAutomaton.getPhraseCount() + " phrases of " + location);
+            return phraseAutomaton;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the phrase list " + location, e);
+        }
+    }
+
+    /**
+     * Handles one streaming status event as delivered through SQS. For a STARTED event this runs the whole call
+     * session and returns when the call has been transcribed and recorded. An ENDED or FAILED event makes the
+     * session of the call read the audio left in its stream and finish, directly when the session runs in this
+     * process and through the lease table otherwise.
+     *
+     * @param messageBody body of the SQS message, the CloudWatch event as JSON
+     * @throws Exception
+     */
+    public void processMessage(String messageBody) throws Exception {
+        Map<String, Object> snsMessage = objectMapper.readValue(messageBody, Map.class);
+
+        Map<String, String> detail = (Map) snsMessage.get("detail");
+
+        final String streamARN = detail.get("streamArn");
+        final String firstFragementNumber = detail.get("startFragmentNumber");
+        final String transactionId = detail.get("transactionId");
+        final String callId = detail.get("callId");
+        final String direction = detail.get("direction");
+        final String streamingStatus = detail.get("streamingStatus");
+        final String voiceConnectorId = detail.get("voiceConnectorId");
+        final String startTime = detail.get("startTime");
+
+        if ("STARTED".equals(streamingStatus)) {
+
+            logger.info("Received STARTED event for " + transactionId + " " + callId);
+
+            // usually cached; if not, the read overlaps with taking the lease
+            CompletableFuture<VoiceConnectorSettings> settingsLookup = settingsCache.get(voiceConnectorId);
+
+            // SQS delivers at least once, only the first delivery gets to stream the call
+            CallLeaseManager.CallLease lease = callLeaseManager.acquire(transactionId, streamARN,
+                    firstFragementNumber);
+            if (lease == null) {
+                return;
+            }
+            // a call taken over from a worker that died goes on where that worker got to
+            String startFragmentNumber = lease.getPreviousFragmentNumber() != null
+                    ? lease.getPreviousFragmentNumber() : firstFragementNumber;
+            PipelineEvents.startCall(transactionId, callId);
+            try {
+                VoiceConnectorSettings settings = settingsCache.await(settingsLookup, voiceConnectorId,
+                        VOICE_CONNECTOR_SETTINGS_WAIT_MILLIS);
+                if (!settings.isTranscribeEnabled() && !settings.isRecordingEnabled()) {
+                    logger.info("Transcription and recording are disabled for voice connector " + voiceConnectorId
+                            + ", ignoring " + transactionId);
+                    return;
+                }
+                startKVSToTranscribeStreaming(streamARN, startFragmentNumber, transactionId,
+                        settings.isTranscribeEnabled(), settings.isRecordingEnabled(), settings, callId, direction,
+                        startTime, lease);
+            } finally {
+                PipelineEvents.endCall(transactionId);
+                callLeaseManager.release(lease);
+            }
+
+            logger.info("Finished processing session for " + transactionId + " " + callId);
+
+        } else if ("ENDED".equals(streamingStatus) || "FAILED".equals(streamingStatus)) {
+
+            logger.info("Received " + streamingStatus + " event for " + transactionId + " " + callId);
+
+            AudioEndSignal endSignal = activeCalls.get(transactionId);
+            if (endSignal != null) {
+                endSignal.callEnded("streaming status " + streamingStatus);
+            } else if (callLeaseManager.markEnded(transactionId)) {
+                // the session runs in another process, or is yet to start; the lease picks the flag up
+                logger.info("Flagged " + transactionId + " as ended for the process streaming it");
+            }
+        }
+    }
+
+    /**
+     * Starts streaming between KVS and Transcribe The transcript segments are
+     * continuously saved to the Dynamo DB table At end of the streaming session,
+     * the raw audio is saved as an s3 object
+     *
+     * @param streamName
+     * @param startFragmentNum
+     * @param transactionId
+     * @param settings      settings of the voice connector of the call
+     * @param callId
+     * @param direction
+     * @param startTime     start time of the call from the STARTED event, may be null
+     * @param lease
+     * @throws Exception
+     */
+    private void startKVSToTranscribeStreaming(String streamName, String startFragmentNum, String transactionId,
+            boolean transcribeEnabled, boolean shouldWriteAudioToFile, VoiceConnectorSettings settings,
+            final String callId, String direction, String startTime, CallLeaseManager.CallLease lease)
+            throws Exception {
+
+        // the audio and the transcript of the call leg are stored under the same name
+        String recordingName = transactionId + "_" + callId + "_" + DATE_FORMAT.format(Instant.now());
+        Path saveAudioFilePath = Paths.get("/tmp", recordingName + ".raw");
+        FileOutputStream fileOutputStream = new FileOutputStream(saveAudioFilePath.toString());
+
+        if (!transcribeEnabled && "fragments".equals(RECORDING_FETCH_MODE)) {
+            archiveFragments(streamName, startFragmentNum, transactionId, startTime, fileOutputStream,
+                    saveAudioFilePath, lease);
+            return;
+        }
+
+        InputStream getMediaStream = openGetMedia(streamName, KVSUtils.getStartSelector(startFragmentNum),
+                transactionId, false);
+        // ends the audio once the stream is idle, sooner after the call ended
+        // aborting GetMedia also ends the read-ahead, after the audio it already read
+        AudioEndSignal endSignal = transcribeEnabled ? new AudioEndSignal(transactionId, getMediaStream,
+                AUDIO_IDLE_TIMEOUT_MILLIS, END_DRAIN_IDLE_MILLIS) : null;
+        // a GetMedia response that breaks off is resumed by another one, without repeating or losing frames
+        ReconnectingKVSAudioReader audioReader = new ReconnectingKVSAudioReader(
+                readAhead(getMediaStream, transactionId), transactionId, startFragmentNum, startSelector -> {
+                    InputStream reopened = openGetMedia(streamName, startSelector, transactionId, true);
+                    if (endSignal != null) {
+                        endSignal.setSource(reopened);
+                    }
+                    return readAhead(reopened, transactionId);
+                }, kvsInputStream -> "generic".equals(MKV_READER)
+                        ? GenericKVSAudioReader.create(kvsInputStream, transactionId)
+                        : new ChimeAudioMkvReader(kvsInputStream, transactionId),
+                endSignal, KVS_RECONNECT_ATTEMPTS, KVS_RECONNECT_BACKOFF_BASE_MILLIS, KVS_RECONNECT_BACKOFF_MAX_MILLIS);
+        lease.setProgressSupplier(audioReader::getFragmentNumber);
+
+        if (transcribeEnabled) {
+            TranscriptEventDispatcher.Session transcriptSession = null;
+            activeCalls.put(transactionId, endSignal);
+            lease.setEndListener(() -> endSignal.callEnded("flagged in the lease table"));
+            lease.setLostListener(() -> endSignal.stop("lease lost"));
+            try {
+                // create a SegmentWriter to be able to save off transcription results
+                TranscribedSegmentWriter segmentWriter = new TranscribedSegmentWriter(transactionId, transcriptSink,
+                        CONSOLE_LOG_TRANSCRIPT_FLAG, WRITE_PARTIAL_RESULTS, PARTIAL_RESULTS_INTERVAL_MILLIS,
+                        createTranscriptArchiver(recordingName, transactionId, callId, direction));
+                segmentWriter.resumeAfter(lease.getPreviousSequenceNumber());
+                lease.setSequenceNumberSupplier(segmentWriter::getSequenceNumber);
+
+                logger.info("Calling Transcribe service..");
+
+                // the transcript events are handled on the dispatcher's threads, not the Transcribe SDK's
+                transcriptSession = transcriptDispatcher.open(transactionId,
+                        new StreamTranscriptionBehaviorImpl(segmentWriter, phraseAutomaton == null ? null
+                                : new PhraseSpotter(transactionId, phraseAutomaton, phraseMatchListener)));
+
+                CompletableFuture<Void> result = transcribeClient.startStreamTranscription(
+                        getRequest(MEDIA_SAMPLE_RATE_HERTZ, settings),
+                        new KVSAudioStreamPublisher(audioReader, transactionId, fileOutputStream,
+                                shouldWriteAudioToFile, new LiveEdgeTracker(metricsUtil, transactionId,
+                                CATCH_UP_LAG_MILLIS, LIVE_EDGE_LAG_MILLIS, AUDIO_BYTES_PER_SECOND), memoryBudget,
+                                endSignal, settings.getChunkFrames(),
+                                settings.isFlacEncoded() ? MEDIA_SAMPLE_RATE_HERTZ : 0),
+                        transcriptSession, transactionId);
+
+                result.get(SESSION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                logger.debug("Timing out KVS to Transcribe Streaming after " + SESSION_TIMEOUT_SECONDS + " sec");
+
+            } catch (Exception e) {
+                logger.error("Error during streaming: ", e);
+                throw e;
+
+            } finally {
+                activeCalls.remove(transactionId, endSignal);
+                PostCallStage postCall = new PostCallStage(transactionId, postCallExecutor);
+                TranscriptEventDispatcher.Session handledSession = transcriptSession;
+                // the Lambda may be frozen once this returns, make sure the call's transcript is out by then
+                CompletableFuture<Void> flushed = postCall.run("flush-transcript", () -> {
+                    // the last transcript events and the end of the transcription may still be queued
+                    if (handledSession != null) {
+                        if (!handledSession.drain(TRANSCRIPT_FLUSH_TIMEOUT_MILLIS)) {
+                            logger.warn("Transcript events of " + transactionId + " still queued after "
+                                    + TRANSCRIPT_FLUSH_TIMEOUT_MILLIS + " ms");
+                        }
+                        handledSession.close();
+                    }
+                    if (!transcriptSink.flush(transactionId, TRANSCRIPT_FLUSH_TIMEOUT_MILLIS)) {
+                        logger.warn("Transcript segments of " + transactionId + " still queued after "
+                                + TRANSCRIPT_FLUSH_TIMEOUT_MILLIS + " ms");
+                    }
+                });
+                postCall.run("publish-call-metrics", () -> {
+                    logger.info("Transcript of " + transactionId + " consumed "
+                            + writeGovernor.publishCallCapacity(transactionId) + " DynamoDB write units");
+                    publishCallMemory(transactionId);
+                    publishReconnects(transactionId, audioReader);
+                }, flushed);
+                addRecordingSteps(postCall, audioReader, fileOutputStream, saveAudioFilePath, transactionId,
+                        shouldWriteAudioToFile);
+                postCall.await(POST_CALL_TIMEOUT_MILLIS);
+            }
+        } else {
+            try {
+                logger.info("Transcibe is not enabled. Saving audio bytes to location");
+
+                // Write audio bytes from the KVS stream to the temporary file
+                ByteBuffer audioBuffer = audioReader.readAudio(1);
+                while (audioBuffer.remaining() > 0 && !lease.isLost()) {
+                    byte[] audioBytes = new byte[audioBuffer.remaining()];
+                    audioBuffer.get(audioBytes);
+                    fileOutputStream.write(audioBytes);
+                    audioBuffer = audioReader.readAudio(1);
+                }
+
+            } finally {
+                PostCallStage postCall = new PostCallStage(transactionId, postCallExecutor);
+                addRecordingSteps(postCall, audioReader, fileOutputStream, saveAudioFilePath, transactionId, true);
+                postCall.await(POST_CALL_TIMEOUT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Records the call leg from the fragments stored in KVS, fetched in parallel instead of at the pace of a single
+     * GetMedia
+     */
+    private void archiveFragments(String streamArn, String startFragmentNum, String transactionId, String startTime,
+            FileOutputStream fileOutputStream, Path saveAudioFilePath, CallLeaseManager.CallLease lease)
+            throws Exception {
+        AmazonKinesisVideoArchivedMedia archivedMedia = null;
+        try {
+            logger.info("Transcribe is not enabled. Saving audio of the stored fragments to location");
+
+            archivedMedia = KVSUtils.getArchivedMediaClient(streamArn, REGION, getAWSCredentials());
+            FragmentListArchiver archiver = new FragmentListArchiver(archivedMedia, KVSUtils.getStreamName(streamArn),
+                    startFragmentNum, transactionId, archiveFetchExecutor, memoryBudget, ARCHIVE_FRAGMENTS_PER_REQUEST,
+                    ARCHIVE_FETCH_THREADS, archiveListFrom(startTime, transactionId), ARCHIVE_IDLE_MILLIS);
+            lease.setProgressSupplier(archiver::getFragmentNumber);
+            lease.setLostListener(() -> archiver.stop("lease lost"));
+            archiver.writeTo(fileOutputStream);
+
+        } finally {
+            if (archivedMedia != null) {
+                archivedMedia.shutdown();
+            }
+            memoryBudget.endCall(transactionId);
+            PostCallStage postCall = new PostCallStage(transactionId, postCallExecutor);
+            addRecordingSteps(postCall, null, fileOutputStream, saveAudioFilePath, transactionId, true);
+            postCall.await(POST_CALL_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Returns the time the fragments of the call are listed from: shortly before the call started, so the fragments
+     * of the earlier calls the stream was used for are not paged through
+     */
+    private static Date archiveListFrom(String startTime, String transactionId) {
+        if (startTime != null) {
+            try {
+                return Date.from(Instant.parse(startTime).minusMillis(ARCHIVE_START_SLACK_MILLIS));
+            } catch (DateTimeParseException e) {
+                logger.warn("Invalid start time " + startTime + " of " + transactionId + ": " + e.getMessage());
+            }
+        }
+        return new Date(System.currentTimeMillis() - ARCHIVE_LOOKBACK_MILLIS);
+    }
+
+    /**
+     * Makes a GetMedia call for the stream of the call
+     */
+    private InputStream openGetMedia(String streamArn, StartSelector startSelector, String transactionId,
+                                     boolean reconnect) {
+        PipelineEvents.GetMedia getMediaEvent = new PipelineEvents.GetMedia();
+        getMediaEvent.begin();
+        InputStream getMediaStream = KVSUtils.getInputStreamFromKVS(streamArn, REGION, startSelector,
+                getAWSCredentials());
+        if (getMediaEvent.shouldCommit()) {
+            getMediaEvent.setTransactionId(transactionId);
+            getMediaEvent.streamArn = streamArn;
+            getMediaEvent.startFragmentNumber = startSelector.getAfterFragmentNumber();
+            getMediaEvent.reconnect = reconnect;
+            getMediaEvent.commit();
+        }
+        return getMediaStream;
+    }
+
+    private InputStream readAhead(InputStream getMediaStream, String transactionId) {
+        // network stalls and parsing only hold each other up once the read-ahead buffer is empty or full
+        return KVS_READ_AHEAD_BYTES > 0 ? new ReadAheadInputStream(getMediaStream, transactionId,
+                Math.max(KVS_READ_AHEAD_BYTES, KVS_READ_AHEAD_READ_BYTES), KVS_READ_AHEAD_READ_BYTES, metricsUtil)
+                : getMediaStream;
+    }
+
+    private void publishReconnects(String transactionId, ReconnectingKVSAudioReader audioReader) {
+        if (audioReader.getReconnects() == 0) {
+            return;
+        }
+        logger.info("GetMedia of " + transactionId + " was opened again " + audioReader.getReconnects() + " times");
+        try {
+            metricsUtil.recordMetric("KVSReconnects", audioReader.getReconnects(), StandardUnit.Count);
+        } catch (Exception e) {
+            logger.warn("Could not publish the reconnects of " + transactionId + ": ", e);
+        }
+    }
+
+    private void publishCallMemory(String transactionId) {
+        MemoryBudget.CallMemoryStats stats = memoryBudget.endCall(transactionId);
+        long totalBytes = memoryBudget.getUsedBytes();
+        logger.info("Call " + transactionId + " held at most " + stats.getPeakBytes() + " bytes, its KVS reads were "
+                + "paused for " + stats.getPausedMillis() + " ms, calls of this process hold " + totalBytes + " of "
+                + memoryBudget.getMaxBytes() + " bytes");
+        try {
+            metricsUtil.recordMetric("CallMemoryPeakBytes", stats.getPeakBytes(), StandardUnit.Bytes);
+            metricsUtil.recordMetric("CallReadPausedMillis", stats.getPausedMillis(), StandardUnit.Milliseconds);
+            metricsUtil.recordMetric("ProcessCallMemoryBytes", totalBytes, StandardUnit.Bytes);
+        } catch (Exception e) {
+            logger.warn("Could not publish memory metrics of " + transactionId + ": ", e);
+        }
+    }
+
+    private TranscriptArchiver createTranscriptArchiver(String recordingName, String transactionId, String callId,
+                                                        String direction) {
+        if (!WRITE_TRANSCRIPT_TO_S3 || RECORDINGS_BUCKET_NAME == null) {
+            return null;
+        }
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("transactionId", transactionId);
+        attributes.put("callId", callId);
+        if (direction != null) {
+            attributes.put("direction", direction);
+        }
+        return new TranscriptArchiver(s3Client, RECORDINGS_BUCKET_NAME,
+                RECORDINGS_KEY_PREFIX + recordingName + ".json.gz", attributes);
+    }
+
+    /**
+     * Adds the steps handling the recording of the call to the post-call stage: the KVS stream and the file are
+     * closed side by side, then the recording is converted to wav, uploaded to S3 with the shared client and the
+     * local files are deleted. The raw file is kept when it could not be converted or uploaded.
+     *
+     * @param postCall
+     * @param kvsStream reader of the GetMedia stream of the call, null when the audio was fetched by fragment
+     * @param fileOutputStream
+     * @param saveAudioFilePath
+     * @param transactionId
+     * @param upload
+     */
+    private void addRecordingSteps(PostCallStage postCall, Closeable kvsStream,
+            FileOutputStream fileOutputStream, Path saveAudioFilePath, String transactionId, boolean upload) {
+
+        if (kvsStream != null) {
+            postCall.run("close-kvs-stream", kvsStream::close);
+        }
+        CompletableFuture<Void> fileClosed = postCall.run("close-audio-file", fileOutputStream::close);
+        CompletableFuture<File> wavFile = postCall.supply("convert-to-wav", () -> {
+            if (!upload) {
+                return null;
+            }
+            if (Files.size(saveAudioFilePath) == 0) {
+                logger.info("Skipping upload to S3. Audio file has 0 bytes: " + saveAudioFilePath);
+                return null;
+            }
+            try {
+                return AudioUtils.convertToWav(saveAudioFilePath.toString());
+            } catch (UnsupportedAudioFileException | IOException e) {
+                // like before, a recording that can't be converted doesn't fail the session, the raw file is kept
+                logger.error("Failed to convert to wav: ", e);
+                return null;
+            }
+        }, fileClosed);
+        CompletableFuture<Void> uploaded = postCall.run("upload-audio", () -> {
+            if (wavFile.join() != null) {
+                AudioUtils.uploadWav(s3Client, RECORDINGS_BUCKET_NAME, RECORDINGS_KEY_PREFIX, wavFile.join(),
+                        transactionId, RECORDINGS_PUBLIC_READ_ACL);
+            }
+        }, wavFile);
+        postCall.cleanup("delete-audio-files", () -> {
+            if (wavFile.isDone() && !wavFile.isCompletedExceptionally() && wavFile.join() != null) {
+                Files.deleteIfExists(wavFile.join().toPath());
+            }
+            boolean recordingUploaded = !uploaded.isCompletedExceptionally() && wavFile.join() != null;
+            if (!upload || recordingUploaded || Files.size(saveAudioFilePath) == 0) {
+                Files.deleteIfExists(saveAudioFilePath);
+            }
+        }, uploaded);
+    }
+
+    /**
+     * @return the memory budget shared by the sessions, with the usage of every call and in total
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            transcribeClient.close();
+        } finally {
+            transcriptDispatcher.close();
+            postCallExecutor.shutdown();
+            archiveFetchExecutor.shutdownNow();
+            callLeaseManager.close();
+            settingsCache.close();
+            transcriptSink.close();
+            // write out the transcript lines still queued before the process exits
+            TranscriptLog.shared().close();
+        }
+    }
+
+    /**
+     * @return AWS credentials to be used to connect to s3 (for fetching and
+     *         uploading audio) and KVS
+     */
+    private static AWSCredentialsProvider getAWSCredentials() {
+        return DefaultAWSCredentialsProviderChain.getInstance();
+    }
+
+    /**
+     * @return AWS credentials to be used to connect to Transcribe service. This
+     *         example uses the default credentials provider, which looks for
+     *         environment variables (AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY)
+     *         or a credentials file on the system running this program.
+     */
+    private static AwsCredentialsProvider getTranscribeCredentials() {
+        return DefaultCredentialsProvider.create();
+    }
+
+    /**
+     * Build StartStreamTranscriptionRequestObject containing required parameters to
+     * open a streaming transcription request, such as audio sample rate and
+     * language spoken in audio
+     *
+     * @param mediaSampleRateHertz sample rate of the audio to be streamed to the
+     *                             service in Hertz
+     * @param settings             settings of the voice connector, for the language, the vocabulary and the
+     *                             media encoding
+     * @return StartStreamTranscriptionRequest to be used to open a stream to
+     *         transcription service
+     */
+    private static StartStreamTranscriptionRequest getRequest(Integer mediaSampleRateHertz,
+                                                              VoiceConnectorSettings settings) {
+        return StartStreamTranscriptionRequest.builder().languageCode(settings.getLanguageCode())
+                .vocabularyName(settings.getVocabularyName())
+                .mediaEncoding(settings.getMediaEncoding())
+                .mediaSampleRateHertz(mediaSampleRateHertz).build();
+    }
+
+    /**
+     * KVSAudioStreamPublisher implements audio stream publisher. It emits audio
+     * events from a KVS stream asynchronously in a separate thread
+     */
+    private static class KVSAudioStreamPublisher implements Publisher<AudioStream> {
+        private final KVSAudioReader audioReader;
+        private String callId;
+        private OutputStream outputStream;
+        private boolean shouldWriteToOutputStream;
+        private LiveEdgeTracker liveEdgeTracker;
+        private MemoryBudget memoryBudget;
+        private AudioEndSignal endSignal;
+        private int chunkFrames;
+        private int flacSampleRateHertz;
+
+        private KVSAudioStreamPublisher(KVSAudioReader audioReader, String callId, OutputStream outputStream,
+                boolean shouldWriteToOutputStream, LiveEdgeTracker liveEdgeTracker, MemoryBudget memoryBudget,
+                AudioEndSignal endSignal, int chunkFrames, int flacSampleRateHertz) {
+            this.audioReader = audioReader;
+            this.callId = callId;
+            this.outputStream = outputStream;
+            this.shouldWriteToOutputStream = shouldWriteToOutputStream;
+            this.liveEdgeTracker = liveEdgeTracker;
+            this.memoryBudget = memoryBudget;
+            this.endSignal = endSignal;
+            this.chunkFrames = chunkFrames;
+            this.flacSampleRateHertz = flacSampleRateHertz;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super AudioStream> s) {
+            s.onSubscribe(new KVSByteToAudioEventSubscription(s, audioReader, callId, outputStream,
+                    shouldWriteToOutputStream, liveEdgeTracker, memoryBudget, endSignal, chunkFrames,
+                    flacSampleRateHertz));
+        }
+    }
+}
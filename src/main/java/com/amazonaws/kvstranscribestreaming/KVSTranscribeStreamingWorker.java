@@ -0,0 +1,232 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running alternative to {@link KVSTranscribeStreamingLambda}. The worker long-polls the streaming status
+ * queue and hosts many concurrent call sessions in one JVM through the same {@link KVSTranscribeStreamingEngine},
+ * without the Lambda duration limit or a cold start per call.
+ *
+ * <ul>
+ * <li>At most MAX_CONCURRENT_CALLS sessions run at the same time; the worker only receives as many messages as
+ * it has free session slots.</li>
+ * <li>The visibility timeout of the message of every active session is extended periodically, so the message is
+ * not redelivered to another worker while its call is still being processed.</li>
+ * <li>On SIGTERM the worker stops polling, returns messages it has not started yet to the queue and waits up to
+ * DRAIN_TIMEOUT_SECONDS for the active sessions to finish.</li>
+ * </ul>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class KVSTranscribeStreamingWorker {
+
+    private static final String QUEUE_URL = System.getenv("QUEUE_URL");
+    private static final int MAX_CONCURRENT_CALLS = intFromEnv("MAX_CONCURRENT_CALLS", 200);
+    private static final int VISIBILITY_TIMEOUT_SECONDS = intFromEnv("VISIBILITY_TIMEOUT_SECONDS", 300);
+    private static final int DRAIN_TIMEOUT_SECONDS = intFromEnv("DRAIN_TIMEOUT_SECONDS", 900);
+    private static final int WAIT_TIME_SECONDS = 20;
+    private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+
+    private static final Logger logger = LoggerFactory.getLogger(KVSTranscribeStreamingWorker.class);
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+    private final KVSTranscribeStreamingEngine engine;
+    private final int maxConcurrentCalls;
+    private final Semaphore callSlots;
+    private final ExecutorService sessionExecutor;
+    private final ScheduledExecutorService visibilityExtender;
+    // receipt handles of the messages whose sessions are running, by message id
+    private final Map<String, String> activeMessages = new ConcurrentHashMap<>();
+    private final AtomicInteger sessionThreadCount = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public KVSTranscribeStreamingWorker(AmazonSQS sqs, String queueUrl, KVSTranscribeStreamingEngine engine,
+                                        int maxConcurrentCalls) {
+        this.sqs = Validate.notNull(sqs);
+        this.queueUrl = Validate.notNull(queueUrl);
+        this.engine = Validate.notNull(engine);
+        Validate.isTrue(maxConcurrentCalls > 0, "maxConcurrentCalls must be positive");
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.callSlots = new Semaphore(maxConcurrentCalls);
+        this.sessionExecutor = Executors.newFixedThreadPool(maxConcurrentCalls,
+                r -> new Thread(r, "session-" + sessionThreadCount.incrementAndGet()));
+        this.visibilityExtender = Executors.newSingleThreadScheduledExecutor(
+                r -> new Thread(r, "visibility-extender"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Validate.notNull(QUEUE_URL, "QUEUE_URL must be set");
+
+        KVSTranscribeStreamingEngine engine = KVSTranscribeStreamingEngine.createDefault(MAX_CONCURRENT_CALLS);
+        KVSTranscribeStreamingWorker worker = new KVSTranscribeStreamingWorker(AmazonSQSClientBuilder.defaultClient(),
+                QUEUE_URL, engine, MAX_CONCURRENT_CALLS);
+
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Received shutdown signal, draining active sessions");
+            worker.stop();
+            try {
+                mainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "worker-shutdown"));
+
+        try {
+            worker.run();
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Polls the queue and runs a session for every message until {@link #stop()} is called, then drains the
+     * active sessions
+     *
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        long extendPeriodSeconds = Math.max(1, VISIBILITY_TIMEOUT_SECONDS / 3);
+        visibilityExtender.scheduleAtFixedRate(this::extendVisibility, extendPeriodSeconds, extendPeriodSeconds,
+                TimeUnit.SECONDS);
+
+        logger.info("Worker polling " + queueUrl + " with up to " + maxConcurrentCalls + " concurrent calls");
+        while (running) {
+            // wait for a free slot before asking for more work
+            if (!callSlots.tryAcquire(1, TimeUnit.SECONDS)) {
+                continue;
+            }
+            int freeSlots = 1 + callSlots.drainPermits();
+            int received = 0;
+            try {
+                if (running) {
+                    received = receiveAndStart(Math.min(freeSlots, MAX_MESSAGES_PER_RECEIVE));
+                }
+            } catch (Exception e) {
+                logger.error("Exception while receiving from " + queueUrl + ": ", e);
+                TimeUnit.SECONDS.sleep(1);
+            } finally {
+                callSlots.release(freeSlots - received);
+            }
+        }
+
+        drain();
+    }
+
+    /**
+     * Stops polling for new messages. Active sessions keep running until they finish or the drain timeout
+     * expires.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    private int receiveAndStart(int maxMessages) {
+        List<Message> messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                .withMaxNumberOfMessages(maxMessages)
+                .withWaitTimeSeconds(WAIT_TIME_SECONDS)
+                .withVisibilityTimeout(VISIBILITY_TIMEOUT_SECONDS)).getMessages();
+
+        int started = 0;
+        for (Message message : messages) {
+            if (!running) {
+                // shutting down, let another worker pick this one up right away
+                try {
+                    sqs.changeMessageVisibility(queueUrl, message.getReceiptHandle(), 0);
+                } catch (Exception e) {
+                    logger.warn("Could not release message " + message.getMessageId() + ": ", e);
+                }
+                continue;
+            }
+            activeMessages.put(message.getMessageId(), message.getReceiptHandle());
+            sessionExecutor.execute(() -> runSession(message));
+            started++;
+        }
+        return started;
+    }
+
+    private void runSession(Message message) {
+        try {
+            engine.processMessage(message.getBody());
+        } catch (Exception e) {
+            logger.error("KVS to Transcribe Streaming failed for message " + message.getMessageId() + " with: ", e);
+        } finally {
+            // like the Lambda event source, the message is consumed whether or not the session succeeded
+            activeMessages.remove(message.getMessageId());
+            try {
+                sqs.deleteMessage(queueUrl, message.getReceiptHandle());
+            } catch (Exception e) {
+                logger.error("Exception while deleting message " + message.getMessageId() + ": ", e);
+            }
+            callSlots.release();
+        }
+    }
+
+    private void extendVisibility() {
+        try {
+            List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>();
+            for (Map.Entry<String, String> activeMessage : activeMessages.entrySet()) {
+                entries.add(new ChangeMessageVisibilityBatchRequestEntry(activeMessage.getKey(),
+                        activeMessage.getValue()).withVisibilityTimeout(VISIBILITY_TIMEOUT_SECONDS));
+                if (entries.size() == MAX_MESSAGES_PER_RECEIVE) {
+                    sqs.changeMessageVisibilityBatch(queueUrl, entries);
+                    entries = new ArrayList<>();
+                }
+            }
+            if (!entries.isEmpty()) {
+                sqs.changeMessageVisibilityBatch(queueUrl, entries);
+            }
+        } catch (Exception e) {
+            // keep the schedule going, the next run retries before the timeout expires
+            logger.error("Exception while extending message visibility: ", e);
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        logger.info("Draining " + activeMessages.size() + " active sessions");
+        sessionExecutor.shutdown();
+        if (!sessionExecutor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn(activeMessages.size() + " sessions still active after " + DRAIN_TIMEOUT_SECONDS
+                    + " sec, their messages will be redelivered");
+        }
+        visibilityExtender.shutdownNow();
+        logger.info("Worker stopped");
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -14,6 +14,8 @@ import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.MkvTag;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClientBuilder;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoClientBuilder;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMedia;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoMediaClientBuilder;
@@ -186,17 +188,16 @@ public final class KVSUtils {
         Validate.notNull(startFragmentNum);
         Validate.notNull(awsCredentialsProvider);
 
-        AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) AmazonKinesisVideoClientBuilder.standard().build();
-
-        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
-                .withAPIName(APIName.GET_MEDIA)
-                .withStreamARN(streamArn)).getDataEndpoint();
-
-        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
-                .withCredentials(awsCredentialsProvider);
-        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
+        return getInputStreamFromKVS(streamArn, region, getStartSelector(startFragmentNum), awsCredentialsProvider);
+    }
 
+    /**
+     * Returns the start selector of a GetMedia call starting with the given fragment, or with the earliest one
+     *
+     * @param startFragmentNum
+     * @return
+     */
+    public static StartSelector getStartSelector(String startFragmentNum) {
         StartSelector startSelector;
         if (startFragmentNum != null)
         {
@@ -206,7 +207,38 @@ public final class KVSUtils {
         } else {
             startSelector = new StartSelector().withStartSelectorType(StartSelectorType.EARLIEST);
         }
+        return startSelector;
+    }
+
+    /**
+     * Makes a GetMedia call to KVS and retrieves the InputStream of the given stream from the given start selector,
+     * for instance the continuation token of a stream that broke off
+     *
+     * @param streamArn
+     * @param region
+     * @param startSelector
+     * @param awsCredentialsProvider
+     * @return
+     */
+    public static InputStream getInputStreamFromKVS(String streamArn,
+                                                    Regions region,
+                                                    StartSelector startSelector,
+                                                    AWSCredentialsProvider awsCredentialsProvider) {
+        Validate.notNull(streamArn);
+        Validate.notNull(region);
+        Validate.notNull(startSelector);
+        Validate.notNull(awsCredentialsProvider);
+
+        AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) AmazonKinesisVideoClientBuilder.standard().build();
+
+        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
+                .withAPIName(APIName.GET_MEDIA)
+                .withStreamARN(streamArn)).getDataEndpoint();
 
+        AmazonKinesisVideoMediaClientBuilder amazonKinesisVideoMediaClientBuilder = AmazonKinesisVideoMediaClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
+                .withCredentials(awsCredentialsProvider);
+        AmazonKinesisVideoMedia amazonKinesisVideoMedia = amazonKinesisVideoMediaClientBuilder.build();
 
         GetMediaResult getMediaResult = amazonKinesisVideoMedia.getMedia(new GetMediaRequest()
                 .withStreamARN(streamArn)
@@ -218,4 +250,46 @@ public final class KVSUtils {
 
         return getMediaResult.getPayload();
     }
+
+    /**
+     * Creates a client for the archived media APIs (ListFragments and GetMediaForFragmentList) of the given stream
+     *
+     * @param streamArn
+     * @param region
+     * @param awsCredentialsProvider
+     * @return
+     */
+    public static AmazonKinesisVideoArchivedMedia getArchivedMediaClient(String streamArn, Regions region,
+                                                                         AWSCredentialsProvider awsCredentialsProvider) {
+        Validate.notNull(streamArn);
+        Validate.notNull(region);
+        Validate.notNull(awsCredentialsProvider);
+
+        AmazonKinesisVideo amazonKinesisVideo = (AmazonKinesisVideo) AmazonKinesisVideoClientBuilder.standard().build();
+
+        // both archived media APIs are served by the same endpoint
+        String endPoint = amazonKinesisVideo.getDataEndpoint(new GetDataEndpointRequest()
+                .withAPIName(APIName.GET_MEDIA_FOR_FRAGMENT_LIST)
+                .withStreamARN(streamArn)).getDataEndpoint();
+
+        return AmazonKinesisVideoArchivedMediaClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endPoint, region.getName()))
+                .withCredentials(awsCredentialsProvider)
+                .build();
+    }
+
+    /**
+     * Returns the name of a stream from its ARN, arn:aws:kinesisvideo:region:account:stream/name/creation-time
+     *
+     * @param streamArn
+     * @return
+     */
+    public static String getStreamName(String streamArn) {
+        Validate.notNull(streamArn);
+        int nameStart = streamArn.indexOf(":stream/");
+        Validate.isTrue(nameStart >= 0, "Not a stream ARN: " + streamArn);
+        nameStart += ":stream/".length();
+        int nameEnd = streamArn.indexOf('/', nameStart);
+        return nameEnd < 0 ? streamArn.substring(nameStart) : streamArn.substring(nameStart, nameEnd);
+    }
 }
@@ -0,0 +1,215 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide accountant for the memory held on behalf of calls: audio chunks being assembled and handed to
+ * Transcribe, and transcript segments waiting in the write queues. Every stage reserves the bytes it holds under
+ * the call id before holding them and releases them once they are gone.
+ *
+ * <p>Reservations never fail. Instead, once the total goes above the high watermark, KVS reads of the noisiest
+ * calls, the ones holding at least the average usage per call, pause in {@link #awaitCapacity(String)} until the
+ * total drops back under the low watermark. Quieter calls keep streaming, so a burst slows down the calls causing
+ * it rather than failing every call with an OutOfMemoryError. A pause is capped so Transcribe does not time the
+ * stream out, the live-edge tracking catches the call up afterwards.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class MemoryBudget {
+
+    private static final double HIGH_WATERMARK = 0.9;
+    private static final double LOW_WATERMARK = 0.8;
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private final long maxBytes;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final long maxPauseMillis;
+    private final Map<String, CallUsage> calls = new HashMap<>();
+    private long usedBytes;
+    private int waiters;
+
+    /**
+     * @param maxBytes       memory the calls of the process may hold in total
+     * @param maxPauseMillis longest a single {@link #awaitCapacity(String)} pauses a call
+     */
+    public MemoryBudget(long maxBytes, long maxPauseMillis) {
+        Validate.isTrue(maxBytes > 0, "maxBytes must be positive");
+        Validate.isTrue(maxPauseMillis >= 0, "maxPauseMillis must not be negative");
+        this.maxBytes = maxBytes;
+        this.highWatermarkBytes = (long) (maxBytes * HIGH_WATERMARK);
+        this.lowWatermarkBytes = (long) (maxBytes * LOW_WATERMARK);
+        this.maxPauseMillis = maxPauseMillis;
+    }
+
+    /**
+     * Accounts for {@code bytes} more held for the call
+     *
+     * @param callId
+     * @param bytes
+     */
+    public synchronized void reserve(String callId, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        CallUsage usage = calls.computeIfAbsent(callId, id -> new CallUsage());
+        usage.usedBytes += bytes;
+        usage.peakBytes = Math.max(usage.peakBytes, usage.usedBytes);
+        usedBytes += bytes;
+    }
+
+    /**
+     * Returns {@code bytes} previously reserved for the call
+     *
+     * @param callId
+     * @param bytes
+     */
+    public synchronized void release(String callId, long bytes) {
+        CallUsage usage = calls.get(callId);
+        if (bytes <= 0 || usage == null) {
+            return;
+        }
+        long released = Math.min(bytes, usage.usedBytes);
+        usage.usedBytes -= released;
+        usedBytes -= released;
+        if (usage.ended && usage.usedBytes == 0) {
+            calls.remove(callId);
+        }
+        if (waiters > 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Pauses the calling KVS reader while the budget is over its high watermark and the call is one of the
+     * noisiest, until usage drops under the low watermark or the maximum pause has passed
+     *
+     * @param callId
+     * @return how long the call was paused
+     * @throws InterruptedException
+     */
+    public synchronized long awaitCapacity(String callId) throws InterruptedException {
+        if (usedBytes <= highWatermarkBytes || !isNoisy(callId)) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        long deadline = start + maxPauseMillis;
+        logger.info("Memory budget at " + usedBytes + " of " + maxBytes + " bytes, pausing KVS reads of " + callId
+                + " holding " + getUsedBytes(callId) + " bytes");
+        waiters++;
+        try {
+            while (usedBytes > lowWatermarkBytes && isNoisy(callId)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn("Resuming KVS reads of " + callId + " after the maximum pause of " + maxPauseMillis
+                            + " ms, memory budget still at " + usedBytes + " bytes");
+                    break;
+                }
+                wait(remaining);
+            }
+        } finally {
+            waiters--;
+        }
+        long pausedMillis = System.currentTimeMillis() - start;
+        CallUsage usage = calls.get(callId);
+        if (usage != null) {
+            usage.pausedMillis += pausedMillis;
+        }
+        return pausedMillis;
+    }
+
+    /**
+     * Marks the end of the call. Its usage is forgotten once everything it still holds is released.
+     *
+     * @param callId
+     * @return the most memory the call held at once and how long its reads were paused in total
+     */
+    public synchronized CallMemoryStats endCall(String callId) {
+        CallUsage usage = calls.get(callId);
+        if (usage == null) {
+            return new CallMemoryStats(0, 0);
+        }
+        usage.ended = true;
+        if (usage.usedBytes == 0) {
+            calls.remove(callId);
+        }
+        return new CallMemoryStats(usage.peakBytes, usage.pausedMillis);
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getUsedBytes(String callId) {
+        CallUsage usage = calls.get(callId);
+        return usage == null ? 0 : usage.usedBytes;
+    }
+
+    /**
+     * @return the bytes held by every call currently holding memory
+     */
+    public synchronized Map<String, Long> getUsageByCall() {
+        Map<String, Long> usageByCall = new HashMap<>();
+        for (Map.Entry<String, CallUsage> call : calls.entrySet()) {
+            usageByCall.put(call.getKey(), call.getValue().usedBytes);
+        }
+        return usageByCall;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    // must hold the monitor
+    private boolean isNoisy(String callId) {
+        CallUsage usage = calls.get(callId);
+        return usage != null && !calls.isEmpty() && usage.usedBytes * calls.size() >= usedBytes;
+    }
+
+    private static final class CallUsage {
+        private long usedBytes;
+        private long peakBytes;
+        private long pausedMillis;
+        private boolean ended;
+    }
+
+    /**
+     * Memory statistics of a finished call
+     */
+    public static final class CallMemoryStats {
+        private final long peakBytes;
+        private final long pausedMillis;
+
+        private CallMemoryStats(long peakBytes, long pausedMillis) {
+            this.peakBytes = peakBytes;
+            this.pausedMillis = pausedMillis;
+        }
+
+        public long getPeakBytes() {
+            return peakBytes;
+        }
+
+        public long getPausedMillis() {
+            return pausedMillis;
+        }
+    }
+}
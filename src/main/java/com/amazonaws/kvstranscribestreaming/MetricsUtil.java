@@ -34,9 +34,13 @@ public class MetricsUtil {
     }
 
     public void recordMetric(final String metricName, long value) {
+        recordMetric(metricName, value, StandardUnit.Count);
+    }
+
+    public void recordMetric(final String metricName, long value, StandardUnit unit) {
         MetricDatum metricData = new MetricDatum().withMetricName(metricName)
                 .withTimestamp(Date.from(Instant.now()))
-                .withUnit(StandardUnit.Count)
+                .withUnit(unit)
                 .withValue(Double.valueOf(value));
 
         PutMetricDataRequest metricRequest = new PutMetricDataRequest()
@@ -0,0 +1,284 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton over the words of a list of phrases. Words are normalized with {@link #normalize(String)}
+ * and matched as whole tokens, so "refund" does not match inside "refunded". Advancing by one word costs a hash
+ * lookup and on average a constant number of transitions, however many phrases the list holds.
+ *
+ * <p>The automaton is immutable and shared by all calls; the state of a call is the int returned by
+ * {@link #next(int, String)}, starting from {@link #ROOT}.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class PhraseAutomaton {
+
+    public static final int ROOT = 0;
+    private static final int NO_STATE = -1;
+    private static final int[] NO_PHRASES = new int[0];
+
+    private final String[] phrases;
+    private final int[] phraseLengths;
+    private final Map<String, Integer> tokenIds;
+    // goto function as an open addressed table keyed by state and token
+    private final long[] transitionKeys;
+    private final int[] transitionTargets;
+    private final int[] failure;
+    // phrases ending in each state, including those ending in its failure chain
+    private final int[][] outputs;
+
+    private PhraseAutomaton(List<String> phrases, List<int[]> tokenizedPhrases, Map<String, Integer> tokenIds) {
+        this.phrases = phrases.toArray(new String[0]);
+        this.phraseLengths = new int[phrases.size()];
+        this.tokenIds = tokenIds;
+
+        List<Map<Integer, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add(new HashMap<>());
+        ends.add(new ArrayList<>());
+        int transitionCount = 0;
+        for (int phrase = 0; phrase < tokenizedPhrases.size(); phrase++) {
+            int[] tokens = tokenizedPhrases.get(phrase);
+            phraseLengths[phrase] = tokens.length;
+            int state = ROOT;
+            for (int token : tokens) {
+                Integer target = trie.get(state).get(token);
+                if (target == null) {
+                    target = trie.size();
+                    trie.get(state).put(token, target);
+                    trie.add(new HashMap<>());
+                    ends.add(new ArrayList<>());
+                    transitionCount++;
+                }
+                state = target;
+            }
+            ends.get(state).add(phrase);
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(4, transitionCount * 2) - 1) << 1;
+        this.transitionKeys = new long[tableSize];
+        this.transitionTargets = new int[tableSize];
+        Arrays.fill(transitionKeys, -1);
+        for (int state = 0; state < trie.size(); state++) {
+            for (Map.Entry<Integer, Integer> transition : trie.get(state).entrySet()) {
+                int slot = slot(key(state, transition.getKey()));
+                transitionKeys[slot] = key(state, transition.getKey());
+                transitionTargets[slot] = transition.getValue();
+            }
+        }
+
+        // breadth first, so the failure state of a state is always complete before the state itself
+        this.failure = new int[trie.size()];
+        this.outputs = new int[trie.size()][];
+        outputs[ROOT] = NO_PHRASES;
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : trie.get(ROOT).values()) {
+            failure[child] = ROOT;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            outputs[state] = merge(ends.get(state), outputs[failure[state]]);
+            for (Map.Entry<Integer, Integer> transition : trie.get(state).entrySet()) {
+                int child = transition.getValue();
+                int fallback = failure[state];
+                int target;
+                while ((target = transition(fallback, transition.getKey())) == NO_STATE && fallback != ROOT) {
+                    fallback = failure[fallback];
+                }
+                failure[child] = target == NO_STATE ? ROOT : target;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Builds the automaton from the given phrases. Blank phrases and phrases without any word left after
+     * normalization are ignored.
+     *
+     * @param phrases
+     * @return
+     */
+    public static PhraseAutomaton of(List<String> phrases) {
+        Validate.notNull(phrases);
+        List<String> kept = new ArrayList<>();
+        List<int[]> tokenized = new ArrayList<>();
+        Map<String, Integer> tokenIds = new HashMap<>();
+        for (String phrase : phrases) {
+            List<String> words = new ArrayList<>();
+            for (String word : phrase.trim().split("\\s+")) {
+                String token = normalize(word);
+                if (!token.isEmpty()) {
+                    words.add(token);
+                }
+            }
+            if (words.isEmpty()) {
+                continue;
+            }
+            int[] tokens = new int[words.size()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = tokenIds.computeIfAbsent(words.get(i), w -> tokenIds.size());
+            }
+            kept.add(phrase.trim());
+            tokenized.add(tokens);
+        }
+        return new PhraseAutomaton(kept, tokenized, tokenIds);
+    }
+
+    /**
+     * Reads a phrase list with one phrase per line. Blank lines and lines starting with # are skipped.
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static PhraseAutomaton read(InputStream inputStream) throws IOException {
+        List<String> phrases = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                    phrases.add(line);
+                }
+            }
+        }
+        return of(phrases);
+    }
+
+    /**
+     * Lower cases the word and drops everything but letters, digits and apostrophes, so "Cancel," and "cancel"
+     * are the same token
+     *
+     * @param word
+     * @return the token, empty for punctuation
+     */
+    public static String normalize(String word) {
+        int i = 0;
+        // most words from Transcribe are already normalized and are returned as they are
+        while (i < word.length() && isTokenChar(word.charAt(i)) && !Character.isUpperCase(word.charAt(i))) {
+            i++;
+        }
+        if (i == word.length()) {
+            return word;
+        }
+        StringBuilder token = new StringBuilder(word.length()).append(word, 0, i);
+        for (; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (isTokenChar(c)) {
+                token.append(Character.toLowerCase(c));
+            }
+        }
+        return token.toString();
+    }
+
+    /**
+     * @param state current state of the call
+     * @param word  next word of the transcript, as spoken
+     * @return the state after the word
+     */
+    public int next(int state, String word) {
+        String token = normalize(word);
+        if (token.isEmpty()) {
+            // punctuation doesn't interrupt a phrase
+            return state;
+        }
+        Integer tokenId = tokenIds.get(token);
+        if (tokenId == null) {
+            // a word that is in no phrase ends every partial match
+            return ROOT;
+        }
+        int target;
+        while ((target = transition(state, tokenId)) == NO_STATE && state != ROOT) {
+            state = failure[state];
+        }
+        return target == NO_STATE ? ROOT : target;
+    }
+
+    /**
+     * @param state
+     * @return the indexes of the phrases that end with the word that led to the state
+     */
+    public int[] matches(int state) {
+        return outputs[state];
+    }
+
+    public String getPhrase(int phrase) {
+        return phrases[phrase];
+    }
+
+    /**
+     * @param phrase
+     * @return the number of words of the phrase
+     */
+    public int getPhraseLength(int phrase) {
+        return phraseLengths[phrase];
+    }
+
+    public int getPhraseCount() {
+        return phrases.length;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '\'';
+    }
+
+    private int transition(int state, int token) {
+        long key = key(state, token);
+        int slot = slot(key);
+        return transitionKeys[slot] == key ? transitionTargets[slot] : NO_STATE;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot it would go to
+     */
+    private int slot(long key) {
+        int hash = Long.hashCode(key * 0x9E3779B97F4A7C15L);
+        int index = (hash ^ (hash >>> 16)) & (transitionKeys.length - 1);
+        while (transitionKeys[index] != -1 && transitionKeys[index] != key) {
+            index = (index + 1) & (transitionKeys.length - 1);
+        }
+        return index;
+    }
+
+    private static long key(int state, int token) {
+        return ((long) state << 32) | token;
+    }
+
+    private static int[] merge(List<Integer> own, int[] inherited) {
+        if (own.isEmpty()) {
+            return inherited;
+        }
+        int[] merged = Arrays.copyOf(inherited, inherited.length + own.size());
+        for (int i = 0; i < own.size(); i++) {
+            merged[inherited.length + i] = own.get(i);
+        }
+        return merged;
+    }
+}
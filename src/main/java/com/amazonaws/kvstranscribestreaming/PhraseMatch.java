@@ -0,0 +1,65 @@
+package com.amazonaws.kvstranscribestreaming;
+
+/**
+ * A phrase of the phrase list spoken in a call. The times are offsets into the call audio in seconds, like the
+ * times of the transcript segments.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class PhraseMatch {
+
+    private final String callId;
+    private final String phrase;
+    private final double startTime;
+    private final double endTime;
+    private final boolean partial;
+
+    public PhraseMatch(String callId, String phrase, double startTime, double endTime, boolean partial) {
+        this.callId = callId;
+        this.phrase = phrase;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.partial = partial;
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    public String getPhrase() {
+        return phrase;
+    }
+
+    public double getStartTime() {
+        return startTime;
+    }
+
+    public double getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * @return whether the phrase was spotted in the stable words of a partial result, before the result was final
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    @Override
+    public String toString() {
+        return "\"" + phrase + "\" at " + startTime + "-" + endTime + (partial ? " (partial)" : "");
+    }
+}
@@ -0,0 +1,180 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Spots the phrases of a {@link PhraseAutomaton} in the transcript of one call as it is streamed. The words of a
+ * result are matched as soon as they are stable, that is unchanged between two partial results, so a phrase is
+ * usually reported before its result is final. The automaton state carries over from one final result to the next,
+ * so phrases spanning two segments are found too.
+ *
+ * <p>Each match is reported once per result. A phrase seen in the stable words of a partial result is not
+ * withdrawn if Transcribe revises those words later.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class PhraseSpotter {
+
+    private static final Logger logger = LoggerFactory.getLogger(PhraseSpotter.class);
+
+    private final String callId;
+    private final PhraseAutomaton automaton;
+    private final PhraseMatchListener listener;
+    private final int historyLength;
+
+    // state and word times at the end of the last final result
+    private int state = PhraseAutomaton.ROOT;
+    private double[] carriedStartTimes = new double[0];
+
+    // the result still being transcribed
+    private String resultId;
+    private List<String> previousWords = new ArrayList<>();
+    private final Set<Long> reported = new HashSet<>();
+    private double[] startTimes = new double[64];
+
+    public PhraseSpotter(String callId, PhraseAutomaton automaton, PhraseMatchListener listener) {
+        this.callId = Validate.notNull(callId);
+        this.automaton = Validate.notNull(automaton);
+        this.listener = Validate.notNull(listener);
+        int longest = 1;
+        for (int phrase = 0; phrase < automaton.getPhraseCount(); phrase++) {
+            longest = Math.max(longest, automaton.getPhraseLength(phrase));
+        }
+        // words of earlier results a phrase ending in the current one may start with
+        this.historyLength = longest - 1;
+    }
+
+    public void onTranscriptEvent(TranscriptEvent transcriptEvent) {
+        for (Result result : transcriptEvent.transcript().results()) {
+            if (result.alternatives().isEmpty()) {
+                continue;
+            }
+            List<Item> items = result.alternatives().get(0).items();
+            if (!result.resultId().equals(resultId)) {
+                // a result that never became final is dropped along with what was reported for it
+                resultId = result.resultId();
+                previousWords = new ArrayList<>();
+                reported.clear();
+            }
+
+            List<String> words = new ArrayList<>(items.size());
+            for (Item item : items) {
+                words.add(item.content());
+            }
+            int stableItems = result.isPartial() ? commonPrefixLength(previousWords, words) : items.size();
+            previousWords = words;
+
+            int endState = spot(items, stableItems, result.isPartial());
+            if (!result.isPartial()) {
+                state = endState;
+                carryStartTimes(items);
+                resultId = null;
+                reported.clear();
+            }
+        }
+    }
+
+    /**
+     * Runs the automaton over the first stable items of the result, from the state at the end of the last final
+     * result, and reports the matches not reported for this result yet
+     *
+     * @return the state after the last stable item
+     */
+    private int spot(List<Item> items, int stableItems, boolean partial) {
+        int current = state;
+        int words = carriedStartTimes.length;
+        System.arraycopy(carriedStartTimes, 0, startTimes(words), 0, words);
+        for (int i = 0; i < stableItems; i++) {
+            Item item = items.get(i);
+            if (!isWord(item)) {
+                continue;
+            }
+            current = automaton.next(current, item.content());
+            startTimes(words + 1)[words] = item.startTime() == null ? 0 : item.startTime();
+            words++;
+            for (int phrase : automaton.matches(current)) {
+                // a phrase is identified in the result by the word it ends with
+                if (reported.add(((long) phrase << 32) | i)) {
+                    double startTime = startTimes[Math.max(0, words - automaton.getPhraseLength(phrase))];
+                    double endTime = item.endTime() == null ? startTime : item.endTime();
+                    report(new PhraseMatch(callId, automaton.getPhrase(phrase), startTime, endTime, partial));
+                }
+            }
+        }
+        return current;
+    }
+
+    private void report(PhraseMatch match) {
+        try {
+            listener.onMatch(match);
+        } catch (RuntimeException e) {
+            logger.error("Exception while reporting phrase match for " + callId + ": ", e);
+        }
+    }
+
+    private void carryStartTimes(List<Item> items) {
+        double[] history = new double[historyLength];
+        int kept = 0;
+        // the most recent words, oldest first
+        for (int i = items.size() - 1; i >= 0 && kept < historyLength; i--) {
+            Item item = items.get(i);
+            if (isWord(item)) {
+                history[historyLength - 1 - kept++] = item.startTime() == null ? 0 : item.startTime();
+            }
+        }
+        int fromEarlier = Math.min(historyLength - kept, carriedStartTimes.length);
+        System.arraycopy(carriedStartTimes, carriedStartTimes.length - fromEarlier, history,
+                historyLength - kept - fromEarlier, fromEarlier);
+        carriedStartTimes = Arrays.copyOfRange(history, historyLength - kept - fromEarlier, historyLength);
+    }
+
+    /**
+     * @return whether the item is a word that can be part of a phrase, and not punctuation or a symbol
+     */
+    private static boolean isWord(Item item) {
+        return item.type() != ItemType.PUNCTUATION && item.content() != null
+                && !PhraseAutomaton.normalize(item.content()).isEmpty();
+    }
+
+    private double[] startTimes(int length) {
+        if (startTimes.length < length) {
+            startTimes = Arrays.copyOf(startTimes, Math.max(length, startTimes.length * 2));
+        }
+        return startTimes;
+    }
+
+    private static int commonPrefixLength(List<String> previous, List<String> current) {
+        int length = 0;
+        while (length < previous.size() && length < current.size()
+                && Objects.equals(previous.get(length), current.get(length))) {
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,205 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Java Flight Recorder events for the stages of the pipeline, from GetMedia to the S3 upload. The events are
+ * disabled unless a recording enables them, for example with the pipeline.jfc settings shipped with the function:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=settings=pipeline.jfc,filename=worker.jfr ...
+ * jcmd &lt;pid&gt; JFR.start settings=pipeline.jfc duration=5m filename=worker.jfr
+ * </pre>
+ *
+ * <p>Every event carries the transaction id of its call leg and, when the stage runs inside a session of the
+ * engine, the Chime call id registered with {@link #startCall(String, String)}. Stages check
+ * {@link Event#shouldCommit()} before filling in anything that costs more than a field store.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class PipelineEvents {
+
+    private static final String CATEGORY = "Voice Connector Transcription";
+
+    // Chime call id of the active sessions by transaction id
+    private static final Map<String, String> callIds = new ConcurrentHashMap<>();
+
+    private PipelineEvents() {
+    }
+
+    /**
+     * Registers the call id reported with the events of the call leg
+     *
+     * @param transactionId
+     * @param callId
+     */
+    public static void startCall(String transactionId, String callId) {
+        if (transactionId != null && callId != null) {
+            callIds.put(transactionId, callId);
+        }
+    }
+
+    public static void endCall(String transactionId) {
+        if (transactionId != null) {
+            callIds.remove(transactionId);
+        }
+    }
+
+    /**
+     * Base of the events, identifies the call leg the stage worked for
+     */
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public abstract static class CallEvent extends Event {
+        @Label("Transaction Id")
+        String transactionId;
+
+        @Label("Call Id")
+        String callId;
+
+        public void setTransactionId(String transactionId) {
+            this.transactionId = transactionId;
+            this.callId = transactionId == null ? null : callIds.get(transactionId);
+        }
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.GetMedia")
+    @Label("GetMedia")
+    @Description("Opening the KVS stream of a call leg, up to the response of GetMedia")
+    public static final class GetMedia extends CallEvent {
+        @Label("Stream ARN")
+        public String streamArn;
+
+        @Label("Start Fragment Number")
+        public String startFragmentNumber;
+
+        @Label("Reconnect")
+        @Description("Whether the stream was opened again after it broke off")
+        public boolean reconnect;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.FragmentParse")
+    @Label("MKV Fragment Parse")
+    @Description("Reading one MKV fragment, from its EBML header to the next one, including waiting for its bytes")
+    public static final class FragmentParse extends CallEvent {
+        @Label("Fragment Number")
+        public String fragmentNumber;
+
+        @Label("Frames")
+        public int frames;
+
+        @Label("Audio")
+        @DataAmount
+        public long audioBytes;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.AudioChunk")
+    @Label("Audio Chunk")
+    @Description("Reading an audio chunk from KVS and handing it to the Transcribe stream")
+    public static final class AudioChunk extends CallEvent {
+        @Label("Size")
+        @Description("Bytes sent to Transcribe, FLAC encoded when FLAC encoding is enabled")
+        @DataAmount
+        public int bytes;
+
+        @Label("Demand")
+        @Description("Chunks Transcribe had asked for and not received yet, including this one")
+        public long demand;
+
+        @Label("Catching Up")
+        public boolean catchingUp;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.TranscribeSession")
+    @Label("Transcribe Session")
+    @Description("One attempt of a Transcribe streaming session, from its start until it completes or fails")
+    public static final class TranscribeSession extends CallEvent {
+        @Label("Session Id")
+        public String sessionId;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Outcome")
+        @Description("completed, retried or failed")
+        public String outcome;
+
+        @Label("Error")
+        public String error;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.TranscriptResult")
+    @Label("Transcript Result")
+    @Description("Handling of a transcript result received from Transcribe")
+    public static final class TranscriptResult extends CallEvent {
+        @Label("Result Id")
+        public String resultId;
+
+        @Label("Partial")
+        public boolean partial;
+
+        @Label("Items")
+        public int items;
+
+        @Label("Audio End Time")
+        @Description("Offset into the call audio where the result ends, in seconds")
+        public double endTime;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.DynamoDBWrite")
+    @Label("DynamoDB Write")
+    @Description("A request writing transcript items, the transaction id is the one of the first item")
+    public static final class DynamoDBWrite extends CallEvent {
+        @Label("Table")
+        public String table;
+
+        @Label("Operation")
+        public String operation;
+
+        @Label("Items")
+        public int items;
+
+        @Label("Attempt")
+        public int attempt;
+
+        @Label("Throttled")
+        public boolean throttled;
+    }
+
+    @Name("com.amazonaws.kvstranscribestreaming.S3Upload")
+    @Label("S3 Upload")
+    @Description("Upload of a recording or a transcript")
+    public static final class S3Upload extends CallEvent {
+        @Label("Bucket")
+        public String bucket;
+
+        @Label("Key")
+        public String key;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+}
@@ -0,0 +1,196 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The work left at the end of a call: closing the streams, flushing the transcript, converting and uploading the
+ * recording, publishing metrics. Every step declares the steps it depends on and starts as soon as they are done,
+ * so independent steps overlap and the stage takes as long as its slowest chain of steps rather than the sum of
+ * all of them. {@link #await(long)} is the single point the session waits on.
+ *
+ * <p>A step whose dependency failed is skipped, except cleanup steps, which run once their dependencies completed
+ * either way. The duration of every step is logged.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class PostCallStage {
+
+    private static final Logger logger = LoggerFactory.getLogger(PostCallStage.class);
+
+    /**
+     * A step producing a value for the steps depending on it
+     */
+    @FunctionalInterface
+    public interface Step<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * A step without a result
+     */
+    @FunctionalInterface
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    private final String callId;
+    private final Executor executor;
+    private final long startNanos = System.nanoTime();
+    private final List<CompletableFuture<?>> steps = new ArrayList<>();
+    private final List<String> stepNames = new ArrayList<>();
+    private final List<Long> stepMillis = new ArrayList<>();
+
+    public PostCallStage(String callId, Executor executor) {
+        this.callId = Validate.notNull(callId);
+        this.executor = Validate.notNull(executor);
+    }
+
+    /**
+     * Adds a step producing a value, started once all its dependencies succeeded
+     *
+     * @param name
+     * @param step
+     * @param dependencies
+     * @return the result of the step
+     */
+    public synchronized <T> CompletableFuture<T> supply(String name, Step<T> step,
+                                                        CompletableFuture<?>... dependencies) {
+        int index = addStep(name);
+        CompletableFuture<T> result = CompletableFuture.allOf(dependencies)
+                .thenApplyAsync(ignored -> timed(index, step), executor);
+        steps.add(result);
+        return result;
+    }
+
+    /**
+     * Adds a step started once all its dependencies succeeded
+     *
+     * @param name
+     * @param action
+     * @param dependencies
+     * @return completion of the step
+     */
+    public CompletableFuture<Void> run(String name, Action action, CompletableFuture<?>... dependencies) {
+        return supply(name, () -> {
+            action.run();
+            return null;
+        }, dependencies);
+    }
+
+    /**
+     * Adds a step started once all its dependencies completed, whether they succeeded or not
+     *
+     * @param name
+     * @param action
+     * @param dependencies
+     * @return completion of the step
+     */
+    public synchronized CompletableFuture<Void> cleanup(String name, Action action,
+                                                        CompletableFuture<?>... dependencies) {
+        int index = addStep(name);
+        CompletableFuture<Void> result = CompletableFuture.allOf(dependencies)
+                .handle((ignored, t) -> null)
+                .thenApplyAsync(ignored -> timed(index, () -> {
+                    action.run();
+                    return null;
+                }), executor);
+        steps.add(result);
+        return result;
+    }
+
+    /**
+     * Waits for every step to complete and logs the timing of the stage
+     *
+     * @param timeoutMillis
+     * @throws Exception the failure of the first failed step
+     */
+    public void await(long timeoutMillis) throws Exception {
+        CompletableFuture<Void> all;
+        synchronized (this) {
+            all = CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0]));
+        }
+        try {
+            all.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (TimeoutException e) {
+            logger.warn("Post-call stage of " + callId + " still running after " + timeoutMillis + " ms");
+            throw e;
+        } finally {
+            logSummary();
+        }
+    }
+
+    // must hold the monitor
+    private int addStep(String name) {
+        stepNames.add(Validate.notNull(name));
+        stepMillis.add(0L);
+        return stepNames.size() - 1;
+    }
+
+    private <T> T timed(int index, Step<T> step) {
+        String name;
+        synchronized (this) {
+            name = stepNames.get(index);
+        }
+        long start = System.nanoTime();
+        try {
+            return step.call();
+        } catch (Exception e) {
+            logger.error("Post-call step " + name + " of " + callId + " failed: ", e);
+            throw new CompletionException(e);
+        } finally {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            synchronized (this) {
+                stepMillis.set(index, millis);
+            }
+            logger.info("Post-call step " + name + " of " + callId + " took " + millis + " ms");
+        }
+    }
+
+    private synchronized void logSummary() {
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        long serialMillis = 0;
+        int slowest = -1;
+        for (int i = 0; i < stepNames.size(); i++) {
+            serialMillis += stepMillis.get(i);
+            if (slowest < 0 || stepMillis.get(i) > stepMillis.get(slowest)) {
+                slowest = i;
+            }
+        }
+        logger.info("Post-call stage of " + callId + " took " + totalMillis + " ms, its steps " + serialMillis
+                + " ms in total" + (slowest < 0 ? "" : ", slowest " + stepNames.get(slowest) + " with "
+                + stepMillis.get(slowest) + " ms"));
+    }
+
+    private static Exception unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t instanceof Exception ? (Exception) t : new RuntimeException(t);
+    }
+}
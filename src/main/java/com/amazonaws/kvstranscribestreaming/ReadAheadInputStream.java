@@ -0,0 +1,311 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.internal.SdkFilterInputStream;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples reading the GetMedia stream from parsing it. A background thread reads the stream in large reads into
+ * a bounded buffer outside the heap, and the MKV parser reads from the buffer, so a slow network read does not
+ * hold up parsing of the audio that already arrived, and a slow parser does not leave the socket unread. The reader
+ * pauses while the buffer is full.
+ *
+ * <p>The time the reader spends in socket reads, the time the parser waits for bytes and the time the reader waits
+ * for room are counted. A parser that mostly waits points to the network or KVS, a buffer that is mostly full
+ * points to the CPU. They are logged and published as CloudWatch metrics when the stream is closed.</p>
+ *
+ * <p>A failure or the end of the source is passed on to the parser after the bytes read before it. Closing the
+ * stream aborts the HTTP response of the source instead of reading it to the end, and fails a blocked read.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    // a read of fewer bytes than this waits for the parser to make room first
+    private static final int MIN_READ_BYTES = 4096;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReadAheadInputStream.class);
+
+    private final InputStream source;
+    private final String callId;
+    private final MetricsUtil metricsUtil;
+    private final ByteBuffer buffer;
+    private final byte[] transfer;
+    private final Thread readerThread;
+    // guards everything below, the reader thread waits on it for room and the parser for bytes
+    private final Object lock = new Object();
+    private int readPosition;
+    private int buffered;
+    private boolean sourceEnded;
+    private IOException sourceFailure;
+    private boolean closed;
+    private long socketReadNanos;
+    private long socketReads;
+    private long bytesRead;
+    private long parserWaitNanos;
+    private long bufferFullNanos;
+    private int peakBuffered;
+
+    /**
+     * @param source        GetMedia stream of the call
+     * @param callId        call the stream belongs to, for logging
+     * @param capacityBytes size of the buffer
+     * @param readBytes     most bytes read from the source at once
+     * @param metricsUtil   publishes the read and wait times when the stream is closed, may be null
+     */
+    public ReadAheadInputStream(InputStream source, String callId, int capacityBytes, int readBytes,
+                                MetricsUtil metricsUtil) {
+        this.source = Validate.notNull(source);
+        this.callId = Validate.notNull(callId);
+        Validate.isTrue(readBytes >= MIN_READ_BYTES, "readBytes must be at least " + MIN_READ_BYTES);
+        Validate.isTrue(capacityBytes >= readBytes, "capacityBytes must be at least readBytes");
+        this.metricsUtil = metricsUtil;
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+        this.transfer = new byte[readBytes];
+        this.readerThread = new Thread(this::readLoop, "kvs-read-ahead-" + callId);
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (lock) {
+            if (!awaitBytes()) {
+                return -1;
+            }
+            int value = buffer.get(readPosition) & 0xFF;
+            consumed(1);
+            return value;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Validate.notNull(b);
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (lock) {
+            if (!awaitBytes()) {
+                return -1;
+            }
+            int count = Math.min(len, buffered);
+            int first = Math.min(count, buffer.capacity() - readPosition);
+            buffer.position(readPosition);
+            buffer.get(b, off, first);
+            if (first < count) {
+                buffer.position(0);
+                buffer.get(b, off + first, count - first);
+            }
+            consumed(count);
+            return count;
+        }
+    }
+
+    /**
+     * @return the bytes read ahead, which a read returns without blocking
+     */
+    @Override
+    public int available() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return buffered;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean abort;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            abort = !sourceEnded && sourceFailure == null;
+            lock.notifyAll();
+        }
+        try {
+            if (abort && source instanceof SdkFilterInputStream) {
+                // closing would read the rest of the response to reuse the connection
+                ((SdkFilterInputStream) source).abort();
+            } else {
+                source.close();
+            }
+        } finally {
+            report();
+        }
+    }
+
+    public long getSocketReadMillis() {
+        synchronized (lock) {
+            return TimeUnit.NANOSECONDS.toMillis(socketReadNanos);
+        }
+    }
+
+    /**
+     * @return time the parser waited for bytes to arrive
+     */
+    public long getParserWaitMillis() {
+        synchronized (lock) {
+            return TimeUnit.NANOSECONDS.toMillis(parserWaitNanos);
+        }
+    }
+
+    /**
+     * @return time the reader waited for the parser to make room in the full buffer
+     */
+    public long getBufferFullMillis() {
+        synchronized (lock) {
+            return TimeUnit.NANOSECONDS.toMillis(bufferFullNanos);
+        }
+    }
+
+    public long getBytesRead() {
+        synchronized (lock) {
+            return bytesRead;
+        }
+    }
+
+    // waits until a byte is buffered, false at the end of the source
+    private boolean awaitBytes() throws IOException {
+        long waitStart = 0;
+        try {
+            while (buffered == 0 && !sourceEnded && sourceFailure == null && !closed) {
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                }
+                lock.wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the KVS stream of " + callId);
+        } finally {
+            if (waitStart != 0) {
+                parserWaitNanos += System.nanoTime() - waitStart;
+            }
+        }
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (buffered > 0) {
+            return true;
+        }
+        if (sourceFailure != null) {
+            throw new IOException("Reading the KVS stream of " + callId + " failed", sourceFailure);
+        }
+        return false;
+    }
+
+    private void consumed(int count) {
+        readPosition = (readPosition + count) % buffer.capacity();
+        buffered -= count;
+        lock.notifyAll();
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int room;
+                synchronized (lock) {
+                    long waitStart = 0;
+                    while (!closed && buffer.capacity() - buffered < MIN_READ_BYTES) {
+                        if (waitStart == 0) {
+                            waitStart = System.nanoTime();
+                        }
+                        lock.wait();
+                    }
+                    if (waitStart != 0) {
+                        bufferFullNanos += System.nanoTime() - waitStart;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    room = buffer.capacity() - buffered;
+                }
+
+                long readStart = System.nanoTime();
+                int read = source.read(transfer, 0, Math.min(room, transfer.length));
+                long readNanos = System.nanoTime() - readStart;
+
+                synchronized (lock) {
+                    socketReadNanos += readNanos;
+                    socketReads++;
+                    if (read < 0) {
+                        sourceEnded = true;
+                        lock.notifyAll();
+                        return;
+                    }
+                    int writePosition = (readPosition + buffered) % buffer.capacity();
+                    int first = Math.min(read, buffer.capacity() - writePosition);
+                    buffer.position(writePosition);
+                    buffer.put(transfer, 0, first);
+                    if (first < read) {
+                        buffer.position(0);
+                        buffer.put(transfer, first, read - first);
+                    }
+                    buffered += read;
+                    bytesRead += read;
+                    peakBuffered = Math.max(peakBuffered, buffered);
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (lock) {
+                sourceFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+                lock.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report() {
+        long socketMillis;
+        long parserWaitMillis;
+        long bufferFullMillis;
+        synchronized (lock) {
+            socketMillis = TimeUnit.NANOSECONDS.toMillis(socketReadNanos);
+            parserWaitMillis = TimeUnit.NANOSECONDS.toMillis(parserWaitNanos);
+            bufferFullMillis = TimeUnit.NANOSECONDS.toMillis(bufferFullNanos);
+            logger.info("Read " + bytesRead + " bytes of the KVS stream of " + callId + " in " + socketReads
+                    + " reads taking " + socketMillis + " ms, the parser waited " + parserWaitMillis
+                    + " ms for bytes, the buffer was full for " + bufferFullMillis + " ms and held at most "
+                    + peakBuffered + " bytes");
+        }
+        if (metricsUtil != null) {
+            try {
+                metricsUtil.recordMetric("KVSSocketReadMillis", socketMillis, StandardUnit.Milliseconds);
+                metricsUtil.recordMetric("KVSParserWaitMillis", parserWaitMillis, StandardUnit.Milliseconds);
+                metricsUtil.recordMetric("KVSReadAheadFullMillis", bufferFullMillis, StandardUnit.Milliseconds);
+            } catch (RuntimeException e) {
+                logger.warn("Could not publish the KVS read metrics of " + callId + ": ", e);
+            }
+        }
+    }
+}
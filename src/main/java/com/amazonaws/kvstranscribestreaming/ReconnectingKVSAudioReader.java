@@ -0,0 +1,389 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.internal.SdkFilterInputStream;
+import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
+import com.amazonaws.services.kinesisvideo.model.StartSelector;
+import com.amazonaws.services.kinesisvideo.model.StartSelectorType;
+import com.amazonaws.transcribestreaming.AudioEndSignal;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * {@link KVSAudioReader} that carries a call over a GetMedia response breaking off. When the stream fails, or ends
+ * while the call is still going on, GetMedia is called again after a backoff: from the continuation token the
+ * stream carried after its last frame, or else from the fragment the last frame came from. Every response starts
+ * with its own EBML header, so it is read by a new reader, and the frames it repeats are skipped: the frames of
+ * earlier fragments and the frames of the last fragment that were returned already.
+ *
+ * <p>The underlying reader is read one frame at a time, so the fragment of every frame is known.</p>
+ *
+ * <p>The stream is not opened again once the end signal stopped reading, after the call ended or when the stream
+ * went on with another call. Without an end signal only a failed stream is opened again, since nothing would stop
+ * a new GetMedia that finds no more audio.</p>
+ *
+ * <p>Not thread safe, except for {@link #close()}.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class ReconnectingKVSAudioReader implements KVSAudioReader, Closeable {
+
+    private static final int INITIAL_OUTPUT_SIZE = 16 * 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconnectingKVSAudioReader.class);
+
+    /**
+     * Makes a new GetMedia call for the stream of the call
+     */
+    public interface StreamOpener {
+        /**
+         * @param startSelector where the response starts
+         * @return the payload of the response
+         */
+        InputStream open(StartSelector startSelector);
+    }
+
+    private final String callId;
+    private final String startFragmentNumber;
+    private final StreamOpener opener;
+    private final Function<InputStream, KVSAudioReader> readerFactory;
+    private final AudioEndSignal endSignal;
+    private final int maxAttempts;
+    private final long backoffBaseMillis;
+    private final long backoffMaxMillis;
+    private volatile InputStream inputStream;
+    private volatile boolean closed;
+    private KVSAudioReader reader;
+    private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+    // failure of the stream once the frames read before it were returned
+    private Exception failure;
+
+    // fragment of the last returned frame, how many of its frames were returned, and the token read before it
+    private String fragmentNumber;
+    private int fragmentFrames;
+    private String tokenAtLastFrame;
+    // fragment of the last frame read from the current response and how many of its frames it has read
+    private String readFragmentNumber;
+    private int readFragmentFrames;
+
+    private int failedAttempts;
+    private int framesSinceReconnect;
+    private int skippedFrames;
+    private volatile int reconnects;
+
+    /**
+     * @param inputStream         first GetMedia response of the call
+     * @param callId              call the stream belongs to, for logging
+     * @param startFragmentNumber fragment the first response started with, null for the earliest
+     * @param opener              makes another GetMedia call when the stream breaks off
+     * @param readerFactory       creates the reader of a response
+     * @param endSignal           tells whether reading was stopped or the call ended, null to only open the stream
+     *                            again when it fails
+     * @param maxAttempts         how many times in a row the stream is opened again without returning a frame, 0
+     *                            to never open it again
+     * @param backoffBaseMillis   wait before the first attempt, doubled with every attempt in a row
+     * @param backoffMaxMillis    longest wait before an attempt
+     */
+    public ReconnectingKVSAudioReader(InputStream inputStream, String callId, String startFragmentNumber,
+                                      StreamOpener opener, Function<InputStream, KVSAudioReader> readerFactory,
+                                      AudioEndSignal endSignal, int maxAttempts, long backoffBaseMillis,
+                                      long backoffMaxMillis) {
+        this.inputStream = Validate.notNull(inputStream);
+        this.callId = Validate.notNull(callId);
+        this.startFragmentNumber = startFragmentNumber;
+        this.opener = Validate.notNull(opener);
+        this.readerFactory = Validate.notNull(readerFactory);
+        this.endSignal = endSignal;
+        Validate.isTrue(maxAttempts >= 0, "maxAttempts must not be negative");
+        Validate.isTrue(backoffBaseMillis >= 0, "backoffBaseMillis must not be negative");
+        Validate.isTrue(backoffMaxMillis >= backoffBaseMillis, "backoffMaxMillis must not be below the base");
+        this.maxAttempts = maxAttempts;
+        this.backoffBaseMillis = backoffBaseMillis;
+        this.backoffMaxMillis = backoffMaxMillis;
+        this.reader = Validate.notNull(readerFactory.apply(inputStream));
+    }
+
+    @Override
+    public ByteBuffer readAudio(int maxFrames) throws IOException, MkvElementVisitException {
+        if (failure != null) {
+            throwFailure();
+        }
+        output.clear();
+        int frames = 0;
+        while (frames < maxFrames) {
+            ByteBuffer frame;
+            try {
+                frame = nextFrame();
+            } catch (IOException | MkvElementVisitException | RuntimeException e) {
+                if (frames == 0) {
+                    throw e;
+                }
+                // the frames read before are returned first
+                failure = e;
+                break;
+            }
+            if (frame == null) {
+                break;
+            }
+            if (output.remaining() < frame.remaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2,
+                        output.position() + frame.remaining()));
+                output.flip();
+                larger.put(output);
+                output = larger;
+            }
+            output.put(frame);
+            frames++;
+        }
+        output.flip();
+        return output;
+    }
+
+    private void throwFailure() throws IOException, MkvElementVisitException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof MkvElementVisitException) {
+            throw (MkvElementVisitException) failure;
+        }
+        throw (RuntimeException) failure;
+    }
+
+    /**
+     * @return the audio of the next frame not returned yet, null at the end of the stream
+     */
+    private ByteBuffer nextFrame() throws IOException, MkvElementVisitException {
+        while (true) {
+            ByteBuffer frame;
+            try {
+                frame = reader.readAudio(1);
+            } catch (IOException | MkvElementVisitException | RuntimeException e) {
+                // the parser library fails a read of its stream, or a stream cut off within an element, with
+                // runtime exceptions
+                if (!reconnect("stream failed: " + (e.getCause() instanceof IOException ? e.getCause() : e))) {
+                    throw e;
+                }
+                continue;
+            }
+
+            if (!frame.hasRemaining()) {
+                if (reader.isOtherCall() || !isCallGoingOn() || !reconnect("stream ended")) {
+                    return null;
+                }
+                continue;
+            }
+
+            String readFragment = reader.getFragmentNumber();
+            if (readFragment == null || !readFragment.equals(readFragmentNumber)) {
+                readFragmentNumber = readFragment;
+                readFragmentFrames = 0;
+            }
+            readFragmentFrames++;
+            if (isReturnedAlready(readFragment)) {
+                skippedFrames++;
+                continue;
+            }
+
+            if (readFragment == null || !readFragment.equals(fragmentNumber)) {
+                fragmentNumber = readFragment;
+                fragmentFrames = 0;
+            }
+            fragmentFrames++;
+            tokenAtLastFrame = reader.getContinuationToken();
+            if (framesSinceReconnect++ == 0 && reconnects > 0) {
+                logger.info("Resumed the stream of " + callId + " at fragment " + readFragment + " after skipping "
+                        + skippedFrames + " frames read before");
+                skippedFrames = 0;
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * A response opened again repeats fragments, or the frames of the last fragment, that were returned before
+     */
+    private boolean isReturnedAlready(String readFragment) {
+        if (readFragment == null || fragmentNumber == null) {
+            return false;
+        }
+        int order = compareFragmentNumbers(readFragment, fragmentNumber);
+        return order < 0 || (order == 0 && readFragmentFrames <= fragmentFrames);
+    }
+
+    /**
+     * Fragment numbers are decimal numbers too long for a long, increasing along the stream
+     */
+    private static int compareFragmentNumbers(String a, String b) {
+        return a.length() != b.length() ? Integer.compare(a.length(), b.length()) : a.compareTo(b);
+    }
+
+    /**
+     * @return whether the end of the stream is unexpected, the call still goes on and the end signal will stop a
+     * new GetMedia that finds no more audio
+     */
+    private boolean isCallGoingOn() {
+        return endSignal != null && !endSignal.isStopped() && !endSignal.isCallEnded()
+                && endSignal.getIdleLimitMillis(true) > 0;
+    }
+
+    /**
+     * Opens the stream again after a backoff, as long as attempts are left. The end signal does not count the time
+     * this takes as idle.
+     *
+     * @return whether the frames are read from a new response
+     */
+    private boolean reconnect(String reason) {
+        if (endSignal == null) {
+            return reopen(reason);
+        }
+        endSignal.reconnecting();
+        try {
+            return reopen(reason);
+        } finally {
+            endSignal.reconnected();
+        }
+    }
+
+    private boolean reopen(String reason) {
+        if (framesSinceReconnect > 0) {
+            // the previous response returned audio, the attempts start over
+            failedAttempts = 0;
+        }
+        while (failedAttempts < maxAttempts) {
+            if (isStopped()) {
+                return false;
+            }
+            failedAttempts++;
+            framesSinceReconnect = 0;
+            StartSelector startSelector = getStartSelector();
+            long backoffMillis = Math.min(backoffMaxMillis, backoffBaseMillis << Math.min(failedAttempts - 1, 20));
+            logger.warn("GetMedia of " + callId + " broke off (" + reason + "), opening it again from "
+                    + startSelector.getStartSelectorType() + " in " + backoffMillis + " ms, attempt "
+                    + failedAttempts + " of " + maxAttempts);
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (isStopped()) {
+                return false;
+            }
+
+            closeQuietly(inputStream);
+            InputStream reopened;
+            try {
+                reopened = opener.open(startSelector);
+            } catch (RuntimeException e) {
+                logger.warn("Could not open the stream of " + callId + " again: ", e);
+                reason = "GetMedia failed: " + e;
+                continue;
+            }
+            inputStream = reopened;
+            if (closed) {
+                closeQuietly(reopened);
+                return false;
+            }
+            reader = readerFactory.apply(reopened);
+            readFragmentNumber = null;
+            readFragmentFrames = 0;
+            reconnects++;
+            return true;
+        }
+        if (maxAttempts > 0) {
+            logger.warn("Giving up on the stream of " + callId + " after " + failedAttempts + " attempts ("
+                    + reason + ")");
+        }
+        return false;
+    }
+
+    private boolean isStopped() {
+        return closed || (endSignal != null && endSignal.isStopped());
+    }
+
+    /**
+     * Resumes from the continuation token if it was read after the last frame, when KVS ended the response, and
+     * from the fragment of the last frame otherwise, or where the first response started before any frame
+     */
+    private StartSelector getStartSelector() {
+        String token = reader.getContinuationToken();
+        if (token != null && !token.equals(tokenAtLastFrame)) {
+            return new StartSelector().withStartSelectorType(StartSelectorType.CONTINUATION_TOKEN)
+                    .withContinuationToken(token);
+        }
+        return KVSUtils.getStartSelector(fragmentNumber != null ? fragmentNumber : startFragmentNumber);
+    }
+
+    @Override
+    public String getFragmentNumber() {
+        return fragmentNumber != null ? fragmentNumber : reader.getFragmentNumber();
+    }
+
+    @Override
+    public long getProducerTimestampMillis() {
+        return reader.getProducerTimestampMillis();
+    }
+
+    @Override
+    public long getServerTimestampMillis() {
+        return reader.getServerTimestampMillis();
+    }
+
+    @Override
+    public String getContinuationToken() {
+        return reader.getContinuationToken();
+    }
+
+    @Override
+    public boolean isOtherCall() {
+        return reader.isOtherCall();
+    }
+
+    /**
+     * @return how many times the stream was opened again
+     */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * Closes the response being read, a read blocked on it fails and the stream is not opened again
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        inputStream.close();
+    }
+
+    private void closeQuietly(InputStream stream) {
+        try {
+            if (stream instanceof SdkFilterInputStream) {
+                // closing would read the rest of the response to reuse the connection
+                ((SdkFilterInputStream) stream).abort();
+            } else {
+                stream.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not close the broken stream of " + callId + ": ", e);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps transcript segments on local disk while the wrapped sink is failing, instead of losing them or holding
+ * them in memory, and writes them to the sink in order once it works again.
+ *
+ * <p>When a write to the sink fails, the sink is considered unhealthy and the segments of that write and all later
+ * ones are appended to a spill log, one memory mapped file per call named after the call's transaction id. Segments
+ * are also spilled right away while the sink reports being throttled, instead of waiting for it to give up. A
+ * background replayer retries the oldest spilled segments every second; once a call's log is replayed it is
+ * deleted, and once all logs are replayed the sink is healthy again. Segments of a call that still has spilled
+ * segments are always spilled, so a call's segments reach the sink in order. Partial segments are not spilled.</p>
+ *
+ * <p>The wrapped sink is written without holding the lock, so spilling and replaying go on while it is slow. Writes
+ * of the same call must not overlap, which an {@link AsyncTranscriptSink} in front of this sink ensures.</p>
+ *
+ * <p>Every record is framed with its length and CRC32, and the replay position is kept in the file header, so logs
+ * left behind by a process that ended (for example a Lambda invocation that timed out) are picked up and replayed
+ * when the sink is created again, including when the same call is processed again.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class SpillingTranscriptSink implements TranscriptSink {
+
+    private static final String LOG_SUFFIX = ".spill";
+    private static final long REPLAY_INTERVAL_MILLIS = 1000;
+    private static final int MAX_REPLAY_BATCH = 25;
+    private static final Logger logger = LoggerFactory.getLogger(SpillingTranscriptSink.class);
+
+    private final TranscriptSink delegate;
+    private final Path directory;
+    private final BooleanSupplier throttled;
+    private final ScheduledExecutorService replayer;
+    // spill logs with segments not yet written to the delegate, by call id; guarded by this
+    private final Map<String, SpillLog> logs = new HashMap<>();
+    private volatile boolean healthy = true;
+    private long droppedCount;
+
+    public SpillingTranscriptSink(TranscriptSink delegate, Path directory) throws IOException {
+        this(delegate, directory, () -> false);
+    }
+
+    /**
+     * @param throttled whether the wrapped sink is throttled at the moment, new segments are spilled while it is
+     */
+    public SpillingTranscriptSink(TranscriptSink delegate, Path directory, BooleanSupplier throttled)
+            throws IOException {
+        this.delegate = Validate.notNull(delegate);
+        this.throttled = Validate.notNull(throttled);
+        this.directory = Files.createDirectories(Validate.notNull(directory));
+        recoverLogs();
+
+        this.replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transcript-spill-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.replayer.scheduleWithFixedDelay(this::replay, REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void write(List<TranscriptSegment> segments) throws Exception {
+        List<TranscriptSegment> direct = new ArrayList<>(segments.size());
+        synchronized (this) {
+            boolean spillAll = !healthy || throttled.getAsBoolean();
+            for (TranscriptSegment segment : segments) {
+                if (spillAll || logs.containsKey(segment.getCallId())) {
+                    spill(segment);
+                } else {
+                    direct.add(segment);
+                }
+            }
+        }
+        if (direct.isEmpty()) {
+            return;
+        }
+
+        try {
+            delegate.write(direct);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            synchronized (this) {
+                if (healthy) {
+                    logger.warn("Transcript sink failed, spilling segments to " + directory + " until it recovers: ",
+                            e);
+                }
+                healthy = false;
+                for (TranscriptSegment segment : direct) {
+                    spill(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all spilled segments are replayed, then flushes the wrapped sink
+     */
+    @Override
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (!logs.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn(logs.size() + " calls still have spilled transcript segments in " + directory);
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return delegate.flush(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    /**
+     * Waits until the spilled segments of the call are replayed, then flushes the call in the wrapped sink
+     */
+    @Override
+    public boolean flush(String callId, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (logs.containsKey(callId)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    logger.warn(callId + " still has spilled transcript segments in " + directory);
+                    return false;
+                }
+                wait(remaining);
+            }
+        }
+        return delegate.flush(callId, Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    /**
+     * Stops the replayer and closes the wrapped sink. Spill logs that are not replayed yet stay on disk and are
+     * replayed by the next instance using the same directory.
+     */
+    @Override
+    public void close() throws Exception {
+        replayer.shutdown();
+        replayer.awaitTermination(30, TimeUnit.SECONDS);
+        synchronized (this) {
+            for (SpillLog log : logs.values()) {
+                log.close();
+            }
+            logs.clear();
+        }
+        delegate.close();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // must hold this
+    private void spill(TranscriptSegment segment) {
+        if (segment.isPartial()) {
+            return;
+        }
+        try {
+            SpillLog log = logs.get(segment.getCallId());
+            if (log == null) {
+                log = SpillLog.open(logPath(segment.getCallId()), segment.getCallId());
+                logs.put(segment.getCallId(), log);
+            }
+            log.append(TranscriptBucketCodec.encode(Collections.singletonList(segment)));
+        } catch (IOException | RuntimeException e) {
+            droppedCount++;
+            logger.error("Could not spill transcript segment " + segment.getCallId() + "#"
+                    + segment.getSequenceNumber() + ", it is lost: ", e);
+        }
+    }
+
+    private void replay() {
+        List<String> callIds;
+        synchronized (this) {
+            callIds = new ArrayList<>(logs.keySet());
+        }
+        try {
+            for (String callId : callIds) {
+                replay(callId);
+            }
+        } catch (Exception e) {
+            logger.debug("Transcript sink still failing, keeping segments spilled: " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (logs.isEmpty()) {
+                if (!healthy) {
+                    logger.info("Transcript sink recovered, all spilled segments are written");
+                }
+                healthy = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void replay(String callId) throws Exception {
+        while (true) {
+            SpillLog log;
+            List<TranscriptSegment> batch = new ArrayList<>();
+            int records;
+            synchronized (this) {
+                log = logs.get(callId);
+                if (log == null) {
+                    return;
+                }
+                records = log.peek(MAX_REPLAY_BATCH, record ->
+                        batch.addAll(TranscriptBucketCodec.decode(callId, record)));
+                if (records == 0) {
+                    logs.remove(callId);
+                    log.delete();
+                    notifyAll();
+                    return;
+                }
+            }
+
+            delegate.write(batch);
+
+            synchronized (this) {
+                log.advance(records);
+            }
+        }
+    }
+
+    private void recoverLogs() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    SpillLog log = SpillLog.open(file, null);
+                    if (log.isEmpty()) {
+                        log.delete();
+                    } else {
+                        logger.info("Found spilled transcript segments of " + log.callId + ", replaying them");
+                        logs.put(log.callId, log);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not recover transcript spill log " + file + ": ", e);
+                }
+            }
+        }
+    }
+
+    private Path logPath(String callId) {
+        return directory.resolve(callId.replaceAll("[^A-Za-z0-9._-]", "_") + LOG_SUFFIX);
+    }
+
+    /**
+     * Append-only log of records in a memory mapped file. The header holds a magic number, the offset of the first
+     * record not replayed yet and the call id; each record is its length, its CRC32 and its bytes. A zero length
+     * or a CRC mismatch marks the end of the log, which also cuts off a record torn by a crash.
+     */
+    private static final class SpillLog implements Closeable {
+        private static final int MAGIC = 0x54535031;
+        private static final int READ_OFFSET_POSITION = 4;
+        private static final int CALL_ID_POSITION = 12;
+        private static final int HEADER_BYTES = 512;
+        private static final int RECORD_HEADER_BYTES = 8;
+        private static final int INITIAL_SIZE = 64 * 1024;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final String callId;
+        private MappedByteBuffer map;
+        private int readOffset;
+        private int writeOffset;
+
+        private SpillLog(Path path, FileChannel channel, String callId) {
+            this.path = path;
+            this.channel = channel;
+            this.callId = callId;
+        }
+
+        /**
+         * Opens an existing log, or creates one for the given call id
+         */
+        private static SpillLog open(Path path, String callId) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                boolean existing = channel.size() >= HEADER_BYTES;
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.max(channel.size(), INITIAL_SIZE));
+                if (!existing) {
+                    byte[] id = Validate.notNull(callId).getBytes(StandardCharsets.UTF_8);
+                    Validate.isTrue(id.length <= HEADER_BYTES - CALL_ID_POSITION - 2, "Call id too long");
+                    map.putInt(0, MAGIC).putInt(READ_OFFSET_POSITION, HEADER_BYTES)
+                            .putShort(CALL_ID_POSITION, (short) id.length);
+                    map.position(CALL_ID_POSITION + 2);
+                    map.put(id);
+                } else if (map.getInt(0) != MAGIC) {
+                    throw new IOException("Not a transcript spill log: " + path);
+                }
+
+                byte[] id = new byte[map.getShort(CALL_ID_POSITION)];
+                map.position(CALL_ID_POSITION + 2);
+                map.get(id);
+                SpillLog log = new SpillLog(path, channel, new String(id, StandardCharsets.UTF_8));
+                log.map = map;
+                log.readOffset = map.getInt(READ_OFFSET_POSITION);
+                log.writeOffset = log.readOffset;
+                while (log.recordLength(log.writeOffset) >= 0) {
+                    log.writeOffset += RECORD_HEADER_BYTES + log.recordLength(log.writeOffset);
+                }
+                return log;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private boolean isEmpty() {
+            return readOffset == writeOffset;
+        }
+
+        private void append(byte[] record) throws IOException {
+            int end = writeOffset + RECORD_HEADER_BYTES + record.length;
+            if (end + RECORD_HEADER_BYTES > map.capacity()) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.max((long) map.capacity() * 2, end + RECORD_HEADER_BYTES));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            map.position(writeOffset + RECORD_HEADER_BYTES);
+            map.put(record);
+            map.putInt(writeOffset + 4, (int) crc.getValue());
+            // the length goes last, a record is only part of the log once it is complete
+            map.putInt(writeOffset, record.length);
+            writeOffset = end;
+        }
+
+        /**
+         * Passes up to maxRecords records from the replay position to the consumer, without consuming them
+         *
+         * @return the number of records passed
+         */
+        private int peek(int maxRecords, Consumer<ByteBuffer> consumer) {
+            int offset = readOffset;
+            int records = 0;
+            while (records < maxRecords && offset < writeOffset) {
+                int length = recordLength(offset);
+                ByteBuffer record = map.duplicate();
+                record.position(offset + RECORD_HEADER_BYTES).limit(offset + RECORD_HEADER_BYTES + length);
+                consumer.accept(record.slice());
+                offset += RECORD_HEADER_BYTES + length;
+                records++;
+            }
+            return records;
+        }
+
+        private void advance(int records) {
+            for (int i = 0; i < records; i++) {
+                readOffset += RECORD_HEADER_BYTES + recordLength(readOffset);
+            }
+            map.putInt(READ_OFFSET_POSITION, readOffset);
+        }
+
+        // length of the valid record at the offset, -1 if there is none
+        private int recordLength(int offset) {
+            if (offset + RECORD_HEADER_BYTES > map.capacity()) {
+                return -1;
+            }
+            int length = map.getInt(offset);
+            if (length <= 0 || offset + RECORD_HEADER_BYTES + length > map.capacity()) {
+                return -1;
+            }
+            ByteBuffer record = map.duplicate();
+            record.position(offset + RECORD_HEADER_BYTES).limit(offset + RECORD_HEADER_BYTES + length);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            return (int) crc.getValue() == map.getInt(offset + 4) ? length : -1;
+        }
+
+        private void delete() {
+            try {
+                close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.warn("Could not delete transcript spill log " + path + ": ", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            map.force();
+            channel.close();
+        }
+    }
+}
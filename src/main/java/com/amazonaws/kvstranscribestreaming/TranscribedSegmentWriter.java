@@ -1,18 +1,29 @@
 package com.amazonaws.kvstranscribestreaming;
 
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
 import org.apache.commons.lang3.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Item;
+import software.amazon.awssdk.services.transcribestreaming.model.ItemType;
 import software.amazon.awssdk.services.transcribestreaming.model.Result;
 import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 
-import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * TranscribedSegmentWriter writes the transcript segments to DynamoDB
+ * TranscribedSegmentWriter turns the transcript events of one call into numbered {@link TranscriptSegment}s and
+ * hands them to a {@link TranscriptSink}, by default the DynamoDB table polled by the Transcribe website.
+ *
+ * <p>With partial results enabled, every result gets one segment that is first written with the stable part of its
+ * partial transcripts and then overwritten by the final transcript. A word counts as stable once two consecutive
+ * partials of the same result agree on it and on all words before it. A partial is only written when its stable
+ * prefix has grown, and at most once per result every partialResultsIntervalMillis.</p>
  *
  * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
  *
@@ -32,17 +43,46 @@ import java.util.List;
 public class TranscribedSegmentWriter {
 
     private String contactId;
-    private DynamoDB ddbClient;
+    private TranscriptSink transcriptSink;
     private Boolean consoleLogTranscriptFlag;
-    private int sequenceNumber = 0;
-    private static final String TABLE_CALLER_TRANSCRIPT = "TranscriptionsData";
+    // read by the lease heartbeat
+    private volatile int sequenceNumber = 0;
+    private final boolean writePartialResults;
+    private final long partialResultsIntervalMillis;
+    // partial results seen so far, by result id; removed when the result becomes final
+    private final Map<String, PartialResult> partialResults = new HashMap<>();
+    // the full transcript, only collected when it is archived at the end of the call
+    private final TranscriptArchiver transcriptArchiver;
+    private final CallTranscript callTranscript = new CallTranscript();
+    private final TranscriptLog transcriptLog = TranscriptLog.shared();
     private static final Logger logger = LoggerFactory.getLogger(TranscribedSegmentWriter.class);
 
     public TranscribedSegmentWriter(String contactId, DynamoDB ddbClient, Boolean consoleLogTranscriptFlag) {
 
+        this(contactId, new DynamoDBTranscriptSink(ddbClient), consoleLogTranscriptFlag, false, 0);
+    }
+
+    public TranscribedSegmentWriter(String contactId, TranscriptSink transcriptSink, Boolean consoleLogTranscriptFlag,
+                                    boolean writePartialResults, long partialResultsIntervalMillis) {
+
+        this(contactId, transcriptSink, consoleLogTranscriptFlag, writePartialResults, partialResultsIntervalMillis,
+                null);
+    }
+
+    /**
+     * @param transcriptArchiver receives the full transcript at the end of the call, null to not archive it
+     */
+    public TranscribedSegmentWriter(String contactId, TranscriptSink transcriptSink, Boolean consoleLogTranscriptFlag,
+                                    boolean writePartialResults, long partialResultsIntervalMillis,
+                                    TranscriptArchiver transcriptArchiver) {
+
+        this.transcriptArchiver = transcriptArchiver;
         this.contactId = Validate.notNull(contactId);
-        this.ddbClient = Validate.notNull(ddbClient);
+        this.transcriptSink = Validate.notNull(transcriptSink);
         this.consoleLogTranscriptFlag = Validate.notNull(consoleLogTranscriptFlag);
+        Validate.isTrue(partialResultsIntervalMillis >= 0, "partialResultsIntervalMillis must not be negative");
+        this.writePartialResults = writePartialResults;
+        this.partialResultsIntervalMillis = partialResultsIntervalMillis;
     }
 
     public String getContactId() {
@@ -50,12 +90,32 @@ public class TranscribedSegmentWriter {
         return this.contactId;
     }
 
-    public DynamoDB getDdbClient() {
+    public TranscriptSink getTranscriptSink() {
 
-        return this.ddbClient;
+        return this.transcriptSink;
     }
 
-    public void writeToDynamoDB(TranscriptEvent transcriptEvent) {
+    /**
+     * Continues the numbering of a call taken over from another worker after its last segment, instead of
+     * overwriting its segments from the first one. Call before the first transcript event.
+     *
+     * @param lastSequenceNumber
+     */
+    public void resumeAfter(int lastSequenceNumber) {
+
+        Validate.isTrue(lastSequenceNumber >= 0, "lastSequenceNumber must not be negative");
+        this.sequenceNumber = lastSequenceNumber;
+    }
+
+    /**
+     * @return the sequence number of the latest segment, 0 before the first one
+     */
+    public int getSequenceNumber() {
+
+        return this.sequenceNumber;
+    }
+
+    public void writeTranscriptEvent(TranscriptEvent transcriptEvent) {
 
         List<Result> results = transcriptEvent.transcript().results();
         if (results.size() > 0) {
@@ -63,15 +123,13 @@ public class TranscribedSegmentWriter {
             Result result = results.get(0);
 
             if (!result.isPartial()) {
-                try {
-                    Item ddbItem = toDynamoDbItem(result);
-                    if (ddbItem != null) {
-                        getDdbClient().getTable(TABLE_CALLER_TRANSCRIPT).putItem(ddbItem);
-                    }
-
-                } catch (Exception e) {
-                    logger.error("Exception while writing to DDB: ", e);
+                TranscriptSegment segment = toSegment(result);
+                if (segment != null && transcriptArchiver != null) {
+                    callTranscript.add(segment);
                 }
+                write(segment);
+            } else if (writePartialResults) {
+                write(toPartialSegment(result, System.currentTimeMillis()));
             }
         }
     }
@@ -80,55 +138,127 @@ public class TranscribedSegmentWriter {
      * Transcribe website looks for Final event in DynamoDB payload to stop polling for messages. This is workaround
      * to display end of streaming.
      */
-    public void writeTranscribeDoneToDynamoDB()
+    public void writeTranscribeDone()
     {
-        logger.info("writing end of transcription to DDB for " + contactId);
-        Item ddbItem = new Item()
-            .withKeyComponent("CallId", contactId)
-            .withKeyComponent("SequenceNumber", ++sequenceNumber)
-            .withString("TranscribedStream", "END_OF_TRANSCRIPTION")
-            .withBoolean("IsPartial", Boolean.FALSE)
-            .withBoolean("IsFinal", Boolean.TRUE);
-        
-        if (ddbItem != null) {
+        logger.info("writing end of transcription for " + contactId);
+        partialResults.clear();
+        write(TranscriptSegment.endOfTranscription(contactId, ++sequenceNumber));
+
+        if (transcriptArchiver != null) {
+            try {
+                transcriptArchiver.archive(callTranscript);
+            } catch (Exception e) {
+                logger.error("Exception while archiving the transcript of " + contactId + ": ", e);
+            }
+        }
+    }
+
+    private void write(TranscriptSegment segment) {
+
+        if (segment != null) {
             try {
-                getDdbClient().getTable(TABLE_CALLER_TRANSCRIPT).putItem(ddbItem);
+                getTranscriptSink().write(Collections.singletonList(segment));
             } catch (Exception e) {
-                logger.error("Exception while writing to DDB:", e);
+                logger.error("Exception while writing transcript segment: ", e);
             }
         }
     }
 
-    private Item toDynamoDbItem(Result result) {
+    TranscriptSegment toSegment(Result result) {
 
         String contactId = this.getContactId();
-        Item ddbItem = null;
+        TranscriptSegment segment = null;
 
-        NumberFormat nf = NumberFormat.getInstance();
-        nf.setMinimumFractionDigits(3);
-        nf.setMaximumFractionDigits(3);
+        // a final result overwrites the segment its partials were written to
+        PartialResult partial = partialResults.remove(result.resultId());
 
         if (result.alternatives().size() > 0) {
             if (!result.alternatives().get(0).transcript().isEmpty()) {
 
-                ddbItem = new Item()
-                        .withKeyComponent("CallId", contactId)
-                        .withKeyComponent("SequenceNumber", ++sequenceNumber)
-                        .withString("TranscribedStream", result.alternatives().get(0).transcript())
-                        .withBoolean("IsPartial", result.isPartial())
-                        .withBoolean("IsFinal", Boolean.FALSE);
-
-                if (consoleLogTranscriptFlag) {
-                    logger.info(String.format("Thread %s %d: [%s, %s] - %s",
-                            Thread.currentThread().getName(),
-                            System.currentTimeMillis(),
-                            nf.format(result.startTime()),
-                            nf.format(result.endTime()),
-                            result.alternatives().get(0).transcript()));
+                segment = new TranscriptSegment(contactId,
+                        partial != null && partial.sequenceNumber > 0 ? partial.sequenceNumber : ++sequenceNumber,
+                        result.alternatives().get(0).transcript(),
+                        result.startTime(),
+                        result.endTime(),
+                        result.isPartial(),
+                        toWords(result.alternatives().get(0).items()));
+
+                if (consoleLogTranscriptFlag && transcriptLog.isEnabled()) {
+                    // formatted on the log thread, the response thread only queues the values
+                    transcriptLog.transcript(contactId, result.startTime(), result.endTime(),
+                            result.alternatives().get(0).transcript());
                 }
             }
         }
 
-        return ddbItem;
+        return segment;
+    }
+
+    /**
+     * Returns the segment for a partial result, or null when its stable prefix has not grown since the last write
+     * or the last write of this result was less than partialResultsIntervalMillis ago
+     *
+     * @param result
+     * @param nowMillis
+     * @return
+     */
+    TranscriptSegment toPartialSegment(Result result, long nowMillis) {
+
+        if (result.alternatives().isEmpty() || result.alternatives().get(0).transcript().trim().isEmpty()) {
+            return null;
+        }
+
+        String[] words = result.alternatives().get(0).transcript().trim().split("\\s+");
+        PartialResult partial = partialResults.computeIfAbsent(result.resultId(), id -> new PartialResult());
+        int stableWords = commonPrefixLength(partial.previousWords, words);
+        partial.previousWords = words;
+
+        if (stableWords <= partial.writtenWords
+                || nowMillis - partial.lastWriteMillis < partialResultsIntervalMillis) {
+            return null;
+        }
+
+        if (partial.sequenceNumber == 0) {
+            partial.sequenceNumber = ++sequenceNumber;
+        }
+        partial.writtenWords = stableWords;
+        partial.lastWriteMillis = nowMillis;
+
+        return new TranscriptSegment(getContactId(), partial.sequenceNumber,
+                String.join(" ", Arrays.asList(words).subList(0, stableWords)),
+                result.startTime(), result.endTime(), true);
+    }
+
+    private static List<TranscriptSegment.Word> toWords(List<Item> items) {
+
+        List<TranscriptSegment.Word> words = new ArrayList<>(items.size());
+        for (Item item : items) {
+            if (item.content() == null || item.startTime() == null || item.endTime() == null) {
+                continue;
+            }
+            words.add(new TranscriptSegment.Word(item.content(), item.startTime(), item.endTime(),
+                    item.type() == ItemType.PUNCTUATION));
+        }
+        return words;
+    }
+
+    private static int commonPrefixLength(String[] previous, String[] current) {
+
+        int length = 0;
+        while (length < previous.length && length < current.length && previous[length].equals(current[length])) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write state of one result that has not become final yet
+     */
+    private static final class PartialResult {
+        private String[] previousWords = new String[0];
+        // 0 until the first partial of the result is written
+        private int sequenceNumber;
+        private int writtenWords;
+        private long lastWriteMillis = Long.MIN_VALUE / 2;
     }
 }
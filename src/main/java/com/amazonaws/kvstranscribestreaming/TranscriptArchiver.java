@@ -0,0 +1,84 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the full transcript of one call leg to S3 as a single gzip compressed JSON document, so consumers can read
+ * a whole transcript with one GET instead of querying every segment item.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class TranscriptArchiver {
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptArchiver.class);
+
+    private final AmazonS3 s3Client;
+    private final String bucketName;
+    private final String objectKey;
+    private final Map<String, String> attributes;
+
+    /**
+     * @param s3Client
+     * @param bucketName
+     * @param objectKey
+     * @param attributes identify the call leg, written at the top of the document and as object metadata
+     */
+    public TranscriptArchiver(AmazonS3 s3Client, String bucketName, String objectKey, Map<String, String> attributes) {
+        this.s3Client = Validate.notNull(s3Client);
+        this.bucketName = Validate.notNull(bucketName);
+        this.objectKey = Validate.notNull(objectKey);
+        this.attributes = new LinkedHashMap<>(Validate.notNull(attributes));
+    }
+
+    public void archive(CallTranscript transcript) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            transcript.writeJson(gzip, attributes);
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("application/json");
+        metadata.setContentEncoding("gzip");
+        metadata.setContentLength(compressed.size());
+        attributes.forEach(metadata::addUserMetadata);
+
+        PipelineEvents.S3Upload uploadEvent = new PipelineEvents.S3Upload();
+        uploadEvent.begin();
+        s3Client.putObject(new PutObjectRequest(bucketName, objectKey,
+                new ByteArrayInputStream(compressed.toByteArray()), metadata));
+        if (uploadEvent.shouldCommit()) {
+            uploadEvent.setTransactionId(attributes.get("transactionId"));
+            uploadEvent.bucket = bucketName;
+            uploadEvent.key = objectKey;
+            uploadEvent.bytes = compressed.size();
+            uploadEvent.commit();
+        }
+        logger.info(String.format("Uploaded transcript with %d segments to %s/%s (%d bytes)",
+                transcript.getSegmentCount(), bucketName, objectKey, compressed.size()));
+    }
+}
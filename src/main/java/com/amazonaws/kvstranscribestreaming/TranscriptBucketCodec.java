@@ -0,0 +1,252 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary encoding of transcript segments for the compact bucket layout of {@link BucketedDynamoDBTranscriptSink}.
+ * A chunk holds one or more final segments of one call, including the timing of every word.
+ *
+ * <p>Layout of a chunk: a format byte ({@link #RAW} or {@link #DEFLATED}, whichever is smaller), followed by the
+ * optionally deflated body. The body is the segment count and then per segment: sequence number, start time,
+ * duration, flags and either the words or, for segments without word timings, the transcript. Times are
+ * milliseconds, word times are relative to the previous word, and all integers are variable length, so a word
+ * typically costs its text plus three or four bytes.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class TranscriptBucketCodec {
+
+    static final byte RAW = 1;
+    static final byte DEFLATED = 2;
+
+    private static final int HAS_WORDS = 1;
+    private static final int END_OF_TRANSCRIPTION = 2;
+    private static final int PUNCTUATION = 1;
+
+    private TranscriptBucketCodec() {
+    }
+
+    public static byte[] encode(List<TranscriptSegment> segments) {
+        Output body = new Output();
+        body.writeVarLong(segments.size());
+        for (TranscriptSegment segment : segments) {
+            long startMillis = toMillis(segment.getStartTime());
+            body.writeVarLong(segment.getSequenceNumber());
+            body.writeSignedVarLong(startMillis);
+            body.writeSignedVarLong(toMillis(segment.getEndTime()) - startMillis);
+
+            List<TranscriptSegment.Word> words = segment.getWords();
+            int flags = (words.isEmpty() ? 0 : HAS_WORDS) | (segment.isEndOfTranscription() ? END_OF_TRANSCRIPTION : 0);
+            body.write(flags);
+            if (segment.isEndOfTranscription()) {
+                continue;
+            }
+            if (words.isEmpty()) {
+                body.writeString(segment.getTranscript());
+                continue;
+            }
+
+            body.writeVarLong(words.size());
+            long previousMillis = startMillis;
+            for (TranscriptSegment.Word word : words) {
+                long wordStartMillis = toMillis(word.getStartTime());
+                body.write(word.isPunctuation() ? PUNCTUATION : 0);
+                body.writeSignedVarLong(wordStartMillis - previousMillis);
+                body.writeSignedVarLong(toMillis(word.getEndTime()) - wordStartMillis);
+                body.writeString(word.getContent());
+                previousMillis = wordStartMillis;
+            }
+        }
+
+        byte[] raw = body.toByteArray();
+        byte[] deflated = deflate(raw);
+        ByteBuffer chunk = ByteBuffer.allocate(1 + Math.min(raw.length, deflated.length));
+        if (deflated.length < raw.length) {
+            chunk.put(DEFLATED).put(deflated);
+        } else {
+            chunk.put(RAW).put(raw);
+        }
+        return chunk.array();
+    }
+
+    /**
+     * Decodes a chunk written by {@link #encode}
+     *
+     * @param callId call the chunk belongs to, it is not stored in the chunk
+     * @param chunk
+     * @return the segments of the chunk, in the order they were written
+     */
+    public static List<TranscriptSegment> decode(String callId, ByteBuffer chunk) {
+        ByteBuffer buffer = chunk.duplicate();
+        byte format = buffer.get();
+        Input body;
+        if (format == RAW) {
+            body = new Input(buffer);
+        } else if (format == DEFLATED) {
+            body = new Input(ByteBuffer.wrap(inflate(buffer)));
+        } else {
+            throw new IllegalArgumentException("Unknown transcript chunk format " + format);
+        }
+
+        int count = (int) body.readVarLong();
+        List<TranscriptSegment> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int sequenceNumber = (int) body.readVarLong();
+            long startMillis = body.readSignedVarLong();
+            long endMillis = startMillis + body.readSignedVarLong();
+            int flags = body.readByte();
+
+            if ((flags & END_OF_TRANSCRIPTION) != 0) {
+                segments.add(TranscriptSegment.endOfTranscription(callId, sequenceNumber));
+            } else if ((flags & HAS_WORDS) == 0) {
+                segments.add(new TranscriptSegment(callId, sequenceNumber, body.readString(),
+                        toSeconds(startMillis), toSeconds(endMillis), false));
+            } else {
+                int wordCount = (int) body.readVarLong();
+                List<TranscriptSegment.Word> words = new ArrayList<>(wordCount);
+                StringBuilder transcript = new StringBuilder();
+                long previousMillis = startMillis;
+                for (int w = 0; w < wordCount; w++) {
+                    boolean punctuation = (body.readByte() & PUNCTUATION) != 0;
+                    long wordStartMillis = previousMillis + body.readSignedVarLong();
+                    long wordEndMillis = wordStartMillis + body.readSignedVarLong();
+                    String content = body.readString();
+                    words.add(new TranscriptSegment.Word(content, toSeconds(wordStartMillis),
+                            toSeconds(wordEndMillis), punctuation));
+                    // Transcribe attaches punctuation to the preceding word
+                    if (transcript.length() > 0 && !punctuation) {
+                        transcript.append(' ');
+                    }
+                    transcript.append(content);
+                    previousMillis = wordStartMillis;
+                }
+                segments.add(new TranscriptSegment(callId, sequenceNumber, transcript.toString(),
+                        toSeconds(startMillis), toSeconds(endMillis), false, words));
+            }
+        }
+        return segments;
+    }
+
+    private static long toMillis(double seconds) {
+        return Math.round(seconds * 1000);
+    }
+
+    private static double toSeconds(long millis) {
+        return millis / 1000.0;
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(ByteBuffer deflated) {
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] input = new byte[deflated.remaining()];
+            deflated.get(input);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+            byte[] buffer = new byte[512];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated transcript chunk");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt transcript chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Input {
+        private final ByteBuffer buffer;
+
+        private Input(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private int readByte() {
+            return buffer.get() & 0xFF;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed variable length integer in transcript chunk");
+        }
+
+        private long readSignedVarLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() {
+            byte[] bytes = new byte[(int) readVarLong()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.NumberFormat;
+
+/**
+ * Asynchronous log of transcript lines and per-event messages, meant for the Transcribe response threads. Callers
+ * only copy references and numbers into a preallocated slot of a bounded ring buffer, which allocates nothing and
+ * never blocks on the log appender. A single background thread formats the lines, including the name of the
+ * calling thread, and hands them to the logger.
+ *
+ * <p>When the ring buffer is full, lines are dropped and counted rather than slowing the caller down. The number
+ * of dropped lines is logged by the background thread.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class TranscriptLog implements AutoCloseable {
+
+    private static final int SHARED_CAPACITY = 4096;
+    private static final long IDLE_WAIT_MILLIS = 1000;
+
+    private static final int KIND_TRANSCRIPT = 1;
+    private static final int KIND_EVENT = 2;
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptLog.class);
+
+    private final Slot[] slots;
+    private final Thread writerThread;
+    // next slot to write and next slot to read, only ever increasing
+    private long head;
+    private long tail;
+    private long dropped;
+    private long reportedDropped;
+    private boolean writerWaiting;
+    private boolean closed;
+
+    private static final class SharedHolder {
+        private static final TranscriptLog INSTANCE = new TranscriptLog(SHARED_CAPACITY);
+    }
+
+    /**
+     * @return the log shared by all sessions of the process
+     */
+    public static TranscriptLog shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    public TranscriptLog(int capacity) {
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        this.writerThread = new Thread(this::writeLoop, "transcript-log");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @return whether lines are logged at all, callers skip collecting their arguments otherwise
+     */
+    public boolean isEnabled() {
+        return logger.isInfoEnabled();
+    }
+
+    /**
+     * Logs a transcript line in the format "Thread name millis: [start, end] - transcript"
+     *
+     * @param callId
+     * @param startTime
+     * @param endTime
+     * @param transcript
+     */
+    public void transcript(String callId, double startTime, double endTime, String transcript) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            Slot slot = claim();
+            if (slot == null) {
+                return;
+            }
+            slot.kind = KIND_TRANSCRIPT;
+            slot.thread = Thread.currentThread();
+            slot.timeMillis = System.currentTimeMillis();
+            slot.callId = callId;
+            slot.text = transcript;
+            slot.value = null;
+            slot.startTime = startTime;
+            slot.endTime = endTime;
+            publish();
+        }
+    }
+
+    /**
+     * Logs "message value" for the call
+     *
+     * @param callId
+     * @param message constant part of the line
+     * @param value   variable part of the line, may be null
+     */
+    public void event(String callId, String message, String value) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            Slot slot = claim();
+            if (slot == null) {
+                return;
+            }
+            slot.kind = KIND_EVENT;
+            slot.thread = Thread.currentThread();
+            slot.timeMillis = System.currentTimeMillis();
+            slot.callId = callId;
+            slot.text = message;
+            slot.value = value;
+            publish();
+        }
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized int getQueueSize() {
+        return (int) (head - tail);
+    }
+
+    /**
+     * Logs the lines still queued and stops the background thread
+     *
+     * @throws InterruptedException
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        writerThread.join(IDLE_WAIT_MILLIS * 5);
+    }
+
+    // must hold the monitor; returns null and counts the line if the ring buffer is full
+    private Slot claim() {
+        if (closed || head - tail == slots.length) {
+            dropped++;
+            return null;
+        }
+        return slots[(int) (head % slots.length)];
+    }
+
+    // must hold the monitor
+    private void publish() {
+        head++;
+        if (writerWaiting) {
+            writerWaiting = false;
+            notifyAll();
+        }
+    }
+
+    private void writeLoop() {
+        Slot line = new Slot();
+        StringBuilder builder = new StringBuilder(256);
+        // NumberFormat is not thread safe, this one is only used by the writer thread
+        NumberFormat secondsFormat = NumberFormat.getInstance();
+        secondsFormat.setMinimumFractionDigits(3);
+        secondsFormat.setMaximumFractionDigits(3);
+        while (true) {
+            long newlyDropped;
+            synchronized (this) {
+                while (head == tail && !closed && dropped == reportedDropped) {
+                    writerWaiting = true;
+                    try {
+                        wait(IDLE_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                newlyDropped = dropped - reportedDropped;
+                reportedDropped = dropped;
+                if (head == tail) {
+                    if (closed && newlyDropped == 0) {
+                        return;
+                    }
+                    line.kind = 0;
+                } else {
+                    // copy the line out so the slot can be reused while the line is formatted
+                    line.copyFrom(slots[(int) (tail % slots.length)]);
+                    slots[(int) (tail % slots.length)].clear();
+                    tail++;
+                }
+            }
+
+            if (newlyDropped > 0) {
+                logger.warn("Transcript log fell behind, dropped " + newlyDropped + " lines");
+            }
+            if (line.kind != 0) {
+                builder.setLength(0);
+                format(line, builder, secondsFormat);
+                logger.info(builder.toString());
+            }
+        }
+    }
+
+    private static void format(Slot line, StringBuilder builder, NumberFormat secondsFormat) {
+        builder.append("Thread ").append(line.thread.getName()).append(' ').append(line.timeMillis).append(": ");
+        if (line.kind == KIND_TRANSCRIPT) {
+            builder.append('[').append(secondsFormat.format(line.startTime)).append(", ")
+                    .append(secondsFormat.format(line.endTime)).append("] - ").append(line.text);
+        } else {
+            builder.append(line.callId).append(' ').append(line.text);
+            if (line.value != null) {
+                builder.append(' ').append(line.value);
+            }
+        }
+    }
+
+    private static final class Slot {
+        private int kind;
+        // the calling thread, named when the line is formatted
+        private Thread thread;
+        private long timeMillis;
+        private String callId;
+        private String text;
+        private String value;
+        private double startTime;
+        private double endTime;
+
+        private void copyFrom(Slot other) {
+            kind = other.kind;
+            thread = other.thread;
+            timeMillis = other.timeMillis;
+            callId = other.callId;
+            text = other.text;
+            value = other.value;
+            startTime = other.startTime;
+            endTime = other.endTime;
+        }
+
+        // drops the references so queued lines don't keep transcripts alive
+        private void clear() {
+            thread = null;
+            callId = null;
+            text = null;
+            value = null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embedded HTTP server that pushes transcript segments to subscribers with Server-Sent Events as soon as they are
+ * written, so a UI does not need to poll the TranscriptionsData table.
+ *
+ * <p>Subscribers connect to {@code GET /transcripts?callId=<transactionId>}, or {@code GET /transcripts} for the
+ * segments of all calls, and receive one {@code segment} event per segment with the segment as JSON. Every
+ * subscriber has its own bounded queue; a subscriber that does not keep up is disconnected instead of slowing
+ * down the calls or the other subscribers, and can reconnect and read the missed segments from DynamoDB.</p>
+ *
+ * <p>Phrases spotted in a call are pushed on the same connections as {@code phrase} events.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class TranscriptPushServer implements TranscriptSink, PhraseMatchListener {
+
+    private static final String PATH = "/transcripts";
+    private static final long KEEP_ALIVE_SECONDS = 15;
+    // queued in place of an event to end a subscription
+    private static final String DISCONNECT = "";
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptPushServer.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService connectionExecutor;
+    private final int subscriberQueueSize;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionThreadCount = new AtomicInteger();
+
+    public TranscriptPushServer(int port, int subscriberQueueSize) throws IOException {
+        Validate.isTrue(subscriberQueueSize > 0, "subscriberQueueSize must be positive");
+        this.subscriberQueueSize = subscriberQueueSize;
+        // every subscriber holds a thread for as long as it is connected
+        this.connectionExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "transcript-push-" + connectionThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext(PATH, this::handle);
+        this.server.setExecutor(connectionExecutor);
+        this.server.start();
+        logger.info("Transcript push server listening on port " + server.getAddress().getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void write(List<TranscriptSegment> segments) throws JsonProcessingException {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        for (TranscriptSegment segment : segments) {
+            offer(segment.getCallId(), toEvent(segment));
+        }
+    }
+
+    @Override
+    public void onMatch(PhraseMatch match) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        try {
+            offer(match.getCallId(), toEvent(match));
+        } catch (JsonProcessingException e) {
+            logger.error("Exception while pushing phrase match of " + match.getCallId() + ": ", e);
+        }
+    }
+
+    private void offer(String callId, String event) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.callId != null && !subscriber.callId.equals(callId)) {
+                continue;
+            }
+            if (!subscriber.events.offer(event)) {
+                logger.warn("Disconnecting transcript subscriber " + subscriber.remoteAddress
+                        + ", it has " + subscriberQueueSize + " undelivered events");
+                disconnect(subscriber);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Subscriber subscriber : subscribers) {
+            disconnect(subscriber);
+        }
+        server.stop(1);
+        connectionExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            Subscriber subscriber = new Subscriber(queryParameter(exchange, "callId"),
+                    String.valueOf(exchange.getRemoteAddress()), new ArrayBlockingQueue<>(subscriberQueueSize));
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+
+            subscribers.add(subscriber);
+            logger.info("Transcript subscriber " + subscriber.remoteAddress + " connected for "
+                    + (subscriber.callId == null ? "all calls" : subscriber.callId));
+            try {
+                stream(subscriber, exchange.getResponseBody());
+            } catch (IOException e) {
+                logger.debug("Transcript subscriber " + subscriber.remoteAddress + " went away: " + e.getMessage());
+            } finally {
+                subscribers.remove(subscriber);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void stream(Subscriber subscriber, OutputStream out) throws IOException, InterruptedException {
+        out.write(": connected\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        while (true) {
+            String event = subscriber.events.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            if (DISCONNECT.equals(event)) {
+                return;
+            }
+            // a comment line lets both sides notice a dead connection
+            out.write((event == null ? ": keep-alive\n\n" : event).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+
+    private void disconnect(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriber.events.clear();
+        subscriber.events.offer(DISCONNECT);
+    }
+
+    private static String toEvent(TranscriptSegment segment) throws JsonProcessingException {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("CallId", segment.getCallId());
+        data.put("SequenceNumber", segment.getSequenceNumber());
+        data.put("TranscribedStream", segment.getTranscript());
+        data.put("StartTime", segment.getStartTime());
+        data.put("EndTime", segment.getEndTime());
+        data.put("IsPartial", segment.isPartial());
+        data.put("IsFinal", segment.isEndOfTranscription());
+        return "id: " + segment.getCallId() + "#" + segment.getSequenceNumber() + "\n"
+                + "event: segment\n"
+                + "data: " + objectMapper.writeValueAsString(data) + "\n\n";
+    }
+
+    private static String toEvent(PhraseMatch match) throws JsonProcessingException {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("CallId", match.getCallId());
+        data.put("Phrase", match.getPhrase());
+        data.put("StartTime", match.getStartTime());
+        data.put("EndTime", match.getEndTime());
+        data.put("IsPartial", match.isPartial());
+        return "event: phrase\n"
+                + "data: " + objectMapper.writeValueAsString(data) + "\n\n";
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0 && name.equals(parameter.substring(0, separator))) {
+                return URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static final class Subscriber {
+        private final String callId;
+        private final String remoteAddress;
+        private final BlockingQueue<String> events;
+
+        private Subscriber(String callId, String remoteAddress, BlockingQueue<String> events) {
+            this.callId = callId;
+            this.remoteAddress = remoteAddress;
+            this.events = events;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One transcript segment of a call as handed to the {@link TranscriptSink}s. Segments with the same call id and
+ * sequence number replace each other, so a partial segment is later overwritten by its final version.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public final class TranscriptSegment {
+
+    public static final String END_OF_TRANSCRIPTION = "END_OF_TRANSCRIPTION";
+
+    private final String callId;
+    private final int sequenceNumber;
+    private final String transcript;
+    private final double startTime;
+    private final double endTime;
+    private final boolean partial;
+    private final boolean endOfTranscription;
+    private final List<Word> words;
+
+    public TranscriptSegment(String callId, int sequenceNumber, String transcript, double startTime, double endTime,
+                             boolean partial) {
+        this(callId, sequenceNumber, transcript, startTime, endTime, partial, Collections.emptyList());
+    }
+
+    public TranscriptSegment(String callId, int sequenceNumber, String transcript, double startTime, double endTime,
+                             boolean partial, List<Word> words) {
+        this(callId, sequenceNumber, transcript, startTime, endTime, partial, false, words);
+    }
+
+    private TranscriptSegment(String callId, int sequenceNumber, String transcript, double startTime,
+                              double endTime, boolean partial, boolean endOfTranscription, List<Word> words) {
+        this.callId = Validate.notNull(callId);
+        this.sequenceNumber = sequenceNumber;
+        this.transcript = Validate.notNull(transcript);
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.partial = partial;
+        this.endOfTranscription = endOfTranscription;
+        this.words = Collections.unmodifiableList(Validate.notNull(words));
+    }
+
+    /**
+     * Marker written after the last segment of a call, the Transcribe website stops polling when it sees it
+     *
+     * @param callId
+     * @param sequenceNumber
+     * @return
+     */
+    public static TranscriptSegment endOfTranscription(String callId, int sequenceNumber) {
+        return new TranscriptSegment(callId, sequenceNumber, END_OF_TRANSCRIPTION, 0, 0, false, true,
+                Collections.emptyList());
+    }
+
+    public String getCallId() {
+        return callId;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public String getTranscript() {
+        return transcript;
+    }
+
+    public double getStartTime() {
+        return startTime;
+    }
+
+    public double getEndTime() {
+        return endTime;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public boolean isEndOfTranscription() {
+        return endOfTranscription;
+    }
+
+    /**
+     * @return the recognized words and punctuation of the segment with their timings, empty if not known
+     */
+    public List<Word> getWords() {
+        return words;
+    }
+
+    @Override
+    public String toString() {
+        return callId + "#" + sequenceNumber + (partial ? " (partial)" : "") + ": " + transcript;
+    }
+
+    /**
+     * One word or punctuation mark of a segment. Punctuation has no duration and is attached to the preceding word.
+     */
+    public static final class Word {
+        private final String content;
+        private final double startTime;
+        private final double endTime;
+        private final boolean punctuation;
+
+        public Word(String content, double startTime, double endTime, boolean punctuation) {
+            this.content = Validate.notNull(content);
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.punctuation = punctuation;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public double getStartTime() {
+            return startTime;
+        }
+
+        public double getEndTime() {
+            return endTime;
+        }
+
+        public boolean isPunctuation() {
+            return punctuation;
+        }
+    }
+}
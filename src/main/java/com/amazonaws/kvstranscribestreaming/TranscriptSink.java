@@ -0,0 +1,66 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import java.util.List;
+
+/**
+ * Destination for the transcript segments of calls. {@link TranscribedSegmentWriter} hands every segment it
+ * produces to a sink; implementations decide where the segments go.
+ *
+ * <p>A sink may be shared by many concurrent calls and must be thread safe. {@link #write} is called on the
+ * Transcribe event loop, so sinks that do blocking I/O should be wrapped in an {@link AsyncTranscriptSink}.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public interface TranscriptSink extends AutoCloseable {
+
+    /**
+     * Writes the given segments, in order. A later segment with the same call id and sequence number replaces an
+     * earlier one.
+     *
+     * @param segments
+     * @throws Exception
+     */
+    void write(List<TranscriptSegment> segments) throws Exception;
+
+    /**
+     * Blocks until the segments passed to {@link #write} before this call have been written, or the timeout expires
+     *
+     * @param timeoutMillis
+     * @return false if the timeout expired first
+     * @throws InterruptedException
+     */
+    default boolean flush(long timeoutMillis) throws InterruptedException {
+        return true;
+    }
+
+    /**
+     * Blocks until the segments of the given call passed to {@link #write} before this call have been written, or
+     * the timeout expires. Sinks that can tell the calls apart override this so the end of one call does not wait
+     * for the segments of all others.
+     *
+     * @param callId
+     * @param timeoutMillis
+     * @return false if the timeout expired first
+     * @throws InterruptedException
+     */
+    default boolean flush(String callId, long timeoutMillis) throws InterruptedException {
+        return flush(timeoutMillis);
+    }
+
+    @Override
+    default void close() throws Exception {
+    }
+}
@@ -0,0 +1,113 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.commons.lang3.Validate;
+import software.amazon.awssdk.services.transcribestreaming.model.MediaEncoding;
+
+/**
+ * Transcription settings of the calls of one voice connector. The item of the voice connector in the settings table
+ * may set any of the attributes LanguageCode, VocabularyName, TranscribeEnabled, ChunkFrames, RecordingEnabled and
+ * MediaEncoding; the others are taken from the process-wide defaults.
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class VoiceConnectorSettings {
+
+    public static final String MEDIA_ENCODING_PCM = MediaEncoding.PCM.toString();
+    // the Transcribe SDK in use has no MediaEncoding.FLAC yet and would send its UNKNOWN_TO_SDK_VERSION as "null",
+    // the service takes the encoding by name
+    public static final String MEDIA_ENCODING_FLAC = "flac";
+
+    private final String languageCode;
+    private final String vocabularyName;
+    private final boolean transcribeEnabled;
+    private final int chunkFrames;
+    private final boolean recordingEnabled;
+    private final String mediaEncoding;
+
+    /**
+     * @param languageCode      language of the calls, as accepted by Transcribe
+     * @param vocabularyName    custom vocabulary Transcribe uses, null for none
+     * @param transcribeEnabled whether the calls are transcribed
+     * @param chunkFrames       audio frames sent to Transcribe per audio event while the stream is at the live edge
+     * @param recordingEnabled  whether the audio of the calls is uploaded to S3
+     * @param mediaEncoding     encoding of the audio sent to Transcribe, {@link #MEDIA_ENCODING_PCM} or
+     *                          {@link #MEDIA_ENCODING_FLAC}
+     */
+    public VoiceConnectorSettings(String languageCode, String vocabularyName, boolean transcribeEnabled,
+                                  int chunkFrames, boolean recordingEnabled, String mediaEncoding) {
+        this.languageCode = Validate.notNull(languageCode);
+        this.vocabularyName = vocabularyName;
+        this.transcribeEnabled = transcribeEnabled;
+        Validate.isTrue(chunkFrames > 0, "chunkFrames must be positive");
+        this.chunkFrames = chunkFrames;
+        this.recordingEnabled = recordingEnabled;
+        Validate.isTrue(MEDIA_ENCODING_PCM.equalsIgnoreCase(mediaEncoding)
+                || MEDIA_ENCODING_FLAC.equalsIgnoreCase(mediaEncoding), "Unsupported media encoding %s", mediaEncoding);
+        this.mediaEncoding = mediaEncoding.toLowerCase();
+    }
+
+    /**
+     * @param item     item of the voice connector in the settings table
+     * @param defaults settings for the attributes the item does not have
+     * @return
+     */
+    public static VoiceConnectorSettings fromItem(Item item, VoiceConnectorSettings defaults) {
+        return new VoiceConnectorSettings(
+                item.isPresent("LanguageCode") ? item.getString("LanguageCode") : defaults.languageCode,
+                item.isPresent("VocabularyName") ? item.getString("VocabularyName") : defaults.vocabularyName,
+                item.isPresent("TranscribeEnabled") ? item.getBoolean("TranscribeEnabled")
+                        : defaults.transcribeEnabled,
+                item.isPresent("ChunkFrames") ? item.getInt("ChunkFrames") : defaults.chunkFrames,
+                item.isPresent("RecordingEnabled") ? item.getBoolean("RecordingEnabled") : defaults.recordingEnabled,
+                item.isPresent("MediaEncoding") ? item.getString("MediaEncoding") : defaults.mediaEncoding);
+    }
+
+    public String getLanguageCode() {
+        return languageCode;
+    }
+
+    public String getVocabularyName() {
+        return vocabularyName;
+    }
+
+    public boolean isTranscribeEnabled() {
+        return transcribeEnabled;
+    }
+
+    public int getChunkFrames() {
+        return chunkFrames;
+    }
+
+    public boolean isRecordingEnabled() {
+        return recordingEnabled;
+    }
+
+    public String getMediaEncoding() {
+        return mediaEncoding;
+    }
+
+    public boolean isFlacEncoded() {
+        return MEDIA_ENCODING_FLAC.equals(mediaEncoding);
+    }
+
+    @Override
+    public String toString() {
+        return "languageCode=" + languageCode + ", vocabularyName=" + vocabularyName + ", transcribeEnabled="
+                + transcribeEnabled + ", chunkFrames=" + chunkFrames + ", recordingEnabled=" + recordingEnabled
+                + ", mediaEncoding=" + mediaEncoding;
+    }
+}
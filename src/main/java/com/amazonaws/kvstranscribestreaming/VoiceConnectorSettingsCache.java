@@ -0,0 +1,222 @@
+package com.amazonaws.kvstranscribestreaming;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the {@link VoiceConnectorSettings} of every voice connector read from the settings table, so a call start
+ * finds the settings of its voice connector in memory.
+ *
+ * <ul>
+ * <li>Settings are kept for the TTL. A lookup in the last refreshAheadMillis of the TTL returns the cached
+ * settings right away and reloads them in the background, so the settings of a voice connector with regular calls
+ * never expire.</li>
+ * <li>Voice connectors without an item get the defaults, cached for the shorter negative TTL so they don't cost a
+ * read per call. A failed read keeps the previous settings, or the defaults, for the negative TTL too.</li>
+ * <li>Only one read per voice connector is in flight; concurrent lookups share it.</li>
+ * <li>If the table doesn't exist, every voice connector gets the defaults without further reads for the negative
+ * TTL, then the table is looked up again, so a table created after deployment is picked up.</li>
+ * </ul>
+ *
+ * <p>The table has the partition key VoiceConnectorId of type String.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class VoiceConnectorSettingsCache implements AutoCloseable {
+
+    private static final int LOADER_THREADS = 4;
+
+    private static final Logger logger = LoggerFactory.getLogger(VoiceConnectorSettingsCache.class);
+
+    private final Table table;
+    private final VoiceConnectorSettings defaults;
+    private final long ttlMillis;
+    private final long refreshAheadMillis;
+    private final long negativeTtlMillis;
+    private final ExecutorService loader;
+    private final AtomicInteger loaderThreadCount = new AtomicInteger();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<VoiceConnectorSettings>> loads = new ConcurrentHashMap<>();
+    // until then the table is known not to exist and every voice connector gets the defaults
+    private volatile long tableMissingUntil;
+
+    /**
+     * @param dynamoDB
+     * @param tableName          table holding an item per voice connector id
+     * @param defaults           settings of voice connectors without an item, and of the attributes an item
+     *                           doesn't set
+     * @param ttlMillis          how long the settings read from the table are used
+     * @param refreshAheadMillis how long before the TTL expires a lookup reloads the settings in the background
+     * @param negativeTtlMillis  how long the defaults are used for a voice connector without an item or whose
+     *                           read failed, and for every voice connector while the table doesn't exist
+     */
+    public VoiceConnectorSettingsCache(DynamoDB dynamoDB, String tableName, VoiceConnectorSettings defaults,
+                                       long ttlMillis, long refreshAheadMillis, long negativeTtlMillis) {
+        Validate.notNull(dynamoDB);
+        Validate.notNull(tableName);
+        Validate.isTrue(ttlMillis > 0, "ttlMillis must be positive");
+        Validate.isTrue(refreshAheadMillis >= 0 && refreshAheadMillis < ttlMillis,
+                "refreshAheadMillis must be less than ttlMillis");
+        Validate.isTrue(negativeTtlMillis > 0, "negativeTtlMillis must be positive");
+        this.table = dynamoDB.getTable(tableName);
+        this.defaults = Validate.notNull(defaults);
+        this.ttlMillis = ttlMillis;
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.loader = Executors.newFixedThreadPool(LOADER_THREADS, r -> {
+            Thread thread = new Thread(r, "voice-connector-settings-" + loaderThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Looks up the settings of a voice connector. The returned future is already complete when the settings are
+     * cached, otherwise it completes once they are read, so the lookup can be started early and overlap other work.
+     *
+     * @param voiceConnectorId may be null, which gets the defaults
+     * @return
+     */
+    public CompletableFuture<VoiceConnectorSettings> get(String voiceConnectorId) {
+        long now = System.currentTimeMillis();
+        if (voiceConnectorId == null || now < tableMissingUntil) {
+            return CompletableFuture.completedFuture(defaults);
+        }
+        Entry entry = entries.get(voiceConnectorId);
+        if (entry != null && now < entry.expiresAt) {
+            if (now >= entry.refreshAt) {
+                load(voiceConnectorId);
+            }
+            return CompletableFuture.completedFuture(entry.settings);
+        }
+        return load(voiceConnectorId);
+    }
+
+    /**
+     * Waits for a lookup started with {@link #get(String)}
+     *
+     * @param lookup
+     * @param voiceConnectorId
+     * @param timeoutMillis    how long to wait for a read still in flight
+     * @return the settings, the defaults if the read did not finish in time
+     * @throws InterruptedException
+     */
+    public VoiceConnectorSettings await(CompletableFuture<VoiceConnectorSettings> lookup, String voiceConnectorId,
+                                        long timeoutMillis) throws InterruptedException {
+        try {
+            return lookup.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            logger.warn("Settings of voice connector " + voiceConnectorId + " not read within " + timeoutMillis
+                    + " ms, using the defaults");
+            return defaults;
+        }
+    }
+
+    public VoiceConnectorSettings getDefaults() {
+        return defaults;
+    }
+
+    @Override
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    private CompletableFuture<VoiceConnectorSettings> load(String voiceConnectorId) {
+        CompletableFuture<VoiceConnectorSettings> load = loads.get(voiceConnectorId);
+        if (load != null) {
+            return load;
+        }
+        CompletableFuture<VoiceConnectorSettings> created = new CompletableFuture<>();
+        load = loads.putIfAbsent(voiceConnectorId, created);
+        if (load != null) {
+            return load;
+        }
+        try {
+            loader.execute(() -> {
+                try {
+                    created.complete(read(voiceConnectorId));
+                } finally {
+                    loads.remove(voiceConnectorId, created);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the cache is closed
+            loads.remove(voiceConnectorId, created);
+            created.complete(defaults);
+        }
+        return created;
+    }
+
+    private VoiceConnectorSettings read(String voiceConnectorId) {
+        long now = System.currentTimeMillis();
+        try {
+            Item item = table.getItem(new GetItemSpec().withPrimaryKey("VoiceConnectorId", voiceConnectorId));
+            if (item == null) {
+                entries.put(voiceConnectorId, new Entry(defaults, now + negativeTtlMillis, now + negativeTtlMillis));
+                return defaults;
+            }
+            VoiceConnectorSettings settings = VoiceConnectorSettings.fromItem(item, defaults);
+            Entry previous = entries.put(voiceConnectorId, new Entry(settings, now + ttlMillis,
+                    now + ttlMillis - refreshAheadMillis));
+            if (previous == null || !settings.toString().equals(previous.settings.toString())) {
+                logger.info("Settings of voice connector " + voiceConnectorId + ": " + settings);
+            }
+            return settings;
+        } catch (ResourceNotFoundException e) {
+            logger.warn("Voice connector settings table " + table.getTableName() + " not found, using the defaults "
+                    + "for every voice connector for the next " + negativeTtlMillis + " ms");
+            tableMissingUntil = now + negativeTtlMillis;
+            return defaults;
+        } catch (Exception e) {
+            Entry stale = entries.get(voiceConnectorId);
+            VoiceConnectorSettings settings = stale != null ? stale.settings : defaults;
+            logger.warn("Could not read the settings of voice connector " + voiceConnectorId + ", using "
+                    + (stale != null ? "the previous settings" : "the defaults") + ": ", e);
+            entries.put(voiceConnectorId, new Entry(settings, now + negativeTtlMillis, now + negativeTtlMillis));
+            return settings;
+        }
+    }
+
+    private static final class Entry {
+        private final VoiceConnectorSettings settings;
+        private final long expiresAt;
+        // after this a lookup reloads the settings in the background
+        private final long refreshAt;
+
+        private Entry(VoiceConnectorSettings settings, long expiresAt, long refreshAt) {
+            this.settings = settings;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.amazonaws.transcribestreaming;
+
+import com.amazonaws.internal.SdkFilterInputStream;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ends the audio of a call before KVS closes its stream. {@link KVSByteToAudioEventSubscription} stops reading
+ * once the stream has been idle for the idle timeout, or for the shorter drain timeout once the call is known to
+ * have ended, and then completes the Transcribe stream normally so the last results still come back.
+ *
+ * <p>The KVS stream is aborted to stop, since a GetMedia read blocks until the next fragment arrives or the
+ * connection is closed.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class AudioEndSignal {
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioEndSignal.class);
+
+    private final String callId;
+    private InputStream source;
+    private final long idleTimeoutMillis;
+    private final long drainIdleMillis;
+    private volatile String callEndReason;
+    private volatile String stopReason;
+    // set while the stream is being opened again, and when it last was
+    private volatile boolean reconnecting;
+    private volatile long resumedNanos = System.nanoTime();
+
+    /**
+     * @param callId            call the audio belongs to, for logging
+     * @param source            stream the audio is read from, aborted to stop a blocked read
+     * @param idleTimeoutMillis how long the stream may go without audio once audio was read, 0 to wait for KVS to
+     *                          close the stream
+     * @param drainIdleMillis   how long the stream may go without audio after the call ended
+     */
+    public AudioEndSignal(String callId, InputStream source, long idleTimeoutMillis, long drainIdleMillis) {
+        this.callId = Validate.notNull(callId);
+        this.source = Validate.notNull(source);
+        Validate.isTrue(idleTimeoutMillis >= 0, "idleTimeoutMillis must not be negative");
+        Validate.isTrue(drainIdleMillis > 0, "drainIdleMillis must be positive");
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.drainIdleMillis = drainIdleMillis;
+    }
+
+    /**
+     * Records that the call ended. The audio still in the stream is read, and reading stops as soon as the stream
+     * has been idle for the drain timeout.
+     *
+     * @param reason
+     */
+    public void callEnded(String reason) {
+        if (callEndReason == null) {
+            callEndReason = Validate.notNull(reason);
+            logger.info("Call " + callId + " ended (" + reason + "), draining its audio");
+        }
+    }
+
+    /**
+     * @return whether the call is known to have ended
+     */
+    public boolean isCallEnded() {
+        return callEndReason != null;
+    }
+
+    /**
+     * Stops reading the audio by aborting the stream, a read blocked on it fails right away
+     *
+     * @param reason
+     */
+    public synchronized void stop(String reason) {
+        if (stopReason != null) {
+            return;
+        }
+        stopReason = Validate.notNull(reason);
+        logger.info("Stopping the audio of " + callId + ": " + reason);
+        abortSource();
+    }
+
+    /**
+     * Replaces the stream aborted to stop, once the audio is read from another GetMedia response. If reading was
+     * stopped already, the new stream is aborted right away.
+     *
+     * @param source
+     */
+    public synchronized void setSource(InputStream source) {
+        this.source = Validate.notNull(source);
+        if (stopReason != null) {
+            abortSource();
+        }
+    }
+
+    private void abortSource() {
+        try {
+            if (source instanceof SdkFilterInputStream) {
+                // closing would read the rest of the response to reuse the connection
+                ((SdkFilterInputStream) source).abort();
+            } else {
+                source.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not close the audio stream of " + callId + ": ", e);
+        }
+    }
+
+    /**
+     * @return whether reading was stopped, a read failing afterwards is the end of the audio rather than an error
+     */
+    public boolean isStopped() {
+        return stopReason != null;
+    }
+
+    /**
+     * @return the reason reading was stopped, null if it was not
+     */
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * Records that the stream broke off and is being opened again, which does not count as idle time
+     */
+    public void reconnecting() {
+        reconnecting = true;
+    }
+
+    /**
+     * Records that reopening the stream is over, the idle time of a read starts over from now
+     */
+    public void reconnected() {
+        resumedNanos = System.nanoTime();
+        reconnecting = false;
+    }
+
+    /**
+     * @param readStartNanos when the blocked read started
+     * @return how long the read has gone without audio, not counting the time spent opening the stream again
+     */
+    public long getIdleMillis(long readStartNanos) {
+        if (reconnecting) {
+            return 0;
+        }
+        long resumed = resumedNanos;
+        long idleSince = resumed - readStartNanos > 0 ? resumed : readStartNanos;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSince);
+    }
+
+    /**
+     * @param audioReceived whether any audio was read yet
+     * @return how long a read may block before reading is stopped, 0 for no limit
+     */
+    public long getIdleLimitMillis(boolean audioReceived) {
+        if (isCallEnded()) {
+            return drainIdleMillis;
+        }
+        return audioReceived ? idleTimeoutMillis : 0;
+    }
+}
@@ -0,0 +1,512 @@
+package com.amazonaws.transcribestreaming;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming FLAC encoder for 16 bit little-endian mono PCM. The audio is cut into blocks of a fixed number of
+ * samples, each encoded as one FLAC frame with the best fixed predictor of order 0 to 4 and partitioned Rice coding
+ * of the residual, falling back to verbatim samples where prediction does not pay off. Telephony speech comes out
+ * at roughly half the size of the PCM.
+ *
+ * <p>Samples that do not fill a block are kept for the next call, {@link #flush()} encodes them as the shorter last
+ * block of the stream. The first output starts with the FLAC stream header. All buffers are reused, so the buffer
+ * returned by {@link #encode(ByteBuffer)} and {@link #flush()} is only valid until the next call. Not thread safe.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class FlacEncoder {
+
+    // largest block size of the FLAC subset for sample rates up to 48 kHz, which every decoder supports
+    public static final int MAX_BLOCK_SIZE = 4608;
+    public static final int MIN_BLOCK_SIZE = 16;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int STREAM_HEADER_BYTES = 42;
+    // frame header, subframe header, padding and CRC-16 on top of the samples
+    private static final int FRAME_OVERHEAD_BYTES = 24;
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int sampleRateHertz;
+    private final int blockSize;
+    private final int[] samples;
+    private final int[] residual;
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] bestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private int bestPartitionOrder;
+    private int bufferedSamples;
+    // low byte of a sample split across two chunks, -1 if none
+    private int pendingByte = -1;
+    private boolean headerWritten;
+    private long frameNumber;
+    private long encodedSamples;
+    private long encodedBytes;
+
+    private byte[] out = new byte[0];
+    private int outPosition;
+    private long bitBuffer;
+    private int bitCount;
+
+    /**
+     * @param sampleRateHertz sample rate of the audio
+     * @param blockSize       samples per FLAC frame, between {@link #MIN_BLOCK_SIZE} and {@link #MAX_BLOCK_SIZE}
+     */
+    public FlacEncoder(int sampleRateHertz, int blockSize) {
+        Validate.isTrue(sampleRateHertz > 0 && sampleRateHertz < (1 << 20), "Unsupported sample rate");
+        Validate.isTrue(blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE,
+                "blockSize must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        this.sampleRateHertz = sampleRateHertz;
+        this.blockSize = blockSize;
+        this.samples = new int[blockSize];
+        this.residual = new int[blockSize];
+    }
+
+    /**
+     * Encodes every block the given audio completes, leaving the position of {@code pcm} untouched.
+     *
+     * @param pcm 16 bit little-endian mono samples
+     * @return the encoded frames, empty if the audio did not complete a block
+     */
+    public ByteBuffer encode(ByteBuffer pcm) {
+        int position = pcm.position();
+        int limit = pcm.limit();
+        int availableSamples = bufferedSamples + (limit - position + (pendingByte >= 0 ? 1 : 0)) / 2;
+        beginOutput(availableSamples / blockSize);
+
+        if (pendingByte >= 0 && position < limit) {
+            samples[bufferedSamples++] = (short) ((pcm.get(position++) << 8) | pendingByte);
+            pendingByte = -1;
+            encodeBlockIfFull();
+        }
+        while (limit - position >= 2) {
+            int take = Math.min(blockSize - bufferedSamples, (limit - position) / 2);
+            for (int i = 0; i < take; i++, position += 2) {
+                samples[bufferedSamples + i] = (short) ((pcm.get(position + 1) << 8) | (pcm.get(position) & 0xFF));
+            }
+            bufferedSamples += take;
+            encodeBlockIfFull();
+        }
+        if (position < limit) {
+            pendingByte = pcm.get(position) & 0xFF;
+        }
+        return endOutput();
+    }
+
+    /**
+     * Encodes the samples left from earlier calls as the last, shorter block of the stream.
+     *
+     * @return the encoded frame, empty if no samples were left
+     */
+    public ByteBuffer flush() {
+        beginOutput(bufferedSamples > 0 ? 1 : 0);
+        if (bufferedSamples > 0) {
+            encodeFrame(bufferedSamples);
+            bufferedSamples = 0;
+        }
+        pendingByte = -1;
+        return endOutput();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return samples kept for the next block
+     */
+    public int getBufferedSamples() {
+        return bufferedSamples;
+    }
+
+    public long getEncodedSamples() {
+        return encodedSamples;
+    }
+
+    /**
+     * @return bytes output so far, the stream header included
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    private void encodeBlockIfFull() {
+        if (bufferedSamples == blockSize) {
+            encodeFrame(blockSize);
+            bufferedSamples = 0;
+        }
+    }
+
+    private void beginOutput(int frames) {
+        int capacity = STREAM_HEADER_BYTES + frames * (blockSize * BITS_PER_SAMPLE / 8 + FRAME_OVERHEAD_BYTES);
+        if (out.length < capacity) {
+            out = new byte[capacity];
+        }
+        outPosition = 0;
+        if (!headerWritten && frames > 0) {
+            writeStreamHeader();
+            headerWritten = true;
+        }
+    }
+
+    private ByteBuffer endOutput() {
+        encodedBytes += outPosition;
+        return ByteBuffer.wrap(out, 0, outPosition);
+    }
+
+    private void writeStreamHeader() {
+        writeBits(0x664C6143, 32); // "fLaC"
+        // last metadata block, STREAMINFO, 34 bytes long
+        writeBits(0x80, 8);
+        writeBits(34, 24);
+        writeBits(blockSize, 16);
+        writeBits(blockSize, 16);
+        // minimum and maximum frame size unknown
+        writeBits(0, 24);
+        writeBits(0, 24);
+        writeBits(sampleRateHertz, 20);
+        writeBits(0, 3); // one channel
+        writeBits(BITS_PER_SAMPLE - 1, 5);
+        // total samples and MD5 of the audio unknown, the stream is encoded as it arrives
+        writeBits(0, 36);
+        for (int i = 0; i < 4; i++) {
+            writeBits(0, 32);
+        }
+    }
+
+    private void encodeFrame(int n) {
+        int frameStart = outPosition;
+        writeBits(0xFFF8, 16); // sync code, fixed block size
+        int blockSizeCode = blockSizeCode(n);
+        writeBits(blockSizeCode, 4);
+        writeBits(sampleRateCode(sampleRateHertz), 4);
+        writeBits(0, 4); // mono
+        writeBits(0b100, 3); // 16 bits per sample
+        writeBits(0, 1);
+        writeFrameNumber(frameNumber++);
+        if (blockSizeCode == 6) {
+            writeBits(n - 1, 8);
+        } else if (blockSizeCode == 7) {
+            writeBits(n - 1, 16);
+        }
+        if (sampleRateCode(sampleRateHertz) == 0b1100) {
+            writeBits(sampleRateHertz / 1000, 8);
+        }
+        writeBits(crc8(frameStart, outPosition), 8);
+
+        writeSubframe(n);
+
+        // frames end on a byte boundary
+        if (bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+        writeBits(crc16(frameStart, outPosition), 16);
+        encodedSamples += n;
+    }
+
+    private void writeSubframe(int n) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            writeBits(0, 8);
+            writeBits(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        int order = bestFixedOrder(n);
+        computeResidual(order, n);
+        long riceBits = choosePartitioning(order, n);
+        long fixedBits = (long) order * BITS_PER_SAMPLE + riceBits;
+        if (fixedBits >= (long) n * BITS_PER_SAMPLE) {
+            writeBits(0b10, 8); // verbatim
+            for (int i = 0; i < n; i++) {
+                writeBits(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        writeBits((0b1000 | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            writeBits(samples[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(order, n);
+    }
+
+    // picks the order whose residual has the smallest sum of magnitudes, the estimate the reference encoder uses
+    private int bestFixedOrder(int n) {
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        if (maxOrder < MAX_FIXED_ORDER) {
+            return maxOrder;
+        }
+        long error0 = 0;
+        long error1 = 0;
+        long error2 = 0;
+        long error3 = 0;
+        long error4 = 0;
+        int x1 = samples[3];
+        int x2 = samples[3] - samples[2];
+        int x3 = x2 - (samples[2] - samples[1]);
+        int x4 = x3 - (samples[2] - 2 * samples[1] + samples[0]);
+        for (int i = MAX_FIXED_ORDER; i < n; i++) {
+            int e0 = samples[i];
+            int e1 = e0 - x1;
+            int e2 = e1 - x2;
+            int e3 = e2 - x3;
+            int e4 = e3 - x4;
+            x1 = e0;
+            x2 = e1;
+            x3 = e2;
+            x4 = e3;
+            error0 += Math.abs(e0);
+            error1 += Math.abs(e1);
+            error2 += Math.abs(e2);
+            error3 += Math.abs(e3);
+            error4 += Math.abs(e4);
+        }
+        int order = 0;
+        long best = error0;
+        if (error1 < best) {
+            order = 1;
+            best = error1;
+        }
+        if (error2 < best) {
+            order = 2;
+            best = error2;
+        }
+        if (error3 < best) {
+            order = 3;
+            best = error3;
+        }
+        return error4 < best ? 4 : order;
+    }
+
+    private void computeResidual(int order, int n) {
+        int[] x = samples;
+        switch (order) {
+            case 0:
+                System.arraycopy(x, 0, residual, 0, n);
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Finds the partition order and Rice parameters that code the residual in the fewest bits.
+     *
+     * @return the bits of the coded residual, an upper bound of what {@link #writeResidual(int, int)} writes
+     */
+    private long choosePartitioning(int order, int n) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER && (n & (1 << (maxPartitionOrder + 1)) - 1) == 0
+                && (n >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        int partitions = 1 << maxPartitionOrder;
+        int partitionSize = n >> maxPartitionOrder;
+        for (int p = 0, i = order; p < partitions; p++) {
+            long sum = 0;
+            for (int end = (p + 1) * partitionSize; i < end; i++) {
+                int r = residual[i];
+                sum += (r << 1) ^ (r >> 31);
+            }
+            partitionSums[p] = sum;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = maxPartitionOrder; partitionOrder >= 0; partitionOrder--) {
+            partitions = 1 << partitionOrder;
+            partitionSize = n >> partitionOrder;
+            long bits = 2 + 4;
+            for (int p = 0; p < partitions; p++) {
+                int count = p == 0 ? partitionSize - order : partitionSize;
+                int parameter = riceParameter(partitionSums[p], count);
+                riceParameters[p] = parameter;
+                bits += 4 + riceBits(partitionSums[p], count, parameter);
+            }
+            if (bits <= bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = partitionOrder;
+                System.arraycopy(riceParameters, 0, bestRiceParameters, 0, partitions);
+            }
+            // merge neighbouring partitions for the next, coarser order
+            for (int p = 0; p < partitions / 2; p++) {
+                partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+            }
+        }
+        return bestBits;
+    }
+
+    private static int riceParameter(long sum, int count) {
+        if (count == 0 || sum < count) {
+            return 0;
+        }
+        int parameter = 63 - Long.numberOfLeadingZeros(sum / count);
+        if (parameter >= MAX_RICE_PARAMETER) {
+            return MAX_RICE_PARAMETER;
+        }
+        return riceBits(sum, count, parameter + 1) < riceBits(sum, count, parameter) ? parameter + 1 : parameter;
+    }
+
+    // the sum of the quotients is at most the quotient of the sum, so this never underestimates
+    private static long riceBits(long sum, int count, int parameter) {
+        return (long) count * (parameter + 1) + (sum >> parameter);
+    }
+
+    private void writeResidual(int order, int n) {
+        writeBits(0, 2); // Rice coding with 4 bit parameters
+        writeBits(bestPartitionOrder, 4);
+        int partitions = 1 << bestPartitionOrder;
+        int partitionSize = n >> bestPartitionOrder;
+        for (int p = 0, i = order; p < partitions; p++) {
+            int parameter = bestRiceParameters[p];
+            writeBits(parameter, 4);
+            int mask = (1 << parameter) - 1;
+            for (int end = (p + 1) * partitionSize; i < end; i++) {
+                int r = residual[i];
+                int folded = (r << 1) ^ (r >> 31);
+                int quotient = folded >>> parameter;
+                while (quotient > 32) {
+                    writeBits(0, 32);
+                    quotient -= 32;
+                }
+                // quotient zeros, the stop bit and the low bits in one write
+                writeBits((1L << parameter) | (folded & mask), quotient + 1 + parameter);
+            }
+        }
+    }
+
+    private void writeFrameNumber(long number) {
+        if (number < 0x80) {
+            writeBits(number, 8);
+            return;
+        }
+        int continuationBytes = number < 0x800 ? 1 : number < 0x10000 ? 2 : number < 0x200000 ? 3
+                : number < 0x4000000 ? 4 : 5;
+        int leadingOnes = (0xFF00 >> (continuationBytes + 1)) & 0xFF;
+        writeBits(leadingOnes | (number >>> (6 * continuationBytes)), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            writeBits(0x80 | ((number >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    // writes the low bits of the value, at most 56 at a time
+    private void writeBits(long value, int bits) {
+        bitBuffer = (bitBuffer << bits) | (value & ((1L << bits) - 1));
+        bitCount += bits;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            out[outPosition++] = (byte) (bitBuffer >>> bitCount);
+        }
+    }
+
+    private int crc8(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[crc ^ (out[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    private int crc16(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) & 0xFFFF) ^ CRC16_TABLE[(crc >>> 8) ^ (out[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    private static int blockSizeCode(int n) {
+        if (n == 192) {
+            return 1;
+        }
+        if (n % 576 == 0 && Integer.bitCount(n / 576) == 1 && n <= 4608) {
+            return 2 + Integer.numberOfTrailingZeros(n / 576);
+        }
+        if (n % 256 == 0 && Integer.bitCount(n / 256) == 1 && n <= 32768) {
+            return 8 + Integer.numberOfTrailingZeros(n / 256);
+        }
+        return n <= 256 ? 6 : 7;
+    }
+
+    private static int sampleRateCode(int sampleRateHertz) {
+        switch (sampleRateHertz) {
+            case 88200:
+                return 0b0001;
+            case 176400:
+                return 0b0010;
+            case 192000:
+                return 0b0011;
+            case 8000:
+                return 0b0100;
+            case 16000:
+                return 0b0101;
+            case 22050:
+                return 0b0110;
+            case 24000:
+                return 0b0111;
+            case 32000:
+                return 0b1000;
+            case 44100:
+                return 0b1001;
+            case 48000:
+                return 0b1010;
+            case 96000:
+                return 0b1011;
+            default:
+                // kHz in the frame header where possible, the rate in STREAMINFO otherwise
+                return sampleRateHertz % 1000 == 0 && sampleRateHertz / 1000 < 256 ? 0b1100 : 0;
+        }
+    }
+}
@@ -2,7 +2,10 @@ package com.amazonaws.transcribestreaming;
 
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.kvstranscribestreaming.KVSUtils;
+import com.amazonaws.kvstranscribestreaming.GenericKVSAudioReader;
+import com.amazonaws.kvstranscribestreaming.KVSAudioReader;
+import com.amazonaws.kvstranscribestreaming.MemoryBudget;
+import com.amazonaws.kvstranscribestreaming.PipelineEvents;
 import org.apache.commons.lang3.Validate;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
@@ -14,6 +17,9 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -23,6 +29,26 @@ import java.util.concurrent.atomic.AtomicLong;
  * the KVS parser library
  *
  * <p>
+ * When a {@link LiveEdgeTracker} is given and the stream is behind real time,
+ * for example because the session started late, larger chunks are read per
+ * AudioEvent so every demanded event carries more audio and the stream catches
+ * up. Back at the live edge the small, latency optimized chunks are used again.
+ * </p>
+ *
+ * <p>
+ * When a {@link MemoryBudget} is given, the audio handed to Transcribe is
+ * reserved in it until Transcribe asks for more, and reading pauses while the
+ * process is over its budget and this call is one of the noisiest.
+ * </p>
+ *
+ * <p>
+ * When FLAC encoding is enabled, the audio is sent as a FLAC stream instead of
+ * PCM. The block size of the {@link FlacEncoder} is fixed to the duration of a
+ * live edge chunk, so at the live edge every AudioEvent carries one FLAC frame
+ * and no audio waits in the encoder. The recording still gets the PCM.
+ * </p>
+ *
+ * <p>
  * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
  * </p>
  *
@@ -43,27 +69,87 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class KVSByteToAudioEventSubscription implements Subscription {
 
-    private static final int CHUNK_SIZE_IN_KB = 4;
+    // audio frames per audio event at the live edge, unless the subscription is created with another size
+    public static final int DEFAULT_CHUNK_FRAMES = 4;
+    // audio frames per audio event while catching up, 8 times the default live edge chunk
+    private static final int CATCH_UP_CHUNK_FRAMES = 32;
+    private static final long IDLE_CHECK_PERIOD_MILLIS = 250;
+    // checks the reads of all subscriptions for idle streams
+    private static final ScheduledExecutorService idleChecks = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "audio-idle-check");
+        thread.setDaemon(true);
+        return thread;
+    });
     private ExecutorService executor = Executors.newFixedThreadPool(1);
     private AtomicLong demand = new AtomicLong(0);
     private final Subscriber<? super AudioStream> subscriber;
-    private final StreamingMkvReader streamingMkvReader;
-    private String callId;
+    private final KVSAudioReader audioReader;
+    private final String callId;
     private OutputStream outputStream;
-    private final FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor;
-    private final FragmentMetadataVisitor fragmentVisitor;
     private final boolean shouldWriteToOutputStream;
+    private final LiveEdgeTracker liveEdgeTracker;
+    private final MemoryBudget memoryBudget;
+    private final AudioEndSignal endSignal;
+    private final int chunkFrames;
+    private final int flacSampleRateHertz;
+    private final ScheduledFuture<?> idleCheck;
+    // created with the first audio, once the samples per frame are known, only touched by the executor thread
+    private FlacEncoder flacEncoder;
+    // the last FLAC frame, flushed at the end of the audio and held until there is demand for it, only touched by
+    // the executor thread
+    private ByteBuffer lastFlacFrame;
+    // audio sent to Transcribe since it last asked for more, only touched by the executor thread
+    private long inFlightBytes;
+    // set once the subscriber was completed or failed, only touched by the executor thread
+    private boolean terminated;
+    // start of the read in progress, -1 while not reading
+    private volatile long readStartNanos = -1;
+    private volatile boolean audioReceived;
 
     public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, StreamingMkvReader streamingMkvReader,
             String callId, OutputStream outputStream, FragmentMetadataVisitor.BasicMkvTagProcessor tagProcessor,
             FragmentMetadataVisitor fragmentVisitor, boolean shouldWriteToOutputStream) {
+        this(s, new GenericKVSAudioReader(streamingMkvReader, fragmentVisitor, tagProcessor, callId), callId,
+                outputStream, shouldWriteToOutputStream, null, null);
+    }
+
+    /**
+     * @param audioReader     reads the audio frames of the call from the KVS stream
+     * @param liveEdgeTracker tracks the lag of the stream to switch to catch-up chunking, may be null to always
+     *                        read latency optimized chunks
+     * @param memoryBudget    process-wide budget the audio is reserved in, may be null
+     */
+    public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, KVSAudioReader audioReader,
+            String callId, OutputStream outputStream, boolean shouldWriteToOutputStream,
+            LiveEdgeTracker liveEdgeTracker, MemoryBudget memoryBudget) {
+        this(s, audioReader, callId, outputStream, shouldWriteToOutputStream, liveEdgeTracker, memoryBudget, null,
+                DEFAULT_CHUNK_FRAMES, 0);
+    }
+
+    /**
+     * @param endSignal stops reading when the stream is idle or the call ended, and makes the Transcribe stream
+     *                  complete instead of fail when it does; null to read until KVS closes the stream
+     * @param chunkFrames audio frames per audio event at the live edge, more are read at once while catching up
+     * @param flacSampleRateHertz sample rate of the audio to send it FLAC encoded, 0 to send PCM
+     */
+    public KVSByteToAudioEventSubscription(Subscriber<? super AudioStream> s, KVSAudioReader audioReader,
+            String callId, OutputStream outputStream, boolean shouldWriteToOutputStream,
+            LiveEdgeTracker liveEdgeTracker, MemoryBudget memoryBudget, AudioEndSignal endSignal, int chunkFrames,
+            int flacSampleRateHertz) {
         this.subscriber = Validate.notNull(s);
-        this.streamingMkvReader = Validate.notNull(streamingMkvReader);
+        this.audioReader = Validate.notNull(audioReader);
         this.callId = Validate.notNull(callId);
         this.outputStream = Validate.notNull(outputStream);
-        this.tagProcessor = Validate.notNull(tagProcessor);
-        this.fragmentVisitor = Validate.notNull(fragmentVisitor);
         this.shouldWriteToOutputStream = shouldWriteToOutputStream;
+        this.liveEdgeTracker = liveEdgeTracker;
+        this.memoryBudget = memoryBudget;
+        this.endSignal = endSignal;
+        Validate.isTrue(chunkFrames > 0, "chunkFrames must be positive");
+        this.chunkFrames = chunkFrames;
+        Validate.isTrue(flacSampleRateHertz >= 0, "flacSampleRateHertz must not be negative");
+        this.flacSampleRateHertz = flacSampleRateHertz;
+        this.idleCheck = endSignal == null ? null : idleChecks.scheduleWithFixedDelay(this::checkIdle,
+                IDLE_CHECK_PERIOD_MILLIS, IDLE_CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -76,15 +162,59 @@ public class KVSByteToAudioEventSubscription implements Subscription {
         // We need to invoke this in a separate thread because the call to
         // subscriber.onNext(...) is recursive
         executor.submit(() -> {
+            if (terminated) {
+                // requests that were queued before the end of the audio
+                return;
+            }
+            if (lastFlacFrame != null) {
+                // the audio ended without demand for its last frame
+                complete();
+                return;
+            }
             try {
+                // Transcribe asking for more means it is done with the audio sent so far
+                releaseInFlight();
                 while (demand.get() > 0) {
-                    ByteBuffer audioBuffer = KVSUtils.getByteBufferFromStream(streamingMkvReader, fragmentVisitor,
-                            tagProcessor, callId, CHUNK_SIZE_IN_KB);
+                    if (memoryBudget != null) {
+                        memoryBudget.awaitCapacity(callId);
+                    }
+                    if (endSignal != null && endSignal.isStopped()) {
+                        complete();
+                        break;
+                    }
+                    PipelineEvents.AudioChunk chunkEvent = new PipelineEvents.AudioChunk();
+                    chunkEvent.begin();
+                    readStartNanos = System.nanoTime();
+                    int chunkSize = chunkSize();
+                    ByteBuffer audioBuffer;
+                    try {
+                        audioBuffer = audioReader.readAudio(chunkSize);
+                    } finally {
+                        readStartNanos = -1;
+                    }
 
                     if (audioBuffer.remaining() > 0) {
+                        audioReceived = true;
+                        if (memoryBudget != null) {
+                            memoryBudget.reserve(callId, audioBuffer.remaining());
+                            inFlightBytes += audioBuffer.remaining();
+                        }
+                        if (liveEdgeTracker != null) {
+                            liveEdgeTracker.onAudio(audioReader, audioBuffer.remaining());
+                        }
 
-                        AudioEvent audioEvent = audioEventFromBuffer(audioBuffer);
-                        subscriber.onNext(audioEvent);
+                        ByteBuffer payload = flacSampleRateHertz > 0 ? encodeFlac(audioBuffer, chunkSize) : audioBuffer;
+                        boolean sent = payload.hasRemaining();
+                        if (sent) {
+                            subscriber.onNext(audioEventFromBuffer(payload));
+                        }
+                        if (sent && chunkEvent.shouldCommit()) {
+                            chunkEvent.setTransactionId(callId);
+                            chunkEvent.bytes = payload.remaining();
+                            chunkEvent.demand = demand.get();
+                            chunkEvent.catchingUp = liveEdgeTracker != null && liveEdgeTracker.isCatchingUp();
+                            chunkEvent.commit();
+                        }
 
                         if (shouldWriteToOutputStream) {
                             // Write audioBytes to a temporary file as they are received from the stream
@@ -92,14 +222,26 @@ public class KVSByteToAudioEventSubscription implements Subscription {
                             audioBuffer.get(audioBytes);
                             outputStream.write(audioBytes);
                         }
+                        if (!sent) {
+                            // the audio did not fill a FLAC block yet, read more for the same demand
+                            continue;
+                        }
 
                     } else {
-                        subscriber.onComplete();
+                        complete();
                         break;
                     }
                     demand.getAndDecrement();
                 }
             } catch (Exception e) {
+                if (endSignal != null && endSignal.isStopped()) {
+                    // the read failed because the stream was aborted, which ends the audio
+                    complete();
+                    return;
+                }
+                terminated = true;
+                releaseInFlight();
+                cancelIdleCheck();
                 subscriber.onError(e);
             }
         });
@@ -107,9 +249,84 @@ public class KVSByteToAudioEventSubscription implements Subscription {
 
     @Override
     public void cancel() {
+        cancelIdleCheck();
+        if (!executor.isShutdown()) {
+            executor.submit(this::releaseInFlight);
+        }
         executor.shutdown();
     }
 
+    private void complete() {
+        if (flacEncoder != null) {
+            // the samples short of a block go out as the last frame of the stream
+            ByteBuffer lastFrame = flacEncoder.flush();
+            flacEncoder = null;
+            if (lastFrame.hasRemaining()) {
+                lastFlacFrame = lastFrame;
+            }
+        }
+        if (lastFlacFrame != null) {
+            if (demand.get() <= 0) {
+                // sent with the next request, the subscriber gets no more events than it asked for
+                return;
+            }
+            subscriber.onNext(audioEventFromBuffer(lastFlacFrame));
+            demand.getAndDecrement();
+            lastFlacFrame = null;
+        }
+        terminated = true;
+        releaseInFlight();
+        cancelIdleCheck();
+        subscriber.onComplete();
+    }
+
+    private void cancelIdleCheck() {
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+        }
+    }
+
+    // runs on the idle check thread, stops the stream when a read has been blocked for longer than allowed
+    private void checkIdle() {
+        long started = readStartNanos;
+        if (started < 0 || endSignal.isStopped()) {
+            return;
+        }
+        long limitMillis = endSignal.getIdleLimitMillis(audioReceived);
+        // the read may be reopening a stream that broke off, that time is not idle
+        long idleMillis = endSignal.getIdleMillis(started);
+        if (limitMillis > 0 && idleMillis >= limitMillis) {
+            endSignal.stop("no audio for " + idleMillis + " ms" + (endSignal.isCallEnded() ? " after the call ended"
+                    : ""));
+        }
+    }
+
+    private void releaseInFlight() {
+        if (memoryBudget != null && inFlightBytes > 0) {
+            memoryBudget.release(callId, inFlightBytes);
+            inFlightBytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of frames to read for the next audio event
+     */
+    private int chunkSize() {
+        return liveEdgeTracker != null && liveEdgeTracker.isCatchingUp()
+                ? Math.max(chunkFrames, CATCH_UP_CHUNK_FRAMES) : chunkFrames;
+    }
+
+    private ByteBuffer encodeFlac(ByteBuffer audioBuffer, int chunkSize) {
+        if (flacEncoder == null) {
+            // one block per live edge chunk, whatever the size of the chunk the stream starts with
+            int samples = audioBuffer.remaining() / 2;
+            int blockSize = (int) ((long) samples * chunkFrames / chunkSize);
+            flacEncoder = new FlacEncoder(flacSampleRateHertz, Math.min(FlacEncoder.MAX_BLOCK_SIZE,
+                    Math.max(FlacEncoder.MIN_BLOCK_SIZE, blockSize)));
+        }
+        return flacEncoder.encode(audioBuffer);
+    }
+
     private AudioEvent audioEventFromBuffer(ByteBuffer bb) {
         return AudioEvent.builder().audioChunk(SdkBytes.fromByteBuffer(bb)).build();
     }
@@ -0,0 +1,145 @@
+package com.amazonaws.transcribestreaming;
+
+import com.amazonaws.kvstranscribestreaming.KVSAudioReader;
+import com.amazonaws.kvstranscribestreaming.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks how far the audio read from GetMedia is behind real time. The position of the audio is the producer
+ * timestamp of the current fragment (the server timestamp when the producer did not set one) plus the duration of
+ * the audio read from that fragment so far.
+ *
+ * <p>The stream is considered behind once the lag exceeds the catch-up threshold and back at the live edge once
+ * it drops below the live edge threshold, so chunking does not flap around a single value. The lag when the first
+ * audio is read, the time spent catching up and the lag every LAG_METRIC_INTERVAL_MILLIS are published as
+ * metrics.</p>
+ *
+ * <p>Not thread safe, it is only used from the thread reading the stream.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class LiveEdgeTracker {
+
+    private static final long LAG_METRIC_INTERVAL_MILLIS = 60000;
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveEdgeTracker.class);
+
+    private final MetricsUtil metricsUtil;
+    private final String callId;
+    private final long catchUpLagMillis;
+    private final long liveEdgeLagMillis;
+    private final double bytesPerMilli;
+
+    private String fragmentNumber;
+    private long fragmentStartMillis;
+    private long fragmentAudioBytes;
+    private long lagMillis = -1;
+    private boolean catchingUp;
+    private long catchUpStartMillis;
+    private long lastLagMetricMillis;
+
+    /**
+     * @param metricsUtil       metrics the lag and catch-up time are published to
+     * @param callId            call the stream belongs to, for logging
+     * @param catchUpLagMillis  lag above which the stream is read in catch-up mode
+     * @param liveEdgeLagMillis lag below which the stream is back at the live edge
+     * @param bytesPerSecond    rate of the audio in the stream
+     */
+    public LiveEdgeTracker(MetricsUtil metricsUtil, String callId, long catchUpLagMillis, long liveEdgeLagMillis,
+                           int bytesPerSecond) {
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.callId = Validate.notNull(callId);
+        Validate.isTrue(liveEdgeLagMillis <= catchUpLagMillis, "liveEdgeLagMillis must not exceed catchUpLagMillis");
+        Validate.isTrue(bytesPerSecond > 0, "bytesPerSecond must be positive");
+        this.catchUpLagMillis = catchUpLagMillis;
+        this.liveEdgeLagMillis = liveEdgeLagMillis;
+        this.bytesPerMilli = bytesPerSecond / 1000.0;
+    }
+
+    /**
+     * Updates the lag after audio was read from the fragment the reader is currently in
+     *
+     * @param audioReader reader of the stream the audio was read from
+     * @param audioBytes  number of audio bytes read
+     */
+    public void onAudio(KVSAudioReader audioReader, int audioBytes) {
+        String currentFragmentNumber = audioReader.getFragmentNumber();
+        if (currentFragmentNumber == null) {
+            return;
+        }
+        if (!currentFragmentNumber.equals(fragmentNumber)) {
+            fragmentNumber = currentFragmentNumber;
+            long producerMillis = audioReader.getProducerTimestampMillis();
+            fragmentStartMillis = producerMillis > 0 ? producerMillis : audioReader.getServerTimestampMillis();
+            fragmentAudioBytes = 0;
+        }
+        if (fragmentStartMillis <= 0) {
+            return;
+        }
+        fragmentAudioBytes += audioBytes;
+
+        long nowMillis = System.currentTimeMillis();
+        boolean first = lagMillis < 0;
+        lagMillis = Math.max(0, nowMillis - fragmentStartMillis - (long) (fragmentAudioBytes / bytesPerMilli));
+
+        if (first) {
+            logger.info("Stream of " + callId + " starts " + lagMillis + " ms behind real time");
+            publish("KVSStartLagMillis", lagMillis);
+            lastLagMetricMillis = nowMillis;
+        } else if (nowMillis - lastLagMetricMillis >= LAG_METRIC_INTERVAL_MILLIS) {
+            publish("KVSLagMillis", lagMillis);
+            lastLagMetricMillis = nowMillis;
+        }
+
+        if (!catchingUp && lagMillis > catchUpLagMillis) {
+            catchingUp = true;
+            catchUpStartMillis = nowMillis;
+            logger.info("Stream of " + callId + " is " + lagMillis + " ms behind real time, catching up");
+        } else if (catchingUp && lagMillis < liveEdgeLagMillis) {
+            catchingUp = false;
+            long catchUpMillis = nowMillis - catchUpStartMillis;
+            logger.info("Stream of " + callId + " reached the live edge after catching up for " + catchUpMillis
+                    + " ms");
+            publish("KVSCatchUpMillis", catchUpMillis);
+        }
+    }
+
+    /**
+     * @return whether the stream is far enough behind real time to be read in catch-up mode
+     */
+    public boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    /**
+     * @return the last measured lag, or -1 before any audio was read
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    private void publish(String metricName, long millis) {
+        try {
+            metricsUtil.recordMetric(metricName, millis, StandardUnit.Milliseconds);
+        } catch (Exception e) {
+            // the lag is only informational, never fail the stream over it
+            logger.warn("Could not publish " + metricName + " for " + callId + ": ", e);
+        }
+    }
+}
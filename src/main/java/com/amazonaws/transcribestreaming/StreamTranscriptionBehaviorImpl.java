@@ -1,8 +1,12 @@
 package com.amazonaws.transcribestreaming;
 
+import com.amazonaws.kvstranscribestreaming.PhraseSpotter;
+import com.amazonaws.kvstranscribestreaming.PipelineEvents;
 import com.amazonaws.kvstranscribestreaming.TranscribedSegmentWriter;
+import com.amazonaws.kvstranscribestreaming.TranscriptLog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
 import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
 import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
 import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
@@ -29,9 +33,19 @@ public class StreamTranscriptionBehaviorImpl implements StreamTranscriptionBehav
 
     private static final Logger logger = LoggerFactory.getLogger(StreamTranscriptionBehaviorImpl.class);
     private final TranscribedSegmentWriter segmentWriter;
+    private final PhraseSpotter phraseSpotter;
 
     public StreamTranscriptionBehaviorImpl(TranscribedSegmentWriter segmentWriter) {
+        this(segmentWriter, null);
+    }
+
+    /**
+     * @param segmentWriter
+     * @param phraseSpotter spots phrases in the results as they arrive, null if no phrase list is configured
+     */
+    public StreamTranscriptionBehaviorImpl(TranscribedSegmentWriter segmentWriter, PhraseSpotter phraseSpotter) {
         this.segmentWriter = segmentWriter;
+        this.phraseSpotter = phraseSpotter;
     }
 
     @Override
@@ -41,21 +55,36 @@ public class StreamTranscriptionBehaviorImpl implements StreamTranscriptionBehav
 
     @Override
     public void onStream(TranscriptResultStream e) {
+        PipelineEvents.TranscriptResult resultEvent = new PipelineEvents.TranscriptResult();
+        resultEvent.begin();
         // EventResultStream has other fields related to the timestamp of the transcripts in it.
         // Please refer to the javadoc of TranscriptResultStream for more details
-        segmentWriter.writeToDynamoDB((TranscriptEvent) e);
+        segmentWriter.writeTranscriptEvent((TranscriptEvent) e);
+        if (phraseSpotter != null) {
+            phraseSpotter.onTranscriptEvent((TranscriptEvent) e);
+        }
+        if (resultEvent.shouldCommit() && !((TranscriptEvent) e).transcript().results().isEmpty()) {
+            Result result = ((TranscriptEvent) e).transcript().results().get(0);
+            resultEvent.setTransactionId(segmentWriter.getContactId());
+            resultEvent.resultId = result.resultId();
+            resultEvent.partial = result.isPartial();
+            resultEvent.items = result.alternatives().isEmpty() ? 0 : result.alternatives().get(0).items().size();
+            resultEvent.endTime = result.endTime() == null ? 0 : result.endTime();
+            resultEvent.commit();
+        }
     }
 
     @Override
     public void onResponse(StartStreamTranscriptionResponse r) {
-        logger.info(String.format("%d Received Initial response from Transcribe. Request Id: %s",
-                System.currentTimeMillis(), r.requestId()));
+        // shares its thread with other sessions, so the line is formatted and written by the transcript log thread
+        TranscriptLog.shared().event(segmentWriter.getContactId(),
+                "Received initial response from Transcribe, request id", r.requestId());
     }
 
     @Override
     public void onComplete() {
-        logger.info("Transcribe stream completed");
-        segmentWriter.writeTranscribeDoneToDynamoDB();
+        TranscriptLog.shared().event(segmentWriter.getContactId(), "Transcribe stream completed", null);
+        segmentWriter.writeTranscribeDone();
     }
 }
 
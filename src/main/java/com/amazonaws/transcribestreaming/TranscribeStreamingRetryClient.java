@@ -1,6 +1,7 @@
 package com.amazonaws.transcribestreaming;
 
 import com.amazonaws.kvstranscribestreaming.MetricsUtil;
+import com.amazonaws.kvstranscribestreaming.PipelineEvents;
 import com.amazonaws.regions.Regions;
 import org.apache.commons.lang3.Validate;
 import org.reactivestreams.Publisher;
@@ -8,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.transcribestreaming.TranscribeStreamingAsyncClient;
 import software.amazon.awssdk.services.transcribestreaming.model.AudioStream;
@@ -20,6 +22,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Build a client wrapper around the Amazon Transcribe client to retry
@@ -45,10 +48,12 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
 
     private static final int DEFAULT_MAX_RETRIES = 5;
     private static final int DEFAULT_MAX_SLEEP_TIME_MILLS = 500;
+    private static final int DEFAULT_MAX_CONCURRENCY = 50;
     private int maxRetries = DEFAULT_MAX_RETRIES;
     private int sleepTime = DEFAULT_MAX_SLEEP_TIME_MILLS;
     private final TranscribeStreamingAsyncClient client;
     private final MetricsUtil metricsUtil;
+    private final AtomicLong handlerFailureCount = new AtomicLong();
     List<Class<?>> nonRetriableExceptions = Arrays.asList(SdkClientException.class);
 
     private static final Logger logger = LoggerFactory.getLogger(TranscribeStreamingRetryClient.class);
@@ -64,10 +69,27 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
      */
     public TranscribeStreamingRetryClient(AwsCredentialsProvider creds,
                                           String endpoint, Regions region, MetricsUtil metricsUtil) throws URISyntaxException {
+        this(creds, endpoint, region, metricsUtil, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * Create a TranscribeStreamingRetryClient with given credential and configuration that can run up to
+     * maxConcurrency transcription streams at the same time
+     *
+     * @param creds          Creds to use for transcription
+     * @param endpoint       Endpoint to use for transcription
+     * @param region         Region to use for transcriptions
+     * @param metricsUtil
+     * @param maxConcurrency Max number of concurrent connections to the Transcribe service
+     * @throws URISyntaxException if the endpoint is not a URI
+     */
+    public TranscribeStreamingRetryClient(AwsCredentialsProvider creds, String endpoint, Regions region,
+                                          MetricsUtil metricsUtil, int maxConcurrency) throws URISyntaxException {
         this(TranscribeStreamingAsyncClient.builder()
                 .credentialsProvider(creds)
                 .endpointOverride(new URI(endpoint))
                 .region(Region.of(region.getName()))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(maxConcurrency))
                 .build(), metricsUtil);
     }
 
@@ -118,6 +140,15 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
         this.sleepTime = sleepTime;
     }
 
+    /**
+     * Get the number of transcript events the response handlers failed on
+     *
+     * @return handler failures across all streams
+     */
+    public long getHandlerFailureCount() {
+        return handlerFailureCount.get();
+    }
+
     /**
      * Initiate a Stream Transcription with retry.
      *
@@ -130,6 +161,22 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     public CompletableFuture<Void> startStreamTranscription(final StartStreamTranscriptionRequest request,
                                                             final Publisher<AudioStream> publisher,
                                                             final StreamTranscriptionBehavior responseHandler) {
+        return startStreamTranscription(request, publisher, responseHandler, null);
+    }
+
+    /**
+     * Initiate a Stream Transcription with retry.
+     *
+     * @param request         StartStreamTranscriptionRequest to use to start transcription
+     * @param publisher       The source audio stream as Publisher
+     * @param responseHandler StreamTranscriptionBehavior object that defines how the response needs to be handled.
+     * @param transactionId   Call leg the stream transcribes, reported with the session events. May be null.
+     * @return Completable future to handle stream response.
+     */
+    public CompletableFuture<Void> startStreamTranscription(final StartStreamTranscriptionRequest request,
+                                                            final Publisher<AudioStream> publisher,
+                                                            final StreamTranscriptionBehavior responseHandler,
+                                                            final String transactionId) {
 
         Validate.notNull(request);
         Validate.notNull(publisher);
@@ -137,7 +184,8 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
 
         CompletableFuture<Void> finalFuture = new CompletableFuture<>();
 
-        recursiveStartStream(rebuildRequestWithSession(request), publisher, responseHandler, finalFuture, 0);
+        recursiveStartStream(rebuildRequestWithSession(request), publisher, responseHandler, finalFuture, 0,
+                transactionId);
 
         return finalFuture;
     }
@@ -150,15 +198,28 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
      * @param responseHandler StreamTranscriptionBehavior object that defines how the response needs to be handled.
      * @param finalFuture     final future to finish on completing the chained futures.
      * @param retryAttempt    Current attempt number
+     * @param transactionId   Call leg the stream transcribes
      */
     private void recursiveStartStream(final StartStreamTranscriptionRequest request,
                                       final Publisher<AudioStream> publisher,
                                       final StreamTranscriptionBehavior responseHandler,
                                       final CompletableFuture<Void> finalFuture,
-                                      final int retryAttempt) {
+                                      final int retryAttempt,
+                                      final String transactionId) {
+        PipelineEvents.TranscribeSession sessionEvent = new PipelineEvents.TranscribeSession();
+        sessionEvent.begin();
         CompletableFuture<Void> result = client.startStreamTranscription(request, publisher,
                 getResponseHandler(responseHandler));
         result.whenComplete((r, e) -> {
+            if (sessionEvent.shouldCommit()) {
+                sessionEvent.setTransactionId(transactionId);
+                sessionEvent.sessionId = request.sessionId();
+                sessionEvent.attempt = retryAttempt;
+                sessionEvent.outcome = e == null ? "completed"
+                        : retryAttempt <= maxRetries && isExceptionRetriable(e) ? "retried" : "failed";
+                sessionEvent.error = e == null ? null : String.valueOf(e.getCause() != null ? e.getCause() : e);
+                sessionEvent.commit();
+            }
             if (e != null) {
                 logger.debug("Error occured: " + e.getMessage());
 
@@ -172,7 +233,8 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
                         finalFuture.completeExceptionally(e);
                     }
                     logger.debug("Making retry attempt: " + (retryAttempt + 1));
-                    recursiveStartStream(request, publisher, responseHandler, finalFuture, retryAttempt + 1);
+                    recursiveStartStream(request, publisher, responseHandler, finalFuture, retryAttempt + 1,
+                            transactionId);
                 } else {
                     metricsUtil.recordMetric("TranscribeStreamError", 1);
                     logger.error("Encountered unretriable exception or ran out of retries.", e);
@@ -188,10 +250,8 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
     }
 
     private StartStreamTranscriptionRequest rebuildRequestWithSession(StartStreamTranscriptionRequest request) {
-        return StartStreamTranscriptionRequest.builder()
-                .languageCode(request.languageCode())
-                .mediaEncoding(request.mediaEncoding())
-                .mediaSampleRateHertz(request.mediaSampleRateHertz())
+        // keeps the other settings of the request, such as the vocabulary
+        return request.toBuilder()
                 .sessionId(UUID.randomUUID().toString())
                 .build();
     }
@@ -216,9 +276,13 @@ public class TranscribeStreamingRetryClient implements AutoCloseable {
                     try {
                         transcriptionBehavior.onStream(event);
                     }
-                    // We swallow any exception occurred while processing the TranscriptEvent and continue transcribing
-                    // Transcribe errors will however cause the future to complete exceptionally and we'll retry (if applicable)
+                    // A failure to handle one TranscriptEvent does not end the stream, we count it and continue
+                    // transcribing. Transcribe errors will however cause the future to complete exceptionally and
+                    // we'll retry (if applicable)
                     catch (Exception e) {
+                        long failures = handlerFailureCount.incrementAndGet();
+                        logger.error("Exception while handling a transcript event, " + failures
+                                + " failed so far: ", e);
                     }
                 })
                 .build();
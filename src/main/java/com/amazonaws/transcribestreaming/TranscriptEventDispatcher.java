@@ -0,0 +1,378 @@
+package com.amazonaws.transcribestreaming;
+
+import com.amazonaws.kvstranscribestreaming.MetricsUtil;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import org.apache.commons.lang3.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.transcribestreaming.model.Result;
+import software.amazon.awssdk.services.transcribestreaming.model.StartStreamTranscriptionResponse;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptEvent;
+import software.amazon.awssdk.services.transcribestreaming.model.TranscriptResultStream;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs the {@link StreamTranscriptionBehavior} of every session on a shared pool of worker threads instead of the
+ * Transcribe SDK thread that delivers the events, so a slow handler, for example a blocking DynamoDB write, does not
+ * hold up event delivery and flow control of the response stream.
+ *
+ * <p>Each session has a bounded queue and is drained by at most one worker at a time, so the callbacks of a call
+ * keep their order. When a queue is full the oldest queued partial result is dropped, since a later result
+ * supersedes it. A final result is never dropped and never waits, the SDK thread is shared by the sessions: when
+ * there is no partial result left to drop it is queued beyond the capacity, which is logged and counted as an
+ * overflow. Handler exceptions are logged and counted, and every session publishes its peak queue depth, handler
+ * latency, overflows and failures when it is closed.</p>
+ *
+ * <p>Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.</p>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+public class TranscriptEventDispatcher implements AutoCloseable {
+
+    // callbacks a worker runs for one session before giving the other sessions a turn
+    private static final int MAX_EVENTS_PER_TURN = 32;
+
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptEventDispatcher.class);
+
+    private final ExecutorService workers;
+    private final AtomicInteger workerThreadCount = new AtomicInteger();
+    private final int queueCapacity;
+    private final MetricsUtil metricsUtil;
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param workerThreads number of threads running the callbacks of all sessions
+     * @param queueCapacity most transcript events queued for one session
+     * @param metricsUtil   metrics the queue depth, handler latency and failures of every session are published to
+     */
+    public TranscriptEventDispatcher(int workerThreads, int queueCapacity, MetricsUtil metricsUtil) {
+        Validate.isTrue(workerThreads > 0, "workerThreads must be positive");
+        Validate.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+        this.metricsUtil = Validate.notNull(metricsUtil);
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, "transcript-handler-" + workerThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the behavior to pass to the Transcribe client for one session. Its callbacks are queued and run on
+     * the worker threads with the given behavior.
+     *
+     * @param callId   call the session belongs to, for logging and metrics
+     * @param behavior handles the callbacks of the session
+     * @return
+     */
+    public Session open(String callId, StreamTranscriptionBehavior behavior) {
+        return new Session(Validate.notNull(callId), Validate.notNull(behavior));
+    }
+
+    /**
+     * @return transcript events queued across all sessions
+     */
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * @return partial results dropped across all sessions because their queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return final results queued beyond the capacity across all sessions
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return callbacks that threw across all sessions
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Stops the worker threads, callbacks still queued are not run
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * The queue of one session. Callbacks arrive on SDK threads and are run in order on the worker threads.
+     */
+    public final class Session implements StreamTranscriptionBehavior {
+        private final String callId;
+        private final StreamTranscriptionBehavior behavior;
+        private final ArrayDeque<Callback> queue = new ArrayDeque<>();
+        // transcript events in the queue, the completion callbacks are not bounded
+        private int queuedEvents;
+        private boolean scheduled;
+        private boolean running;
+        private int peakQueuedEvents;
+        private long handledEvents;
+        private long handlerNanos;
+        private long maxHandlerNanos;
+        private long maxWaitNanos;
+        private long dropped;
+        private long overflowed;
+        private long failed;
+
+        private Session(String callId, StreamTranscriptionBehavior behavior) {
+            this.callId = callId;
+            this.behavior = behavior;
+        }
+
+        @Override
+        public void onStream(TranscriptResultStream e) {
+            enqueue(new Callback(b -> b.onStream(e), e, isPartial(e)));
+        }
+
+        @Override
+        public void onResponse(StartStreamTranscriptionResponse r) {
+            enqueue(new Callback(b -> b.onResponse(r), null, false));
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            enqueue(new Callback(b -> b.onError(e), null, false));
+        }
+
+        @Override
+        public void onComplete() {
+            enqueue(new Callback(StreamTranscriptionBehavior::onComplete, null, false));
+        }
+
+        /**
+         * Waits for the callbacks queued so far to have run
+         *
+         * @param timeoutMillis
+         * @return false if callbacks were still queued or running when the timeout expired
+         * @throws InterruptedException
+         */
+        public synchronized boolean drain(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (!queue.isEmpty() || running) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+            return true;
+        }
+
+        /**
+         * Logs and publishes the queue depth, handler latency and failures of the session
+         */
+        public void close() {
+            long events;
+            long avgMillis;
+            long maxMillis;
+            long maxWaitMillis;
+            int peak;
+            long droppedEvents;
+            long overflowedEvents;
+            long failedCallbacks;
+            synchronized (this) {
+                events = handledEvents;
+                avgMillis = handledEvents == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(handlerNanos / handledEvents);
+                maxMillis = TimeUnit.NANOSECONDS.toMillis(maxHandlerNanos);
+                maxWaitMillis = TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+                peak = peakQueuedEvents;
+                droppedEvents = dropped;
+                overflowedEvents = overflowed;
+                failedCallbacks = failed;
+            }
+            logger.info("Handled " + events + " transcript events of " + callId + " in " + avgMillis
+                    + " ms on average and at most " + maxMillis + " ms, at most " + peak + " were queued for up to "
+                    + maxWaitMillis + " ms, " + droppedEvents + " partial results dropped, " + overflowedEvents
+                    + " final results queued beyond the capacity, " + failedCallbacks + " callbacks failed");
+            try {
+                metricsUtil.recordMetric("TranscriptQueuePeakDepth", peak);
+                metricsUtil.recordMetric("TranscriptQueueMaxWaitMillis", maxWaitMillis, StandardUnit.Milliseconds);
+                metricsUtil.recordMetric("TranscriptHandlerAvgMillis", avgMillis, StandardUnit.Milliseconds);
+                metricsUtil.recordMetric("TranscriptHandlerMaxMillis", maxMillis, StandardUnit.Milliseconds);
+                metricsUtil.recordMetric("TranscriptHandlerFailures", failedCallbacks);
+                metricsUtil.recordMetric("TranscriptEventsDropped", droppedEvents);
+                metricsUtil.recordMetric("TranscriptQueueOverflows", overflowedEvents);
+            } catch (Exception e) {
+                logger.warn("Could not publish transcript handler metrics of " + callId + ": ", e);
+            }
+        }
+
+        private void enqueue(Callback callback) {
+            synchronized (this) {
+                if (callback.event != null) {
+                    if (queuedEvents >= queueCapacity && !makeRoomFor(callback)) {
+                        return;
+                    }
+                    queuedEvents++;
+                    queueSize.incrementAndGet();
+                    peakQueuedEvents = Math.max(peakQueuedEvents, queuedEvents);
+                }
+                queue.addLast(callback);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        // must hold the lock; drops the oldest queued partial result, or lets a final result overflow the queue
+        private boolean makeRoomFor(Callback callback) {
+            for (Iterator<Callback> it = queue.iterator(); it.hasNext(); ) {
+                Callback queued = it.next();
+                if (queued.partial) {
+                    it.remove();
+                    queuedEvents--;
+                    queueSize.decrementAndGet();
+                    drop();
+                    return true;
+                }
+            }
+            if (callback.partial) {
+                drop();
+                return false;
+            }
+            overflowed++;
+            long total = overflowCount.incrementAndGet();
+            if (overflowed == 1 || overflowed % 1000 == 0) {
+                logger.warn("Transcript handler of " + callId + " is falling behind, queued " + overflowed
+                        + " final results beyond its capacity of " + queueCapacity + " so far, " + total
+                        + " across all calls");
+            }
+            return true;
+        }
+
+        // must hold the lock
+        private void drop() {
+            dropped++;
+            long total = droppedCount.incrementAndGet();
+            if (dropped == 1 || dropped % 1000 == 0) {
+                logger.warn("Transcript handler of " + callId + " is falling behind, dropped " + dropped
+                        + " partial results so far, " + total + " across all calls");
+            }
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::runTurn);
+            } catch (RuntimeException e) {
+                // the dispatcher is closed, nothing is going to run the queue anymore
+                synchronized (this) {
+                    scheduled = false;
+                    queueSize.addAndGet(-queuedEvents);
+                    queuedEvents = 0;
+                    queue.clear();
+                    notifyAll();
+                }
+                logger.warn("Transcript handler of " + callId + " is closed, discarding its queued callbacks");
+            }
+        }
+
+        private void runTurn() {
+            for (int i = 0; i < MAX_EVENTS_PER_TURN; i++) {
+                Callback callback;
+                synchronized (this) {
+                    callback = queue.pollFirst();
+                    if (callback == null) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    if (callback.event != null) {
+                        queuedEvents--;
+                        queueSize.decrementAndGet();
+                    }
+                    running = true;
+                }
+
+                long startNanos = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    callback.action.accept(behavior);
+                    succeeded = true;
+                } catch (Exception e) {
+                    long total = failedCount.incrementAndGet();
+                    logger.error("Exception while handling a transcript callback of " + callId + ", " + total
+                            + " failed across all calls: ", e);
+                }
+                long endNanos = System.nanoTime();
+
+                synchronized (this) {
+                    running = false;
+                    if (!succeeded) {
+                        failed++;
+                    }
+                    if (callback.event != null) {
+                        handledEvents++;
+                        handlerNanos += endNanos - startNanos;
+                        maxHandlerNanos = Math.max(maxHandlerNanos, endNanos - startNanos);
+                        maxWaitNanos = Math.max(maxWaitNanos, startNanos - callback.enqueuedNanos);
+                    }
+                    notifyAll();
+                }
+            }
+            // let the other sessions run before continuing with this one
+            schedule();
+        }
+    }
+
+    private static boolean isPartial(TranscriptResultStream e) {
+        if (!(e instanceof TranscriptEvent)) {
+            return false;
+        }
+        for (Result result : ((TranscriptEvent) e).transcript().results()) {
+            if (!result.isPartial()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Callback {
+        private final Consumer<StreamTranscriptionBehavior> action;
+        // the transcript event of an onStream callback, null for the other callbacks
+        private final TranscriptResultStream event;
+        private final boolean partial;
+        private final long enqueuedNanos = System.nanoTime();
+
+        private Callback(Consumer<StreamTranscriptionBehavior> action, TranscriptResultStream event,
+                         boolean partial) {
+            this.action = action;
+            this.event = event;
+            this.partial = partial;
+        }
+    }
+}